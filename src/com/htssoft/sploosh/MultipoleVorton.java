@@ -0,0 +1,153 @@
+package com.htssoft.sploosh;
+
+import com.jme3.math.Vector3f;
+
+/**
+ * A super vorton that carries dipole (and optionally quadrupole) vorticity
+ * moments about its position, for a more accurate far field than the
+ * summed vorticity alone.
+ *
+ * With d = p - position for each contributing vorton p with vorticity w:
+ * the dipole is D[l][b] = sum w_l d_b and the quadrupole is
+ * Q[l][b][c] = sum w_l d_b d_c, stored with only the 6 unique (b, c) pairs
+ * (xx, xy, xz, yy, yz, zz) per vorticity component.
+ *
+ * Moments are accumulated about some fixed origin first (see {@link #accumulate}),
+ * and then moved to the final position with {@link #translate}. See
+ * {@link TracerMath#computeMultipoleContribution} for the evaluation.
+ * */
+public class MultipoleVorton extends SimpleVorton {
+	protected final int order;
+	protected final float[] dipole = new float[9];
+	protected final float[] quadrupole;
+
+	/**
+	 * @param order 1 for dipole moments, 2 for dipole and quadrupole moments.
+	 * */
+	public MultipoleVorton(int order){
+		this.order = order;
+		quadrupole = order >= 2 ? new float[18] : null;
+	}
+
+	public MultipoleVorton(MultipoleVorton other){
+		this(other.order);
+		set(other);
+	}
+
+	public void set(MultipoleVorton other){
+		super.set(other);
+		System.arraycopy(other.dipole, 0, dipole, 0, 9);
+		if (quadrupole != null && other.quadrupole != null){
+			System.arraycopy(other.quadrupole, 0, quadrupole, 0, 18);
+		}
+	}
+
+	public int getOrder(){
+		return order;
+	}
+
+	public float[] getDipole(){
+		return dipole;
+	}
+
+	/**
+	 * Null unless the order is at least 2.
+	 * */
+	public float[] getQuadrupole(){
+		return quadrupole;
+	}
+
+	/**
+	 * Zero the moments (but not the position or vorticity).
+	 * */
+	public void clearMoments(){
+		for (int i = 0; i < 9; i++){
+			dipole[i] = 0f;
+		}
+		if (quadrupole != null){
+			for (int i = 0; i < 18; i++){
+				quadrupole[i] = 0f;
+			}
+		}
+	}
+
+	/**
+	 * Add the moments of a vorton at pos with vorticity w, about the given origin.
+	 * */
+	public void accumulate(Vector3f pos, Vector3f w, Vector3f origin){
+		float dx = pos.x - origin.x;
+		float dy = pos.y - origin.y;
+		float dz = pos.z - origin.z;
+		accumulate(w.x, dx, dy, dz, 0);
+		accumulate(w.y, dx, dy, dz, 1);
+		accumulate(w.z, dx, dy, dz, 2);
+	}
+
+	protected void accumulate(float w, float dx, float dy, float dz, int l){
+		int d = l * 3;
+		dipole[d] += w * dx;
+		dipole[d + 1] += w * dy;
+		dipole[d + 2] += w * dz;
+
+		if (quadrupole == null){
+			return;
+		}
+		int q = l * 6;
+		quadrupole[q] += w * dx * dx;
+		quadrupole[q + 1] += w * dx * dy;
+		quadrupole[q + 2] += w * dx * dz;
+		quadrupole[q + 3] += w * dy * dy;
+		quadrupole[q + 4] += w * dy * dz;
+		quadrupole[q + 5] += w * dz * dz;
+	}
+
+	/**
+	 * Move the moments from being about point A to being about point B,
+	 * where g = A - B. Uses the current vorticity as the monopole.
+	 * */
+	public void translate(float gx, float gy, float gz){
+		if (quadrupole != null){ //uses the untranslated dipole
+			addQuadrupoleShift(quadrupole, dipole, vort, gx, gy, gz);
+		}
+		dipole[0] += vort.x * gx; dipole[1] += vort.x * gy; dipole[2] += vort.x * gz;
+		dipole[3] += vort.y * gx; dipole[4] += vort.y * gy; dipole[5] += vort.y * gz;
+		dipole[6] += vort.z * gx; dipole[7] += vort.z * gy; dipole[8] += vort.z * gz;
+	}
+
+	/**
+	 * Add another multipole's moments, moved from being about its position to
+	 * being about ours (g = other position - our position).
+	 * */
+	public void addTranslated(MultipoleVorton other, float gx, float gy, float gz){
+		Vector3f w = other.vort;
+		if (quadrupole != null && other.quadrupole != null){
+			for (int i = 0; i < 18; i++){
+				quadrupole[i] += other.quadrupole[i];
+			}
+			addQuadrupoleShift(quadrupole, other.dipole, w, gx, gy, gz);
+		}
+		for (int i = 0; i < 9; i++){
+			dipole[i] += other.dipole[i];
+		}
+		dipole[0] += w.x * gx; dipole[1] += w.x * gy; dipole[2] += w.x * gz;
+		dipole[3] += w.y * gx; dipole[4] += w.y * gy; dipole[5] += w.y * gz;
+		dipole[6] += w.z * gx; dipole[7] += w.z * gy; dipole[8] += w.z * gz;
+	}
+
+	/**
+	 * Q[l][b][c] += D[l][b] g_c + D[l][c] g_b + w_l g_b g_c
+	 * */
+	protected static void addQuadrupoleShift(float[] q, float[] d, Vector3f w, float gx, float gy, float gz){
+		for (int l = 0; l < 3; l++){
+			float wl = l == 0 ? w.x : (l == 1 ? w.y : w.z);
+			float dx = d[l * 3], dy = d[l * 3 + 1], dz = d[l * 3 + 2];
+			int o = l * 6;
+			q[o] += 2f * dx * gx + wl * gx * gx;
+			q[o + 1] += dx * gy + dy * gx + wl * gx * gy;
+			q[o + 2] += dx * gz + dz * gx + wl * gx * gz;
+			q[o + 3] += 2f * dy * gy + wl * gy * gy;
+			q[o + 4] += dy * gz + dz * gy + wl * gy * gz;
+			q[o + 5] += 2f * dz * gz + wl * gz * gz;
+		}
+	}
+}
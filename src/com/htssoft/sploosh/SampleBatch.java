@@ -0,0 +1,107 @@
+package com.htssoft.sploosh;
+
+import java.util.List;
+
+import com.htssoft.sploosh.space.Morton;
+import com.htssoft.sploosh.threading.WorkRange;
+
+/**
+ * Reusable scratch for {@link TracerAdvecter#sampleVelocities}.
+ *
+ * The points are ordered along a Morton curve over their own bounds, so each
+ * worker thread gets a spatially coherent run of points and consecutive queries
+ * touch the same part of the tree. Velocities are still written back in the
+ * caller's order.
+ *
+ * The arrays only grow, and the work ranges are kept while the batch size and
+ * thread count stay the same, so a warmed-up batch doesn't allocate.
+ * */
+public class SampleBatch {
+	public float[] positions;
+	public float[] velocities;
+	public int nPoints;
+
+	/**
+	 * Point indices in Morton order.
+	 * */
+	public int[] order = new int[0];
+
+	protected int[] keys = new int[0];
+	protected int[] tmpKeys = new int[0];
+	protected int[] tmpOrder = new int[0];
+	protected final int[] counts = new int[256];
+
+	protected List<WorkRange> ranges;
+	protected int rangesPoints = -1;
+	protected int rangesThreads = -1;
+	protected Object rangesParent;
+
+	/**
+	 * Take a batch of packed xyz positions and sort them spatially.
+	 * */
+	public void prepare(float[] positions, int nPoints, float[] velocities){
+		if (positions.length < nPoints * 3 || velocities.length < nPoints * 3){
+			throw new IllegalArgumentException("Need " + (nPoints * 3) + " floats for " + nPoints + " points.");
+		}
+		this.positions = positions;
+		this.velocities = velocities;
+		this.nPoints = nPoints;
+
+		if (order.length < nPoints){
+			order = new int[nPoints];
+			keys = new int[nPoints];
+			tmpKeys = new int[nPoints];
+			tmpOrder = new int[nPoints];
+		}
+
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < nPoints; i++){
+			int o = i * 3;
+			float x = positions[o], y = positions[o + 1], z = positions[o + 2];
+			if (x < minX) minX = x;
+			if (x > maxX) maxX = x;
+			if (y < minY) minY = y;
+			if (y > maxY) maxY = y;
+			if (z < minZ) minZ = z;
+			if (z > maxZ) maxZ = z;
+		}
+
+		int cells = 1 << Morton.MAX_LEVEL;
+		float sx = cells / Math.max(maxX - minX, 1e-6f);
+		float sy = cells / Math.max(maxY - minY, 1e-6f);
+		float sz = cells / Math.max(maxZ - minZ, 1e-6f);
+		for (int i = 0; i < nPoints; i++){
+			int o = i * 3;
+			keys[i] = Morton.encode(Morton.quantize(positions[o], minX, sx, Morton.MAX_LEVEL),
+									Morton.quantize(positions[o + 1], minY, sy, Morton.MAX_LEVEL),
+									Morton.quantize(positions[o + 2], minZ, sz, Morton.MAX_LEVEL));
+			order[i] = i;
+		}
+		Morton.sort(keys, order, nPoints, 3 * Morton.MAX_LEVEL, tmpKeys, tmpOrder, counts);
+	}
+
+	/**
+	 * Split the sorted points between the given number of threads.
+	 * Positions first..last of each range index into {@link #order}.
+	 * */
+	public List<WorkRange> getRanges(Object parent, int nThreads){
+		if (ranges == null || rangesPoints != nPoints || rangesThreads != nThreads || rangesParent != parent){
+			ranges = WorkRange.divideWork(nPoints, this, parent, nThreads);
+			rangesPoints = nPoints;
+			rangesThreads = nThreads;
+			rangesParent = parent;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Store the velocity for the point at the given index.
+	 * */
+	public void setVelocity(int index, float x, float y, float z){
+		int o = index * 3;
+		velocities[o] = x;
+		velocities[o + 1] = y;
+		velocities[o + 2] = z;
+	}
+}
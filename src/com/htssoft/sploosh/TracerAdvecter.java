@@ -14,4 +14,13 @@ public interface TracerAdvecter {
 	public void updateTransform(Transform trans);
 	public void traceVortons(List<Vector3f> vortons);
 	public int getNVortons();
+	
+	/**
+	 * Sample the fluid velocity at a batch of points, on the worker threads.
+	 * 
+	 * @param positions packed xyz positions, in the same space as tracer positions.
+	 * @param nPoints how many points to sample.
+	 * @param velocities packed xyz velocities, filled in the same order as the positions.
+	 * */
+	public void sampleVelocities(float[] positions, int nPoints, float[] velocities);
 }
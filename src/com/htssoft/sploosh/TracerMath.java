@@ -3,6 +3,7 @@ package com.htssoft.sploosh;
 import java.util.List;
 
 import com.htssoft.sploosh.presentation.FluidTracer;
+import com.htssoft.sploosh.space.InfluenceBuffer;
 import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
 
@@ -12,20 +13,257 @@ public class TracerMath {
 	 * */
 	public static void computeVelocityFromVortons(Vector3f position, List<Vorton> influences, 
 											  Vector3f store, Vector3f temp1, Vector3f temp2){
+		computeVelocityFromVortons(position, influences, null, null, store, temp1, temp2);
+	}
+	
+	/**
+	 * Given a list of vortons, compute the field velocity there.
+	 * 
+	 * Vortons with an index (see {@link Vorton#getIndex()}) are read directly
+	 * from the given flat xyz position and vorticity buffers. Everything else
+	 * (super vortons, frozen vortons) is read through the Vorton itself.
+	 * */
+	public static void computeVelocityFromVortons(Vector3f position, List<Vorton> influences, float[] positions, float[] vorticities,
+											  Vector3f store, Vector3f temp1, Vector3f temp2){
 		store.zero();
 		for (int i = 0; i < influences.size(); i++){
 			Vorton v = influences.get(i);
-			computeVelocityContribution(position, v, store, temp1, temp2);
+			int index = v.getIndex();
+			if (index >= 0 && positions != null){
+				computeVelocityContribution(position, positions, vorticities, index * 3, store);
+			}
+			else {
+				computeVelocityContribution(position, v, store, temp1, temp2);
+			}
 		}
 		store.multLocal(VortonSpace.ONE_OVER_4_PI);
 	}
 
+	/**
+	 * Given a buffer of influences, compute the field velocity there.
+	 * 
+	 * Indexed influences are read from the given flat xyz position and vorticity buffers.
+	 * */
+	public static void computeVelocityFromInfluences(Vector3f position, InfluenceBuffer influences, float[] positions, float[] vorticities,
+													Vector3f store){
+		store.zero();
+		int[] indices = influences.indices;
+		for (int i = 0; i < influences.nIndices; i++){
+			computeVelocityContribution(position, positions, vorticities, indices[i] * 3, store);
+		}
+		
+		float[] inline = influences.inline;
+		for (int i = 0, o = 0; i < influences.nInline; i++, o += 6){
+			computeVelocityContribution(position, inline[o], inline[o + 1], inline[o + 2], 
+					inline[o + 3], inline[o + 4], inline[o + 5], store);
+		}
+		
+		MultipoleVorton[] multipoles = influences.multipoles;
+		for (int i = 0; i < influences.nMultipoles; i++){
+			computeMultipoleContribution(position, multipoles[i], store);
+		}
+		store.multLocal(VortonSpace.ONE_OVER_4_PI);
+	}
+	
+	/**
+	 * Given a buffer of influences, compute the field velocity there and its gradient
+	 * in one pass. store gets the velocity in [0..3) and J[k][j] = du_k/dx_j in [3..12),
+	 * row by row.
+	 * 
+	 * Multipole influences contribute their monopole and dipole terms to the gradient,
+	 * which is plenty at the distances they are used from.
+	 * */
+	public static void computeVelocityAndGradientFromInfluences(Vector3f position, InfluenceBuffer influences, 
+																float[] positions, float[] vorticities, float[] store){
+		for (int i = 0; i < 12; i++){
+			store[i] = 0f;
+		}
+		
+		int[] indices = influences.indices;
+		for (int i = 0; i < influences.nIndices; i++){
+			int o = indices[i] * 3;
+			addVelocityAndGradient(position, positions[o], positions[o + 1], positions[o + 2], 
+					vorticities[o], vorticities[o + 1], vorticities[o + 2], store);
+		}
+		
+		float[] inline = influences.inline;
+		for (int i = 0, o = 0; i < influences.nInline; i++, o += 6){
+			addVelocityAndGradient(position, inline[o], inline[o + 1], inline[o + 2], 
+					inline[o + 3], inline[o + 4], inline[o + 5], store);
+		}
+		
+		MultipoleVorton[] multipoles = influences.multipoles;
+		for (int i = 0; i < influences.nMultipoles; i++){
+			MultipoleVorton v = multipoles[i];
+			Vector3f vPos = v.getPosition();
+			Vector3f w = v.getVort();
+			float rx = position.x - vPos.x;
+			float ry = position.y - vPos.y;
+			float rz = position.z - vPos.z;
+			if (rx * rx + ry * ry + rz * rz + VortonSpace.AVOID_SINGULARITY < VortonSpace.VORTON_RADIUS_SQ){
+				addVelocityAndGradient(position, vPos.x, vPos.y, vPos.z, w.x, w.y, w.z, store);
+			}
+			else {
+				addMultipoleVelocityAndGradient(w.x, w.y, w.z, v.dipole, 0, rx, ry, rz, store, 0);
+			}
+		}
+		
+		for (int i = 0; i < 12; i++){
+			store[i] *= VortonSpace.ONE_OVER_4_PI;
+		}
+	}
+	
+	/**
+	 * Add the velocity and velocity gradient due to a vorton at (px, py, pz) with vorticity
+	 * (wx, wy, wz) to out, laid out as in {@link #computeVelocityAndGradientFromInfluences}.
+	 * 
+	 * With r = position - vorton and u = (w x r) f(|r|), the gradient is
+	 * [w]x f + (w x r) r^T f'(|r|) / |r|, using the same mollified distance law as
+	 * {@link #computeVelocityContribution(Vector3f, float, float, float, float, float, float, Vector3f)}.
+	 * */
+	protected static void addVelocityAndGradient(Vector3f position, float px, float py, float pz, 
+												 float wx, float wy, float wz, float[] out){
+		float rx = position.x - px;
+		float ry = position.y - py;
+		float rz = position.z - pz;
+		float dist2 = rx * rx + ry * ry + rz * rz + VortonSpace.AVOID_SINGULARITY;
+		float oneOverDist = 1f / FastMath.sqrt(dist2);
+		float distLaw, slope;
+		if (dist2 < VortonSpace.VORTON_RADIUS_SQ){
+			distLaw = oneOverDist / VortonSpace.VORTON_RADIUS_SQ;
+			slope = -distLaw / dist2;
+		}
+		else {
+			distLaw = oneOverDist / dist2;
+			slope = -3f * distLaw / dist2;
+		}
+		
+		float volume = VortonSpace.FOUR_THIRDS_PI * VortonSpace.VORTON_RADIUS_CUBE;
+		wx *= volume;
+		wy *= volume;
+		wz *= volume;
+		
+		float cx = wy * rz - wz * ry;
+		float cy = wz * rx - wx * rz;
+		float cz = wx * ry - wy * rx;
+		out[0] += cx * distLaw;
+		out[1] += cy * distLaw;
+		out[2] += cz * distLaw;
+		
+		float sx = cx * slope, sy = cy * slope, sz = cz * slope;
+		out[3] += sx * rx;
+		out[4] += -wz * distLaw + sx * ry;
+		out[5] += wy * distLaw + sx * rz;
+		out[6] += wz * distLaw + sy * rx;
+		out[7] += sy * ry;
+		out[8] += -wx * distLaw + sy * rz;
+		out[9] += -wy * distLaw + sz * rx;
+		out[10] += wx * distLaw + sz * ry;
+		out[11] += sz * rz;
+	}
+	
+	/**
+	 * Given a buffer of influences that has been {@link InfluenceBuffer#gather gathered}
+	 * (with the vorton volume as the scale), compute the field velocity there.
+	 * 
+	 * This is the same distance law as {@link #computeVelocityContribution(Vector3f, float, float, float, float, float, float, Vector3f)},
+	 * with the radius test folded into a max. It is split into several short, branch-free
+	 * loops over whole arrays because the JIT only turns loops into SIMD code when
+	 * their bodies are small enough to unroll and their indices are simple; one fused
+	 * loop runs scalar. The sum is kept in four partial sums so it isn't one long chain
+	 * of dependent adds.
+	 * 
+	 * Gathering costs about as much as one scalar pass over the buffer, so this pays off
+	 * when the same buffer is evaluated at several points, e.g. every vorton in a leaf.
+	 * */
+	public static void computeVelocityFromGathered(Vector3f position, InfluenceBuffer influences, Vector3f store){
+		float qx = position.x, qy = position.y, qz = position.z;
+		int n = influences.nGathered;
+		float[] px = influences.gatheredPX, py = influences.gatheredPY, pz = influences.gatheredPZ;
+		float[] wx = influences.gatheredWX, wy = influences.gatheredWY, wz = influences.gatheredWZ;
+		float[] rx = influences.scratchRX, ry = influences.scratchRY, rz = influences.scratchRZ;
+		float[] ux = influences.scratchUX, uy = influences.scratchUY, uz = influences.scratchUZ;
+		float[] law = influences.scratchLaw;
+		
+		for (int k = 0; k < n; k++){
+			rx[k] = qx - px[k];
+		}
+		for (int k = 0; k < n; k++){
+			ry[k] = qy - py[k];
+		}
+		for (int k = 0; k < n; k++){
+			rz[k] = qz - pz[k];
+		}
+		for (int k = 0; k < n; k++){
+			law[k] = rx[k] * rx[k] + ry[k] * ry[k] + rz[k] * rz[k] + VortonSpace.AVOID_SINGULARITY;
+		}
+		for (int k = 0; k < n; k++){
+			float dist2 = law[k];
+			law[k] = (1f / (float) Math.sqrt(dist2)) / Math.max(dist2, VortonSpace.VORTON_RADIUS_SQ);
+		}
+		for (int k = 0; k < n; k++){
+			ux[k] = (wy[k] * rz[k] - wz[k] * ry[k]) * law[k];
+		}
+		for (int k = 0; k < n; k++){
+			uy[k] = (wz[k] * rx[k] - wx[k] * rz[k]) * law[k];
+		}
+		for (int k = 0; k < n; k++){
+			uz[k] = (wx[k] * ry[k] - wy[k] * rx[k]) * law[k];
+		}
+		store.set(sum4(ux, n), sum4(uy, n), sum4(uz, n));
+		
+		MultipoleVorton[] multipoles = influences.multipoles;
+		for (int i = 0; i < influences.nMultipoles; i++){
+			computeMultipoleContribution(position, multipoles[i], store);
+		}
+		store.multLocal(VortonSpace.ONE_OVER_4_PI);
+	}
+	
+	/**
+	 * Sum the first n (a multiple of 4) values.
+	 * */
+	protected static float sum4(float[] values, int n){
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		for (int k = 0; k < n; k += 4){
+			s0 += values[k];
+			s1 += values[k + 1];
+			s2 += values[k + 2];
+			s3 += values[k + 3];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
 	/**
 	 * Given a vorton, find its influence on the field velocity.
 	 * */
 	public static void computeVelocityContribution(Vector3f position, Vorton v, Vector3f accum, Vector3f temp1, Vector3f temp2){
-		temp2.set(position).subtractLocal(v.getPosition());
-		float dist2 = temp2.lengthSquared() + VortonSpace.AVOID_SINGULARITY;
+		if (v instanceof MultipoleVorton){
+			computeMultipoleContribution(position, (MultipoleVorton) v, accum);
+			return;
+		}
+		Vector3f vPos = v.getPosition();
+		Vector3f vVort = v.getVort();
+		computeVelocityContribution(position, vPos.x, vPos.y, vPos.z, vVort.x, vVort.y, vVort.z, accum);
+	}
+	
+	/**
+	 * Given the vorton at the given offset into flat xyz buffers, find its influence
+	 * on the field velocity.
+	 * */
+	public static void computeVelocityContribution(Vector3f position, float[] positions, float[] vorticities, int offset, Vector3f accum){
+		computeVelocityContribution(position, positions[offset], positions[offset + 1], positions[offset + 2], 
+				vorticities[offset], vorticities[offset + 1], vorticities[offset + 2], accum);
+	}
+	
+	/**
+	 * Find the influence on the field velocity of a vorton at (px, py, pz) with vorticity (wx, wy, wz).
+	 * */
+	public static void computeVelocityContribution(Vector3f position, float px, float py, float pz, 
+												   float wx, float wy, float wz, Vector3f accum){
+		float rx = position.x - px;
+		float ry = position.y - py;
+		float rz = position.z - pz;
+		float dist2 = rx * rx + ry * ry + rz * rz + VortonSpace.AVOID_SINGULARITY;
 		float oneOverDist = 1f / FastMath.sqrt(dist2);
 		float distLaw;
 		if (dist2 < VortonSpace.VORTON_RADIUS_SQ){
@@ -35,16 +273,178 @@ public class TracerMath {
 			 distLaw = oneOverDist / dist2;
 		}
 		
-		temp1.set(v.getVort()).multLocal(VortonSpace.FOUR_THIRDS_PI * VortonSpace.VORTON_RADIUS_CUBE).crossLocal(temp2).multLocal(distLaw);
-		accum.addLocal(temp1);
+		float volume = VortonSpace.FOUR_THIRDS_PI * VortonSpace.VORTON_RADIUS_CUBE;
+		wx *= volume;
+		wy *= volume;
+		wz *= volume;
+		
+		accum.x += (wy * rz - wz * ry) * distLaw;
+		accum.y += (wz * rx - wx * rz) * distLaw;
+		accum.z += (wx * ry - wy * rx) * distLaw;
+	}
+
+	/**
+	 * Find the far field influence of an aggregate vorton with dipole (and quadrupole)
+	 * moments on the field velocity.
+	 * 
+	 * This is the Taylor expansion of w x r / |r|^3 about the multipole's position,
+	 * with R = position - multipole position, D and Q the moments, and the
+	 * terms in order:
+	 * <pre>
+	 *   monopole:   M x R / r^3
+	 *   dipole:    -eps:D / r^3 + 3 (D R) x R / r^5
+	 *   quadrupole: -3 eps:(Q R) / r^5 - 1.5 tr(Q) x R / r^5 + 7.5 (R Q R) x R / r^7
+	 * </pre>
+	 * Inside the vorton radius the expansion is meaningless, so only the
+	 * (mollified) monopole is used there.
+	 * */
+	public static void computeMultipoleContribution(Vector3f position, MultipoleVorton v, Vector3f accum){
+		Vector3f vPos = v.getPosition();
+		Vector3f w = v.getVort();
+		float rx = position.x - vPos.x;
+		float ry = position.y - vPos.y;
+		float rz = position.z - vPos.z;
+		float dist2 = rx * rx + ry * ry + rz * rz + VortonSpace.AVOID_SINGULARITY;
+		if (dist2 < VortonSpace.VORTON_RADIUS_SQ){
+			computeVelocityContribution(position, vPos.x, vPos.y, vPos.z, w.x, w.y, w.z, accum);
+			return;
+		}
+		
+		float oneOverDist = 1f / FastMath.sqrt(dist2);
+		float inv3 = oneOverDist / dist2;
+		float inv5 = inv3 / dist2;
+		
+		//monopole
+		float ux = (w.y * rz - w.z * ry) * inv3;
+		float uy = (w.z * rx - w.x * rz) * inv3;
+		float uz = (w.x * ry - w.y * rx) * inv3;
+		
+		//dipole
+		float[] d = v.dipole;
+		float ex = d[5] - d[7];
+		float ey = d[6] - d[2];
+		float ez = d[1] - d[3];
+		float ax = d[0] * rx + d[1] * ry + d[2] * rz;
+		float ay = d[3] * rx + d[4] * ry + d[5] * rz;
+		float az = d[6] * rx + d[7] * ry + d[8] * rz;
+		ux += -ex * inv3 + 3f * (ay * rz - az * ry) * inv5;
+		uy += -ey * inv3 + 3f * (az * rx - ax * rz) * inv5;
+		uz += -ez * inv3 + 3f * (ax * ry - ay * rx) * inv5;
+		
+		float[] q = v.quadrupole;
+		if (q != null){
+			float inv7 = inv5 / dist2;
+			//B[l][m] = Q[l][m][c] R_c
+			float bxx = q[0] * rx + q[1] * ry + q[2] * rz;
+			float bxy = q[1] * rx + q[3] * ry + q[4] * rz;
+			float bxz = q[2] * rx + q[4] * ry + q[5] * rz;
+			float byx = q[6] * rx + q[7] * ry + q[8] * rz;
+			float byy = q[7] * rx + q[9] * ry + q[10] * rz;
+			float byz = q[8] * rx + q[10] * ry + q[11] * rz;
+			float bzx = q[12] * rx + q[13] * ry + q[14] * rz;
+			float bzy = q[13] * rx + q[15] * ry + q[16] * rz;
+			float bzz = q[14] * rx + q[16] * ry + q[17] * rz;
+			
+			float fx = byz - bzy;
+			float fy = bzx - bxz;
+			float fz = bxy - byx;
+			
+			float tx = q[0] + q[3] + q[5];
+			float ty = q[6] + q[9] + q[11];
+			float tz = q[12] + q[15] + q[17];
+			
+			float sx = bxx * rx + bxy * ry + bxz * rz;
+			float sy = byx * rx + byy * ry + byz * rz;
+			float sz = bzx * rx + bzy * ry + bzz * rz;
+			
+			ux += -3f * fx * inv5 - 1.5f * (ty * rz - tz * ry) * inv5 + 7.5f * (sy * rz - sz * ry) * inv7;
+			uy += -3f * fy * inv5 - 1.5f * (tz * rx - tx * rz) * inv5 + 7.5f * (sz * rx - sx * rz) * inv7;
+			uz += -3f * fz * inv5 - 1.5f * (tx * ry - ty * rx) * inv5 + 7.5f * (sx * ry - sy * rx) * inv7;
+		}
+		
+		float volume = VortonSpace.FOUR_THIRDS_PI * VortonSpace.VORTON_RADIUS_CUBE;
+		accum.x += ux * volume;
+		accum.y += uy * volume;
+		accum.z += uz * volume;
+	}
+
+	/**
+	 * Add the velocity and velocity Jacobian due to a multipole with monopole (wx, wy, wz)
+	 * and dipole moments dipole[d..d + 9), at offset (rx, ry, rz) from its position,
+	 * to out[o..o + 12): velocity first, then J[k][j] = du_k/dx_j row by row.
+	 *
+	 * The velocity is the monopole and dipole terms of
+	 * {@link #computeMultipoleContribution}; the Jacobian is their derivative.
+	 * It is not scaled by 1 / (4 pi).
+	 * */
+	public static void addMultipoleVelocityAndGradient(float wx, float wy, float wz, float[] dip, int d,
+			float rx, float ry, float rz, float[] out, int o){
+
+		float r2 = rx * rx + ry * ry + rz * rz;
+		float inv = 1f / (float) Math.sqrt(r2);
+		float inv3 = inv / r2;
+		float inv5 = inv3 / r2;
+		float inv7 = inv5 / r2;
+
+		//monopole: u = w x R / r^3, J = [w]x / r^3 - 3 (w x R) R^T / r^5
+		float cx = wy * rz - wz * ry;
+		float cy = wz * rx - wx * rz;
+		float cz = wx * ry - wy * rx;
+		float ux = cx * inv3, uy = cy * inv3, uz = cz * inv3;
+		float j00 = -3f * cx * rx * inv5, j01 = -wz * inv3 - 3f * cx * ry * inv5, j02 = wy * inv3 - 3f * cx * rz * inv5;
+		float j10 = wz * inv3 - 3f * cy * rx * inv5, j11 = -3f * cy * ry * inv5, j12 = -wx * inv3 - 3f * cy * rz * inv5;
+		float j20 = -wy * inv3 - 3f * cz * rx * inv5, j21 = wx * inv3 - 3f * cz * ry * inv5, j22 = -3f * cz * rz * inv5;
+
+		//dipole: u = -e / r^3 + 3 (a x R) / r^5, with e = eps:D and a = D R
+		float d0 = dip[d], d1 = dip[d + 1], d2 = dip[d + 2];
+		float d3 = dip[d + 3], d4 = dip[d + 4], d5 = dip[d + 5];
+		float d6 = dip[d + 6], d7 = dip[d + 7], d8 = dip[d + 8];
+		float ex = d5 - d7, ey = d6 - d2, ez = d1 - d3;
+		float ax = d0 * rx + d1 * ry + d2 * rz;
+		float ay = d3 * rx + d4 * ry + d5 * rz;
+		float az = d6 * rx + d7 * ry + d8 * rz;
+		float bx = ay * rz - az * ry;
+		float by = az * rx - ax * rz;
+		float bz = ax * ry - ay * rx;
+		ux += -ex * inv3 + 3f * bx * inv5;
+		uy += -ey * inv3 + 3f * by * inv5;
+		uz += -ez * inv3 + 3f * bz * inv5;
+
+		//J[k][j] += 3 e_k R_j / r^5 + 3 ((D[:,j] x R)_k + (a x e_j)_k) / r^5 - 15 (a x R)_k R_j / r^7
+		float t5 = 3f * inv5, t7 = 15f * inv7;
+		//column j = x: D[:,x] = (d0, d3, d6), a x e_x = (0, az, -ay)
+		j00 += (ex * rx + (d3 * rz - d6 * ry)) * t5 - bx * rx * t7;
+		j10 += (ey * rx + (d6 * rx - d0 * rz) + az) * t5 - by * rx * t7;
+		j20 += (ez * rx + (d0 * ry - d3 * rx) - ay) * t5 - bz * rx * t7;
+		//column j = y: D[:,y] = (d1, d4, d7), a x e_y = (-az, 0, ax)
+		j01 += (ex * ry + (d4 * rz - d7 * ry) - az) * t5 - bx * ry * t7;
+		j11 += (ey * ry + (d7 * rx - d1 * rz)) * t5 - by * ry * t7;
+		j21 += (ez * ry + (d1 * ry - d4 * rx) + ax) * t5 - bz * ry * t7;
+		//column j = z: D[:,z] = (d2, d5, d8), a x e_z = (ay, -ax, 0)
+		j02 += (ex * rz + (d5 * rz - d8 * ry) + ay) * t5 - bx * rz * t7;
+		j12 += (ey * rz + (d8 * rx - d2 * rz) - ax) * t5 - by * rz * t7;
+		j22 += (ez * rz + (d2 * ry - d5 * rx)) * t5 - bz * rz * t7;
+
+		float volume = VortonSpace.FOUR_THIRDS_PI * VortonSpace.VORTON_RADIUS_CUBE;
+		out[o] += ux * volume; out[o + 1] += uy * volume; out[o + 2] += uz * volume;
+		out[o + 3] += j00 * volume; out[o + 4] += j01 * volume; out[o + 5] += j02 * volume;
+		out[o + 6] += j10 * volume; out[o + 7] += j11 * volume; out[o + 8] += j12 * volume;
+		out[o + 9] += j20 * volume; out[o + 10] += j21 * volume; out[o + 11] += j22 * volume;
 	}
 
 	public static void moveTracer(FluidTracer tracer, Vector3f fluidVelocity, ThreadVars vars, float tpf){
+		moveTracer(tracer, fluidVelocity, vars, tpf, VortonSpace.DT);
+	}
+	
+	/**
+	 * Move a tracer, aging it by at most maxStep (the simulation's step length).
+	 * */
+	public static void moveTracer(FluidTracer tracer, Vector3f fluidVelocity, ThreadVars vars, float tpf, float maxStep){
 		Vector3f inertialVel = vars.vec[0];
 		Vector3f drag = vars.vec[1];
 		Vector3f tempVel = vars.vec[2];
 
-		float step = VortonSpace.DT < tpf ? VortonSpace.DT : tpf;
+		float step = maxStep < tpf ? maxStep : tpf;
 
 		drag.set(tracer.inertia);
 		drag.subtractLocal(fluidVelocity);
@@ -74,8 +474,16 @@ public class TracerMath {
 	 * Move a tracer.
 	 * */
 	public static void advectTracer(FluidTracer tracer, List<Vorton> influences, ThreadVars vars, float currentTPF){
+		advectTracer(tracer, influences, null, null, vars, currentTPF);
+	}
+	
+	/**
+	 * Move a tracer, reading indexed vortons from the given flat xyz buffers.
+	 * */
+	public static void advectTracer(FluidTracer tracer, List<Vorton> influences, float[] positions, float[] vorticities, 
+									ThreadVars vars, float currentTPF){
 		Vector3f fieldVel = vars.temp0;
-		computeVelocityFromVortons(tracer.position, influences, fieldVel, vars.temp1, vars.temp2);
+		computeVelocityFromVortons(tracer.position, influences, positions, vorticities, fieldVel, vars.temp1, vars.temp2);
 		moveTracer(tracer, fieldVel, vars, currentTPF);
 	}
 
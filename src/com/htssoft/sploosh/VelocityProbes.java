@@ -0,0 +1,195 @@
+package com.htssoft.sploosh;
+
+import com.jme3.math.Vector3f;
+
+/**
+ * A registry of fixed sample points (sails, smoke stacks, flags) whose
+ * velocity and vorticity are evaluated once per simulation step.
+ *
+ * Probes are evaluated during vorton advection (see {@link VortonSpace#getProbes()}).
+ * Results are written into a back array and published by swapping it with the
+ * front one, so readers never lock: they see the whole of one step's results.
+ * A reader that holds on to {@link #getResults()} should copy out what it needs
+ * before the next step, since that array becomes the back array again.
+ *
+ * Probe ids are slot numbers, and are reused after {@link #remove(int)}.
+ * */
+public class VelocityProbes {
+	/**
+	 * Floats per probe in the result arrays: velocity xyz, then vorticity xyz.
+	 * */
+	public static final int STRIDE = 6;
+
+	protected float[] positions = new float[3 * 16];
+	protected boolean[] live = new boolean[16];
+	protected int nSlots;
+	protected int nLive;
+
+	/*
+	 * Snapshot taken at the start of each pass, so probes can be added and
+	 * moved while a step is running.
+	 * */
+	protected float[] passPositions = new float[0];
+	protected boolean[] passLive = new boolean[0];
+	protected int passSlots;
+
+	protected float[] back = new float[0];
+	protected volatile float[] front = new float[0];
+	protected volatile int generation;
+
+	/**
+	 * Register a probe at the given position, in the same space as tracers.
+	 *
+	 * @return the probe's id.
+	 * */
+	public synchronized int add(Vector3f position){
+		int slot = 0;
+		while (slot < nSlots && live[slot]){
+			++slot;
+		}
+		if (slot == nSlots){
+			if (nSlots == live.length){
+				boolean[] grownLive = new boolean[live.length * 2];
+				System.arraycopy(live, 0, grownLive, 0, nSlots);
+				live = grownLive;
+				float[] grownPositions = new float[positions.length * 2];
+				System.arraycopy(positions, 0, grownPositions, 0, nSlots * 3);
+				positions = grownPositions;
+			}
+			++nSlots;
+		}
+		live[slot] = true;
+		++nLive;
+		setPosition(slot, position);
+		return slot;
+	}
+
+	/**
+	 * Unregister a probe. Its id may be handed out again.
+	 * */
+	public synchronized void remove(int id){
+		if (id < 0 || id >= nSlots || !live[id]){
+			return;
+		}
+		live[id] = false;
+		--nLive;
+		while (nSlots > 0 && !live[nSlots - 1]){
+			--nSlots;
+		}
+	}
+
+	/**
+	 * Move a probe. The new position is used from the next step on.
+	 * */
+	public synchronized void setPosition(int id, Vector3f position){
+		int o = id * 3;
+		positions[o] = position.x;
+		positions[o + 1] = position.y;
+		positions[o + 2] = position.z;
+	}
+
+	/**
+	 * How many probes are registered?
+	 * */
+	public synchronized int size(){
+		return nLive;
+	}
+
+	/**
+	 * Get a probe's velocity as of the last completed step.
+	 *
+	 * @return false if the probe hasn't been evaluated yet.
+	 * */
+	public boolean getVelocity(int id, Vector3f store){
+		return read(id, 0, store);
+	}
+
+	/**
+	 * Get a probe's vorticity as of the last completed step.
+	 *
+	 * @return false if the probe hasn't been evaluated yet.
+	 * */
+	public boolean getVorticity(int id, Vector3f store){
+		return read(id, 3, store);
+	}
+
+	protected boolean read(int id, int field, Vector3f store){
+		float[] results = front;
+		int o = id * STRIDE + field;
+		if (id < 0 || o + 3 > results.length){
+			return false;
+		}
+		store.set(results[o], results[o + 1], results[o + 2]);
+		return true;
+	}
+
+	/**
+	 * Get the last published results, {@link #STRIDE} floats per probe id.
+	 * */
+	public float[] getResults(){
+		return front;
+	}
+
+	/**
+	 * Get the number of results published so far. Readers can compare this
+	 * between frames to tell whether a new step has finished.
+	 * */
+	public int getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * Snapshot the probes for one pass.
+	 *
+	 * @return how many slots to evaluate.
+	 * */
+	protected synchronized int beginPass(){
+		passSlots = nSlots;
+		if (passLive.length < nSlots){
+			passLive = new boolean[live.length];
+			passPositions = new float[positions.length];
+		}
+		System.arraycopy(live, 0, passLive, 0, nSlots);
+		System.arraycopy(positions, 0, passPositions, 0, nSlots * 3);
+		if (back.length < nSlots * STRIDE){
+			back = new float[live.length * STRIDE];
+		}
+		return passSlots;
+	}
+
+	protected boolean isLive(int slot){
+		return passLive[slot];
+	}
+
+	protected void getPosition(int slot, Vector3f store){
+		int o = slot * 3;
+		store.set(passPositions[o], passPositions[o + 1], passPositions[o + 2]);
+	}
+
+	protected void store(int slot, Vector3f velocity, float vx, float vy, float vz){
+		int o = slot * STRIDE;
+		back[o] = velocity.x;
+		back[o + 1] = velocity.y;
+		back[o + 2] = velocity.z;
+		back[o + 3] = vx;
+		back[o + 4] = vy;
+		back[o + 5] = vz;
+	}
+
+	protected void clear(int slot){
+		int o = slot * STRIDE;
+		for (int i = 0; i < STRIDE; i++){
+			back[o + i] = 0f;
+		}
+	}
+
+	/**
+	 * Swap the results written this pass to the front.
+	 * */
+	protected void publish(){
+		float[] t = front;
+		front = back;
+		back = t;
+		++generation;
+	}
+}
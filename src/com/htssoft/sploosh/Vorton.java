@@ -1,5 +1,6 @@
 package com.htssoft.sploosh;
 
+import com.htssoft.sploosh.space.bh.Body;
 import com.jme3.math.Vector3f;
 
 /**
@@ -8,12 +9,16 @@ import com.jme3.math.Vector3f;
  * For more information, see <a href="http://software.intel.com/en-us/articles/fluid-simulation-for-video-games-part-3/">Fluid
  * Simulation for Video Games</a> (Dr. Michael J. Gourlay).
  * */
-public abstract class Vorton {
+public abstract class Vorton implements Body {
 	
 	/**
 	 * Get a reference to the current position.
 	 * 
-	 * For a {@link VortonSpace.BufferedVorton}, this is the back buffer position.
+	 * For a {@link VortonSpace.BufferedVorton}, this is a copy of the back
+	 * buffer position, in one vector per vorton that every call rewrites.
+	 * Read it straight away, from one thread at a time; writes to it are lost
+	 * (use {@link #setPosition(Vector3f)}). Use {@link #getPosition(Vector3f)}
+	 * to keep the value or to read from several threads.
 	 * */
 	abstract public Vector3f getPosition();
 	
@@ -36,7 +41,9 @@ public abstract class Vorton {
 	/**
 	 * Get a reference to the current vorticity.
 	 * 
-	 * For a {@link VortonSpace.BufferedVorton}, this is the back buffer vorticity.
+	 * For a {@link VortonSpace.BufferedVorton}, this is a shared, rewritten copy
+	 * of the back buffer vorticity, as with {@link #getPosition()}; use
+	 * {@link #getVort(Vector3f)} to keep it or to read from several threads.
 	 * */
 	abstract public Vector3f getVort();
 	
@@ -46,6 +53,14 @@ public abstract class Vorton {
 	 * */
 	abstract public void setVort(Vector3f value);
 	
+	/**
+	 * Get the index of this vorton in its simulation's flat position/vorticity
+	 * buffers, or -1 if it isn't backed by any (e.g. a {@link SimpleVorton}).
+	 * */
+	public int getIndex(){
+		return -1;
+	}
+	
 	public String toString(){
 		return String.format("P:%s,V:%s", getPosition().toString(), getVort().toString());
 	}
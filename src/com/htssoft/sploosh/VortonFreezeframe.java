@@ -4,7 +4,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.htssoft.sploosh.presentation.FluidTracer;
-import com.htssoft.sploosh.space.OTree;
+import com.htssoft.sploosh.space.InfluenceBuffer;
+import com.htssoft.sploosh.space.VortonTree;
 import com.htssoft.sploosh.threading.Kernel;
 import com.htssoft.sploosh.threading.StaticThreadGroup;
 import com.htssoft.sploosh.threading.WorkRange;
@@ -14,16 +15,17 @@ import com.jme3.math.Vector3f;
 public class VortonFreezeframe implements TracerAdvecter {
 	protected final static StaticThreadGroup<WorkRange> advectionThreads = 
 		new StaticThreadGroup<WorkRange>("FreezeframeAdvection", TracerKernel.class);
-	OTree vortonTree;
+	VortonTree vortonTree;
 	protected FluidTracer[] currentWorkingTracers;
 
 	protected boolean debugPrintln = true;
 	protected float currentTPF;
 	protected Transform objectTransform = new Transform();
 	protected ArrayList<Vorton> vortonList;
+	protected final SampleBatch sampleBatch = new SampleBatch();
 
 	
-	public VortonFreezeframe(OTree vortons){
+	public VortonFreezeframe(VortonTree vortons){
 		vortonTree = vortons;
 	}
 	
@@ -89,6 +91,18 @@ public class VortonFreezeframe implements TracerAdvecter {
 		advectionThreads.submitWork(ranges, this);
 	}
 	
+	/**
+	 * Sample the velocity at a batch of points, with the same transform
+	 * handling as tracer advection.
+	 * */
+	public void sampleVelocities(float[] positions, int nPoints, float[] velocities){
+		if (nPoints <= 0){
+			return;
+		}
+		sampleBatch.prepare(positions, nPoints, velocities);
+		advectionThreads.submitWork(sampleBatch.getRanges(this, advectionThreads.nThreads()), this);
+	}
+	
 	public void traceVortons(List<Vector3f> vortons){
 		if (vortonList == null){
 			vortonList = new ArrayList<Vorton>(getNVortons());
@@ -104,6 +118,7 @@ public class VortonFreezeframe implements TracerAdvecter {
 		ThreadVars vars = new ThreadVars();
 		Vector3f workingVel = new Vector3f(), transformedPos = new Vector3f();
 		ArrayList<Vorton> localVortons = new ArrayList<Vorton>(100);
+		InfluenceBuffer influences = new InfluenceBuffer();
 		
 		public TracerKernel(){
 			
@@ -111,6 +126,10 @@ public class VortonFreezeframe implements TracerAdvecter {
 		
 		public void process(WorkRange workRange){
 			VortonFreezeframe vff = (VortonFreezeframe) workRange.parent;
+			if (workRange.workingSet instanceof SampleBatch){
+				sample(vff, (SampleBatch) workRange.workingSet, workRange);
+				return;
+			}
 			
 			for (int i = workRange.first; i <= workRange.last; i++){
 				FluidTracer tracer = vff.currentWorkingTracers[i];
@@ -132,5 +151,21 @@ public class VortonFreezeframe implements TracerAdvecter {
 				localVortons.clear(); //be nice to garbage collection.
 			}
 		}
+		
+		protected void sample(VortonFreezeframe vff, SampleBatch batch, WorkRange workRange){
+			for (int k = workRange.first; k <= workRange.last; k++){
+				int i = batch.order[k];
+				int o = i * 3;
+				transformedPos.set(batch.positions[o], batch.positions[o + 1], batch.positions[o + 2]);
+				vff.objectTransform.transformInverseVector(transformedPos, transformedPos);
+				
+				influences.clear();
+				vff.vortonTree.getInfluences(transformedPos, VortonSpace.VORTON_RADIUS, -1, influences);
+				TracerMath.computeVelocityFromInfluences(transformedPos, influences, null, null, workingVel);
+				
+				vff.objectTransform.getRotation().multLocal(workingVel);
+				batch.setVelocity(i, workingVel.x, workingVel.y, workingVel.z);
+			}
+		}
 	}
 }
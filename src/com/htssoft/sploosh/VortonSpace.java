@@ -1,13 +1,22 @@
 package com.htssoft.sploosh;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.htssoft.sploosh.presentation.FluidTracer;
+import com.htssoft.sploosh.space.InfluenceBuffer;
 import com.htssoft.sploosh.space.OTree;
 import com.htssoft.sploosh.space.OTreeNode;
+import com.htssoft.sploosh.space.UniformGrid;
+import com.htssoft.sploosh.space.VortonTree;
+import com.htssoft.sploosh.space.bh.VortonBHTree;
+import com.htssoft.sploosh.space.fmm.VortonFMM;
+import com.htssoft.sploosh.space.vic.VortonVIC;
 import com.htssoft.sploosh.threading.Kernel;
 import com.htssoft.sploosh.threading.StaticThreadGroup;
 import com.htssoft.sploosh.threading.WorkRange;
@@ -16,45 +25,222 @@ import com.jme3.math.Transform;
 import com.jme3.math.Vector3f;
 
 public class VortonSpace implements TracerAdvecter {
+	/**
+	 * How vorton and tracer velocities are computed.
+	 * */
+	public enum VelocityMethod {
+		/**
+		 * Query the vorton tree (the one also used for diffusion).
+		 * */
+		TREE,
+		/**
+		 * Query a Barnes-Hut tree, opening cells by {@link VortonSpace#setBarnesHutTheta(float)}.
+		 * */
+		BARNES_HUT,
+		/**
+		 * Use the fast multipole engine: a near field sum plus one local
+		 * expansion evaluation per point.
+		 * */
+		FMM,
+		/**
+		 * Solve for velocity on a lattice (vortex-in-cell, with FFTs) and
+		 * interpolate it. Cost per step doesn't depend on the number of vortons,
+		 * but detail finer than the lattice spacing is smoothed out.
+		 * */
+		VORTEX_IN_CELL
+	}
+	
+	/**
+	 * The phases of a simulation step, for {@link VortonSpace#getPhaseMillis(StepPhase)}.
+	 * */
+	public enum StepPhase {
+		/**
+		 * Bounds, vorton tree, and the velocity method's own structures.
+		 * */
+		TREE,
+		STRETCH,
+		DIFFUSE,
+		/**
+		 * Vorton advection, including probes.
+		 * */
+		ADVECT
+	}
 	
+	/**
+	 * Tracers, batch samples and leaf-by-leaf tracers: work for the game thread,
+	 * which mustn't wait behind a step in asynchronous mode.
+	 * */
 	protected static final StaticThreadGroup<WorkRange> tracerThreads = 
 		new StaticThreadGroup<WorkRange>("TracerThreads", TracerKernel.class);
 	
+	/**
+	 * Everything else that a step (or the tracer grid) does over ranges, by {@link #simWork}.
+	 * */
 	protected static final StaticThreadGroup<WorkRange> advectThreads = 
 		new StaticThreadGroup<WorkRange>("AdvectThreads", AdvectKernel.class);
 	
 	protected static final StaticThreadGroup<DiffuseWorkItem> diffuseThreads = 
 		new StaticThreadGroup<DiffuseWorkItem>("DiffuseThreads", DiffuseKernel.class);
 	
+	protected static final int WORK_ADVECT = 0;
+	protected static final int WORK_LEAVES = 1;
+	protected static final int WORK_STRETCH = 2;
+	protected static final int WORK_BOUNDS = 3;
+	protected static final int WORK_GRID = 4;
+	
+	/**
+	 * How many ranges of leaves each thread gets, so uneven leaves even out.
+	 * */
+	protected static final int LEAF_RANGES_PER_THREAD = 4;
+	
+	/**
+	 * Below this many vortons, bounds are computed on the calling thread.
+	 * */
+	protected static final int PARALLEL_BOUNDS_THRESHOLD = 16384;
+	
 	public static final float VORTON_RADIUS = 0.1f;
 	public static final float VORTON_RADIUS_SQ = VORTON_RADIUS * VORTON_RADIUS;
 	public static final float VORTON_RADIUS_CUBE = VORTON_RADIUS * VORTON_RADIUS * VORTON_RADIUS;
 	public static final float AVOID_SINGULARITY = 0.00001f;
 	public static final float ONE_OVER_4_PI = 1f / (4f * FastMath.PI);
 	public static final float FOUR_THIRDS_PI = (4f / 3f) * FastMath.PI;
-	public static final float JACOBIAN_D = 0.001f;
 	public static final float DT = 1f / 60f;
-	public static final Vector3f[] jacobianOffsets = {
-		new Vector3f(-JACOBIAN_D, 0, 0),
-		new Vector3f(JACOBIAN_D, 0, 0),
-		new Vector3f(0, -JACOBIAN_D, 0),
-		new Vector3f(0, JACOBIAN_D, 0),
-		new Vector3f(0, 0, -JACOBIAN_D),
-		new Vector3f(0, 0, JACOBIAN_D)
-	};
 	
 	
 	protected Vorton[] vortons;
 	
-	protected AtomicReference<Vector3f[]> frontPos = new AtomicReference<Vector3f[]>();
-	protected AtomicReference<Vector3f[]> backPos = new AtomicReference<Vector3f[]>();
-	protected AtomicReference<Vector3f[]> frontVort = new AtomicReference<Vector3f[]>();
-	protected AtomicReference<Vector3f[]> backVort = new AtomicReference<Vector3f[]>();
+	/*
+	 * Vorton state is stored as flat xyz-interleaved arrays, three floats
+	 * per vorton, so the kernels can walk it by index instead of chasing
+	 * a Vector3f per vorton. Front and back are swapped by reference.
+	 * 
+	 * These are handed to the worker threads through the StaticThreadGroup
+	 * queues, which gives us the visibility the AtomicReferences used to.
+	 * */
+	protected float[] frontPos;
+	protected float[] backPos;
+	protected float[] frontVort;
+	protected float[] backVort;
+	/**
+	 * Stretched vorticity, for the rest of the step once stretching has run.
+	 * */
+	protected float[] stretchVort;
+	/**
+	 * The vorticity the step in flight works from: the back buffer, or
+	 * stretchVort once stretching has run. Diffusion and vorton advection read
+	 * this; tracers, probes and everything else outside of the step read the
+	 * back buffer, which stays as the last step left it.
+	 * */
+	protected float[] stepVort;
 	
-	protected OTree vortonTree;
+	protected VortonTree vortonTree;
+	protected VelocityMethod velocityMethod = VelocityMethod.TREE;
+	protected VortonBHTree bhTree;
+	protected float barnesHutTheta = 0.5f;
+	protected int barnesHutMultipoleOrder = 0;
+	protected VortonFMM fmm;
+	protected VortonVIC vic;
+	protected boolean leafTraversal = false;
+	protected boolean stretching = false;
+	/**
+	 * The tree's leaf groups as of the last diffusion or adaptive step, and the largest one's size.
+	 * */
+	protected final ArrayList<List<Vorton>> leafGroups = new ArrayList<List<Vorton>>();
+	protected volatile int maxLeafGroup = 1;
+	protected int[] tracerOrder = new int[0];
+	protected int[] tracerSlots = new int[0];
+	/**
+	 * Leaf-by-leaf scratch, kept between calls: the leaves tracers were binned into
+	 * and where each one's tracers start in tracerOrder, and work items for both.
+	 * */
+	protected int binPass = 0;
+	protected final ArrayList<OTreeNode> tracerLeaves = new ArrayList<OTreeNode>();
+	protected int[] tracerStarts = new int[0];
+	protected int[] tracerFill = new int[0];
+	protected final ArrayList<LeafWorkItem> tracerLeafWork = new ArrayList<LeafWorkItem>();
+	protected final ArrayList<OTreeNode> vortonLeaves = new ArrayList<OTreeNode>();
+	protected final ArrayList<LeafWorkItem> vortonLeafWork = new ArrayList<LeafWorkItem>();
+	/**
+	 * What the advection threads are doing with ranges that aren't probes.
+	 * Only the thread that steps submits to them, so this is set before each submission.
+	 * */
+	protected int simWork = WORK_ADVECT;
+	protected final Vector3f boundsMin = new Vector3f();
+	protected final Vector3f boundsMax = new Vector3f();
+	protected boolean tracerGrid = false;
+	protected float tracerGridSpacing = VORTON_RADIUS * 0.5f;
+	protected UniformGrid velocityGrid;
+	protected boolean velocityGridStale = true;
+	protected final Vector3f treeMin = new Vector3f();
+	protected final Vector3f treeMax = new Vector3f();
 	protected int gridResolution;
+	protected volatile int pendingGridResolution;
+	protected final float[] phaseMillis = new float[StepPhase.values().length];
+	protected final SampleBatch sampleBatch = new SampleBatch();
+	protected final VelocityProbes probes = new VelocityProbes();
 	
 	protected float timeAccumulator = 0f;
+	protected float timeStep = DT;
+	protected boolean fixedTimestep = false;
+	protected int maxSubsteps = 4;
+	protected boolean interpolating = false;
+	protected int timeSlices = 1;
+	/**
+	 * The next slice of the step in flight, or -1 between steps.
+	 * */
+	protected int slice = -1;
+	protected int stepSlices;
+	protected boolean adaptiveTimestep = false;
+	protected float courantNumber = 0.5f;
+	protected float minTimeStep = 1f / 240f;
+	protected float maxTimeStep = 1f / 15f;
+	protected float maxVortonSpeed = 0f;
+	/**
+	 * Per-vorton velocity, xyz, from the advection pass of an adaptive step.
+	 * */
+	protected float[] vortonVelocities;
+	protected boolean recordingVelocities = false;
+	protected boolean multiRate = false;
+	protected int maxRateClass = 3;
+	/**
+	 * Per vorton, the step count at which it is next advected.
+	 * */
+	protected int[] nextAdvection;
+	protected int stepCount = 0;
+	protected boolean rateClassReset = true;
+	/**
+	 * Whether the step in flight uses rate classes: multi-rate, and not adaptive.
+	 * */
+	protected boolean rateStepping = false;
+	protected boolean sleeping = false;
+	protected float sleepVorticity = 0.01f;
+	protected float sleepSpeed = 0.05f;
+	protected int sleepDelay = 30;
+	protected int sleepCheckInterval = 8;
+	/**
+	 * Per vorton, how many steps in a row it has been quiet, up to sleepDelay (asleep).
+	 * */
+	protected int[] quietSteps;
+	protected boolean sleepReset = true;
+	protected boolean trackingActivity = false;
+	protected int activeVortons;
+	protected boolean deterministic = false;
+	protected volatile long stateHash = 0L;
+	protected final Random random = new Random();
+	protected UniformGrid previousVelocityGrid;
+	
+	/*
+	 * Asynchronous mode. The simulation thread owns everything above; the
+	 * game thread only reads published snapshots.
+	 * */
+	protected volatile boolean asynchronous = false;
+	protected volatile Thread simulationThread;
+	protected volatile RuntimeException simulationFailure;
+	protected final ConcurrentLinkedQueue<Runnable> simulationTasks = new ConcurrentLinkedQueue<Runnable>();
+	protected final ArrayList<FieldSnapshot> snapshots = new ArrayList<FieldSnapshot>();
+	protected volatile FieldSnapshot published;
+	protected FieldSnapshot readSnapshot;
+	protected float readAlpha;
 	protected float viscosity = 0.5f;
 	protected float currentTPF = 0f;
 	protected boolean debugPrintln = false;
@@ -76,537 +262,2030 @@ public class VortonSpace implements TracerAdvecter {
 	public VortonSpace(int nVortons, float viscosity, int gridResolution){
 		this.viscosity = viscosity;
 		this.gridResolution = gridResolution;
+		this.pendingGridResolution = gridResolution;
 		vortons = new Vorton[nVortons];
 		for (int i = 0; i < nVortons; i++){
 			vortons[i] = new BufferedVorton(i);
 		}
 		
-		Vector3f[] positions = new Vector3f[nVortons];
-		Vector3f[] backPositions = new Vector3f[nVortons];
-		Vector3f[] vorticities = new Vector3f[nVortons];
-		Vector3f[] backVorticities = new Vector3f[nVortons];
-		
-		for (int i = 0; i < nVortons; i++){
-			positions[i] = new Vector3f();
-			backPositions[i] = new Vector3f();
-			vorticities[i] = new Vector3f();
-			backVorticities[i] = new Vector3f();
-		}
-		
-		frontPos.set(positions);
-		backPos.set(backPositions);
-		frontVort.set(vorticities);
-		backVort.set(backVorticities);
+		frontPos = new float[nVortons * 3];
+		backPos = new float[nVortons * 3];
+		frontVort = new float[nVortons * 3];
+		backVort = new float[nVortons * 3];
+		stepVort = backVort;
 	}
 	
-	public void setHasDriver(boolean hasDriver){
-		this.hasDriver = hasDriver;
+	/**
+	 * Set the spatial index used for the vortons, e.g. a {@link com.htssoft.sploosh.space.LinearOTree}.
+	 * 
+	 * By default, an {@link OTree} is created on the first build.
+	 * */
+	public void setVortonTree(VortonTree tree){
+		this.vortonTree = tree;
 	}
 	
-	public boolean hasDriver(){
-		return hasDriver;
+	/**
+	 * Choose how velocities are computed for advection and tracers.
+	 * Diffusion always uses the vorton tree.
+	 * */
+	public void setVelocityMethod(VelocityMethod method){
+		if (method != velocityMethod){ //these would be stale by the time we switch back to them.
+			bhTree = null;
+			fmm = null;
+			vic = null;
+		}
+		this.velocityMethod = method;
+	}
+	
+	public VelocityMethod getVelocityMethod(){
+		return velocityMethod;
 	}
 	
 	/**
-	 * Set the input transform. This will be used to transform
-	 * all vector quantity inputs.
+	 * Set the Barnes-Hut opening angle: a cell is used as a single super vorton
+	 * when its width over its distance to the query point is below theta.
+	 * 0 is exact (and slow), around 1 is fast and rough.
 	 * */
-	public void setInputTransform(Transform xform){
-		this.inputTransform.set(xform);
+	public void setBarnesHutTheta(float theta){
+		this.barnesHutTheta = theta;
+	}
+	
+	public float getBarnesHutTheta(){
+		return barnesHutTheta;
 	}
 	
 	/**
-	 * Get the number of vortons in the fluid simulation.
+	 * Set the order of the Barnes-Hut super vortons: 0 for plain summed vorticity,
+	 * 1 to add dipole moments, 2 to add quadrupole moments. Higher orders allow
+	 * a larger theta for the same accuracy.
+	 * 
+	 * For the vorton tree, see {@link OTree#setMultipoleOrder(int)}.
 	 * */
-	public int getNVortons(){
-		return vortons.length;
+	public void setBarnesHutMultipoleOrder(int order){
+		if (order != barnesHutMultipoleOrder){
+			bhTree = null;
+		}
+		this.barnesHutMultipoleOrder = order;
 	}
 	
-	protected void backCopy(){
-		Vector3f[] fPos = frontPos.get();
-		Vector3f[] bPos = backPos.get();
-		
-		Vector3f[] fVort = frontVort.get();
-		Vector3f[] bVort = backVort.get();
-		
-		for (int i = 0; i < fPos.length; i++){
-			bPos[i].set(fPos[i]);
-			bVort[i].set(fVort[i]);
-		}
+	public int getBarnesHutMultipoleOrder(){
+		return barnesHutMultipoleOrder;
 	}
 	
 	/**
-	 * Swap back and front position/vorticity buffers.
+	 * Set whether vortons and tracers are advected leaf by leaf.
+	 * 
+	 * With an {@link OTree} and the {@link VelocityMethod#TREE} method, this builds one
+	 * influence list per leaf per step (see {@link OTree#getLeafInteractions}) and
+	 * shares it between every vorton and tracer in that leaf, instead of traversing
+	 * the tree once per point. The shared list is gathered once and evaluated with
+	 * {@link TracerMath#computeVelocityFromGathered}. Other trees and methods ignore it.
 	 * */
-	protected void swapBuffers(){
-		Vector3f[] t = frontPos.get();
-		frontPos.set(backPos.get());
-		backPos.set(t);
-		
-		t = frontVort.get();
-		frontVort.set(backVort.get());
-		backVort.set(t);
+	public void setLeafTraversal(boolean leafTraversal){
+		this.leafTraversal = leafTraversal;
+	}
+	
+	public boolean isLeafTraversal(){
+		return leafTraversal;
+	}
+	
+	protected boolean useLeafTraversal(){
+		return leafTraversal && velocityMethod == VelocityMethod.TREE && vortonTree instanceof OTree;
 	}
 	
 	/**
-	 * Deprecated. The number of threads launched is now
-	 * automatically determined by the number of cores available.
+	 * Set whether vorticity is stretched and tilted by the velocity gradient
+	 * each step. This is what lets vortex tubes intensify and reorient; without
+	 * it vorticity only moves and diffuses. Off by default.
+	 * 
+	 * The gradient comes from the same influences as the velocity, so this
+	 * costs about one more velocity evaluation per vorton per step.
 	 * */
-	@Deprecated
-	public void initializeThreads(int notUsed){
-		initializeThreads();
+	public void setStretchAndTilt(boolean stretching){
+		this.stretching = stretching;
+	}
+	
+	public boolean isStretchAndTilt(){
+		return stretching;
 	}
 	
 	/**
-	 * Initialize worker threads. This *must* be done before
-	 * the simulation is started.
+	 * Set whether tracers read their velocity from a cached grid.
 	 * 
-	 * The number of threads started will be equal to the 
-	 * number of cores returned by ThreadingUtils.
+	 * The field only changes once per simulation step, but tracers are usually
+	 * advected every frame. With this on, the velocity is computed once per step
+	 * at the nodes of a {@link UniformGrid} covering the vortons (plus a vorton
+	 * radius), and tracers interpolate it, so their cost no longer depends on the
+	 * number of vortons. Tracers outside of the grid are computed directly.
+	 * 
+	 * This replaces leaf traversal for tracers.
 	 * */
-	@Deprecated
-	public void initializeThreads(){
-
+	public void setTracerGrid(boolean tracerGrid){
+		this.tracerGrid = tracerGrid;
+		velocityGridStale = true;
+	}
+	
+	public boolean isTracerGrid(){
+		return tracerGrid;
 	}
 	
 	/**
-	 * Interrupt all worker threads. After this is called,
-	 * another call to {@link initializeThreads} is required
-	 * for the simulation to run.
+	 * Set the distance between tracer grid nodes. Defaults to half a vorton radius.
+	 * The spacing is widened if the vortons are spread out enough to need more
+	 * than {@link UniformGrid#MAX_NODES} nodes.
 	 * */
-	@Deprecated
-	public void stopThreads(){
+	public void setTracerGridSpacing(float spacing){
+		this.tracerGridSpacing = spacing;
+		velocityGridStale = true;
 	}
 	
-	public void randomizeVortons(){
-		randomizeVortons(1);
+	public float getTracerGridSpacing(){
+		return tracerGridSpacing;
 	}
 	
 	/**
-	 * Randomize all vortons' positions and vorticities.
+	 * Get the probe registry. Registered probes are evaluated once per step,
+	 * alongside vorton advection, and can be read from any thread.
+	 * */
+	public VelocityProbes getProbes(){
+		return probes;
+	}
+	
+	/**
+	 * Set the length of one simulation step, in seconds. Defaults to {@link #DT}.
+	 * A longer step (e.g. 1/30) halves the simulation cost; with
+	 * {@link #setInterpolating(boolean)} it can still be presented smoothly.
 	 * 
-	 * Honestly, this is useless unless you just want chaos.
+	 * Past {@link #getDiffusionStepLimit()}, diffusion mixes each leaf group
+	 * only as fast as it stably can, so it falls behind the viscosity rather
+	 * than blowing up.
 	 * */
-	public void randomizeVortons(float amp){
-		
-		Vector3f tVort = new Vector3f();
-		for (Vorton vI : vortons){
-			BufferedVorton v = (BufferedVorton) vI;
-			
-			tVort.set(randomComponent(), randomComponent(), randomComponent());
-			tVort.multLocal(amp);
-			v.accumulateVorticity(tVort);
-		}
+	public void setTimeStep(float timeStep){
+		this.timeStep = timeStep;
 	}
 	
+	public float getTimeStep(){
+		return timeStep;
+	}
 	
-	protected float randomComponent(){
-		return FastMath.nextRandomFloat() * (FastMath.nextRandomFloat() < 0.5f ? -1 : 1);
+	/**
+	 * Set whether the step length adapts to the flow (a CFL condition).
+	 * 
+	 * When on, every step first computes all vorton velocities, then picks
+	 * dt = courant * {@link #VORTON_RADIUS} / (fastest vorton speed), clamped to
+	 * {@link #setTimeStepBounds(float, float)} and then kept within
+	 * {@link #getDiffusionStepLimit()} so diffusion stays stable. Stretching, diffusion and the position update then
+	 * use that dt. Calm fluids take long, cheap steps; after a violent injection
+	 * the steps shorten (and {@link #stepSimulation(float)} runs more of them in
+	 * fixed timestep mode).
+	 * 
+	 * Vortons move by velocities from the start of the step, before stretching,
+	 * rather than after it. {@link #setMultiRate(boolean) Multi-rate} advection
+	 * is suspended while this is on.
+	 * */
+	public void setAdaptiveTimestep(boolean adaptive){
+		this.adaptiveTimestep = adaptive;
+		resetRateClasses();
 	}
 	
-	public void distributeVortons(Vector3f min, Vector3f max){
-		distributeVortons(min, max, 0f);
+	public boolean isAdaptiveTimestep(){
+		return adaptiveTimestep;
 	}
 	
 	/**
-	 * Distribute vortons evenly over a grid.
+	 * Set the fraction of a vorton radius the fastest vorton may move per
+	 * adaptive step. Defaults to 0.5.
+	 * */
+	public void setCourantNumber(float courant){
+		this.courantNumber = courant;
+	}
+	
+	public float getCourantNumber(){
+		return courantNumber;
+	}
+	
+	/**
+	 * Set the shortest and longest adaptive steps. Defaults to 1/240 and 1/15.
+	 * */
+	public void setTimeStepBounds(float min, float max){
+		this.minTimeStep = min;
+		this.maxTimeStep = Math.max(min, max);
+	}
+	
+	public float getMinTimeStep(){
+		return minTimeStep;
+	}
+	
+	public float getMaxTimeStep(){
+		return maxTimeStep;
+	}
+	
+	/**
+	 * The longest step diffusion is stable at, for the current tree.
 	 * 
-	 * @param min the lower bound of the grid's bounding box.
-	 * @param max the upper bound of the grid's bounding box.
+	 * Diffusion exchanges vorticity explicitly with every other vorton in a
+	 * leaf group, so a vorton's change is viscosity * dt times the sum of its
+	 * differences from n - 1 others. Once viscosity * dt * n passes 1 that
+	 * overshoots, and the error grows every step. Shallower trees have bigger
+	 * leaves, so this shrinks with {@link #setGridResolution(int)}.
+	 * 
+	 * @return 1 / (viscosity * largest leaf group) as of the last step, or infinity with no viscosity.
 	 * */
-	public void distributeVortons(Vector3f min, Vector3f max, float jitter){
-
-		float particlesPerSide = (float) Math.cbrt(vortons.length);
-		int nParticles = (int) particlesPerSide;
-		float xStep = (max.x - min.x) / particlesPerSide;
-		float yStep = (max.y - min.y) / particlesPerSide;
-		float zStep = (max.z - min.z) / particlesPerSide;
-		
-		Vector3f temp = new Vector3f();
-		
-		int index = 0;
-		outer:
-		for (int i = 0; i < nParticles; i++){
-			float y = yStep * i + min.y;
-			for (int j = 0; j < nParticles; j++){
-				float x = xStep * j + min.x;
-				for (int k = 0; k < nParticles; k++){
-					float z = zStep * k + min.z;
-					if (index >= vortons.length){
-						break outer;
-					}
-					BufferedVorton bv = (BufferedVorton) vortons[index];
-					temp.set(jitter(x, jitter), jitter(y, jitter), jitter(z, jitter));
-					inputTransform.transformVector(temp, temp);
-					bv.initializeAll(temp, Vector3f.ZERO);
-					++index;
-				}
-			}
+	public float getDiffusionStepLimit(){
+		if (viscosity <= 0f){
+			return Float.POSITIVE_INFINITY;
 		}
-		swapBuffers(); //swap new values to back buffer for first run
+		return 1f / (viscosity * maxLeafGroup);
 	}
 	
-	protected float jitter(float coord, float jitter){
-		if (jitter <= 0f){
-			return coord;
+	protected void collectLeafGroups(){
+		leafGroups.clear();
+		vortonTree.getLeafGroups(leafGroups);
+		int max = 1;
+		for (int i = 0; i < leafGroups.size(); i++){
+			max = Math.max(max, leafGroups.get(i).size());
 		}
-		
-		return coord + (FastMath.nextRandomFloat() * jitter * (FastMath.nextRandomFloat() < 0.5f ? -1 : 1));
+		maxLeafGroup = max;
 	}
 	
 	/**
-	 * Inject a not-very-good vortex ring.
-	 * 
-	 * @param radius the interior radius of the ring.
-	 * @param thickness the width of the ring
-	 * @param strength by default, this method generates vorticities from (0,1). These vorticities are multiplied by strength. Think of
-	 * it as an amplitude parameter.
-	 * @param directionIn the direction the vortex ring should travel. Transformed by inputTransform.
-	 * @param centerIn the center of the vortex ring. Transformed by inputTransform.
+	 * The fastest vorton speed seen by the last adaptive step.
 	 * */
-	public void injectVortexRing(float radius, float thickness, float strength, Vector3f directionIn, Vector3f centerIn){
-		Vector3f direction = new Vector3f(directionIn);
-		Vector3f center = new Vector3f(centerIn);
-		inputTransform.getRotation().mult(direction, direction);
-		inputTransform.transformVector(center, center);
-		
-		direction.normalizeLocal();
-		
-		Vector3f fromCenter = new Vector3f();
-		float tween;
-		Vector3f ptOnLine = new Vector3f();
-		Vector3f rho = new Vector3f();
-		float rhoL;
-		float distAlongDir;
-		float radCore;
-		
-		Vector3f temp = new Vector3f();
-		
-		Vector3f rhoHat = new Vector3f();
-		Vector3f phiHat = new Vector3f();
-		
-		for (Vorton vI : vortons){
-			BufferedVorton v = (BufferedVorton) vI;
-			fromCenter.set(v.getPosition()).subtractLocal(center);
-			
-			tween = fromCenter.dot(direction);
-			
-			temp.set(direction).multLocal(tween);
-			ptOnLine.set(center).addLocal(temp);
-			
-			rho.set(v.getPosition()).subtractLocal(ptOnLine);
-			rhoL = rho.length();
-			distAlongDir = direction.dot(fromCenter);
-			
-			radCore = FastMath.sqr(rhoL - radius) + FastMath.sqr(distAlongDir);
-			radCore = FastMath.sqrt(radCore);
-			
-			
-			if (radCore < thickness){
-				float vortProfile = radCore < thickness ? 
-						0.5f * (FastMath.cos(FastMath.PI * radCore / thickness) + 1f) 
-						: 0f;
-				float vortPhi = vortProfile;
-				rhoHat.set(rho);
-				rhoHat.normalizeLocal();
-				direction.cross(rhoHat, phiHat);
-				
-				temp.set(phiHat).multLocal(vortPhi * strength);
-				
-				temp.addLocal(v.getVort());
-				v.accumulateVorticity(temp);
-			}
-			v.setPosition(v.getPosition()); //copy to front buffer
-		}
+	public float getMaxVortonSpeed(){
+		return maxVortonSpeed;
 	}
 	
 	/**
-	 * Inject a pretty good vortex ring.
+	 * Set whether slow vortons are advected less often.
 	 * 
-	 * @param radius the interior radius of the ring.
-	 * @param thickness the width of the ring
-	 * @param height the height of the vortex ring.
-	 * @param strength by default, this method generates vorticities from (0,1). These vorticities are multiplied by strength. Think of
-	 * it as an amplitude parameter.
-	 * @param directionIn the direction the vortex ring should travel. Transformed by inputTransform.
-	 * @param centerIn the center of the vortex ring. Transformed by inputTransform.
+	 * When on, each advected vorton is put in a rate class r from its speed: the
+	 * largest r (up to {@link #setMaxRateClass(int)}) for which it moves no more
+	 * than {@link #getCourantNumber()} vorton radii in 2^r steps. It is then moved
+	 * 2^r steps' worth at once, and skipped (neither queried nor moved) for the
+	 * next 2^r - 1 steps. Leaves with no vorton due are skipped entirely in
+	 * leaf traversal. Diffusion still runs every step.
+	 * 
+	 * A slow vorton notices changes around it (e.g. an injection) only when
+	 * it is next due; see {@link #resetRateClasses()}.
+	 * 
+	 * Rate classes assume every step is the same length, so they aren't used
+	 * with an {@link #setAdaptiveTimestep(boolean) adaptive timestep}: a
+	 * vorton scheduled over 2^r steps could then move far past the CFL limit
+	 * that the adaptive step is chosen by. Every vorton is advected every
+	 * step until adaptive stepping is turned off again.
 	 * */
-	public void injectJetRing(float radius, float thickness, float height, float strength, Vector3f directionIn, Vector3f centerIn){
-		Vector3f direction = new Vector3f(directionIn);
-		Vector3f center = new Vector3f(centerIn);
-		
-		inputTransform.getRotation().mult(direction, direction);
+	public void setMultiRate(boolean multiRate){
+		this.multiRate = multiRate;
+		resetRateClasses();
+	}
+	
+	public boolean isMultiRate(){
+		return multiRate;
+	}
+	
+	/**
+	 * Set the slowest rate class: vortons are advected at least every 2^max steps. Defaults to 3.
+	 * */
+	public void setMaxRateClass(int max){
+		this.maxRateClass = Math.max(0, Math.min(max, 16));
+	}
+	
+	public int getMaxRateClass(){
+		return maxRateClass;
+	}
+	
+	/**
+	 * Make every vorton due for advection on the next step, e.g. after a
+	 * large injection.
+	 * */
+	public void resetRateClasses(){
+		rateClassReset = true;
+	}
+	
+	/**
+	 * Set whether quiet vortons go to sleep.
+	 * 
+	 * A vorton is quiet in a step when both its vorticity and its velocity are
+	 * below {@link #setSleepThresholds(float, float)}, and it falls asleep after
+	 * {@link #setSleepDelay(int)} quiet steps in a row. Sleeping vortons stay in
+	 * the tree (their neighbours still diffuse against them) but are held where
+	 * they are: they are not stretched, diffused, or advected. A leaf where all
+	 * the vortons sleep costs a scan of its vorticities instead of a diffusion.
+	 * 
+	 * A leaf's sleepers all wake up when any vorton in it has more than twice
+	 * the vorticity threshold, so vorticity arriving from elsewhere (or
+	 * injected) wakes the fluid it reaches. To notice flow induced from
+	 * further away, each sleeper's velocity is still checked every
+	 * {@link #setSleepCheckInterval(int)} steps, staggered over the vortons.
+	 * */
+	public void setSleeping(boolean sleeping){
+		this.sleeping = sleeping;
+		wakeAll();
+	}
+	
+	public boolean isSleeping(){
+		return sleeping;
+	}
+	
+	/**
+	 * Set how quiet a vorton has to be to fall asleep: the vorticity magnitude
+	 * and speed (in units per second) below which it counts as quiet.
+	 * Default to 0.01 and 0.05.
+	 * */
+	public void setSleepThresholds(float vorticity, float speed){
+		this.sleepVorticity = vorticity;
+		this.sleepSpeed = speed;
+	}
+	
+	public float getSleepVorticity(){
+		return sleepVorticity;
+	}
+	
+	public float getSleepSpeed(){
+		return sleepSpeed;
+	}
+	
+	/**
+	 * Set how many quiet steps in a row put a vorton to sleep. Defaults to 30.
+	 * */
+	public void setSleepDelay(int steps){
+		this.sleepDelay = Math.max(1, steps);
+	}
+	
+	public int getSleepDelay(){
+		return sleepDelay;
+	}
+	
+	/**
+	 * Set how often a sleeping vorton's velocity is checked, in steps. Defaults to 8.
+	 * */
+	public void setSleepCheckInterval(int steps){
+		this.sleepCheckInterval = Math.max(1, steps);
+	}
+	
+	public int getSleepCheckInterval(){
+		return sleepCheckInterval;
+	}
+	
+	/**
+	 * Wake every vorton on the next step.
+	 * */
+	public void wakeAll(){
+		sleepReset = true;
+	}
+	
+	/**
+	 * How many vortons were awake after the last step. All of them, unless sleeping.
+	 * */
+	public int getActiveVortons(){
+		return sleeping ? activeVortons : vortons.length;
+	}
+	
+	/**
+	 * Set whether the simulation is run for lockstep networking, where every
+	 * peer has to arrive at the same state from the same inputs.
+	 *
+	 * Steps are bit-for-bit reproducible whatever the thread count: every
+	 * parallel pass writes each vorton from one worker, summing its inputs in
+	 * a fixed order (leaf items in insertion order, influences in tree order),
+	 * and the one cross-thread reduction (bounds) is a min/max. Arithmetic is
+	 * plain float, which every JVM evaluates strictly since Java 17 (JEP 306),
+	 * and older ones do on SSE2 hardware; the sines and cosines used by
+	 * injections come from StrictMath.
+	 *
+	 * What is left to the game: drive the simulation with {@link #stepOnce()}
+	 * on each agreed tick rather than from frame time, apply the tick's
+	 * injections on the same side of that call on every peer, seed
+	 * {@link #setRandomSeed(long)} identically, and keep settings (time step,
+	 * grid resolution, velocity method) the same. Asynchronous mode steps on
+	 * its own clock, so it doesn't mix with this; the
+	 * {@link com.htssoft.sploosh.presentation.FrameBudgetGovernor} leaves a
+	 * deterministic simulation's settings alone.
+	 *
+	 * When on, each step also hashes the vorton state; see {@link #getStateHash()}.
+	 * */
+	public void setDeterministic(boolean deterministic){
+		this.deterministic = deterministic;
+	}
+	
+	public boolean isDeterministic(){
+		return deterministic;
+	}
+	
+	/**
+	 * Seed the generator used by {@link #randomizeVortons(float)} and
+	 * the jitter of {@link #distributeVortons(Vector3f, Vector3f, float)}.
+	 * */
+	public void setRandomSeed(long seed){
+		random.setSeed(seed);
+	}
+	
+	/**
+	 * Run exactly one step, whatever the clock says. This is how a lockstep
+	 * game should drive the simulation: once per tick.
+	 *
+	 * @throws IllegalStateException when {@link #setAsynchronous(boolean) asynchronous}.
+	 * */
+	public void stepOnce(){
+		if (asynchronous){
+			throw new IllegalStateException("The simulation thread is stepping on its own clock.");
+		}
+		finishSlicedStep();
+		step();
+	}
+	
+	/**
+	 * How many steps have been run.
+	 * */
+	public int getStepCount(){
+		return stepCount;
+	}
+	
+	/**
+	 * Get a hash of the vorton positions and vorticities after the last step,
+	 * when {@link #setDeterministic(boolean) deterministic}. Peers can exchange
+	 * it along with {@link #getStepCount()} to notice a desync the step it happens.
+	 * */
+	public long getStateHash(){
+		return stateHash;
+	}
+	
+	/**
+	 * 64 bit FNV-1a over the bits of the front buffers.
+	 * */
+	protected long hashState(){
+		long h = 0xcbf29ce484222325L;
+		float[] pos = frontPos;
+		float[] vort = frontVort;
+		for (int i = 0; i < pos.length; i++){
+			h = (h ^ Float.floatToRawIntBits(pos[i])) * 0x100000001b3L;
+		}
+		for (int i = 0; i < vort.length; i++){
+			h = (h ^ Float.floatToRawIntBits(vort[i])) * 0x100000001b3L;
+		}
+		return h;
+	}
+	
+	/**
+	 * Set whether {@link #stepSimulation(float)} keeps up with real time.
+	 * 
+	 * When on, each call runs as many steps as have accumulated, up to
+	 * {@link #setMaxSubsteps(int)}. Time beyond that is dropped, so a slow frame
+	 * can't make the next one slower still. When off (the default), at most one
+	 * step runs per call and the simulation falls behind under load.
+	 * */
+	public void setFixedTimestep(boolean fixedTimestep){
+		this.fixedTimestep = fixedTimestep;
+	}
+	
+	public boolean isFixedTimestep(){
+		return fixedTimestep;
+	}
+	
+	/**
+	 * Set the most steps a single {@link #stepSimulation(float)} call may run
+	 * in fixed timestep mode. Defaults to 4.
+	 * */
+	public void setMaxSubsteps(int maxSubsteps){
+		this.maxSubsteps = Math.max(1, maxSubsteps);
+	}
+	
+	public int getMaxSubsteps(){
+		return maxSubsteps;
+	}
+	
+	/**
+	 * Spread each step over this many calls to {@link #stepSimulation(float)},
+	 * to even out frame times. 1 (the default) runs whole steps.
+	 * 
+	 * The first slice swaps buffers and builds the tree, the second stretches
+	 * and diffuses, and the rest each advect an equal part of the vortons
+	 * (with two slices, the second does all of it). Tracers and
+	 * {@link #traceVortons(List)} read the tree and back buffers, which hold
+	 * the last finished state throughout (stretched vorticity is kept apart
+	 * until the step finishes). The front buffers are being written until
+	 * the last slice, so interpolation holds at the back state while a step
+	 * is in flight. Changes to the vortons (injections) should go through
+	 * {@link #invokeOnSimulation(Runnable)}, so they land between steps.
+	 * 
+	 * A step is started when one is due and takes this many frames, so to keep
+	 * up with real time the time step should be at least that many frames long.
+	 * Adaptive and asynchronous steps aren't sliced.
+	 * */
+	public void setTimeSlices(int slices){
+		this.timeSlices = Math.max(1, slices);
+	}
+	
+	public int getTimeSlices(){
+		return timeSlices;
+	}
+	
+	/**
+	 * Set whether presentation blends between the last two vorton states
+	 * by {@link #getInterpolationAlpha()}.
+	 * 
+	 * {@link #traceVortons(List)} blends vorton positions. Tracers blend the
+	 * tracer grid of the last step with the one before it, which puts their
+	 * field one step behind the vortons; without the tracer grid they read the
+	 * latest field as usual.
+	 * */
+	public void setInterpolating(boolean interpolating){
+		this.interpolating = interpolating;
+	}
+	
+	public boolean isInterpolating(){
+		return interpolating;
+	}
+	
+	/**
+	 * How far presentation time is between the last two vorton states,
+	 * from 0 (the older) to 1 (the newer).
+	 * */
+	public float getInterpolationAlpha(){
+		if (asynchronous){
+			FieldSnapshot s = published;
+			return s == null ? 1f : getSnapshotAlpha(s);
+		}
+		if (slice >= 0){ //the front buffers are half written
+			return 0f;
+		}
+		return Math.min(1f, Math.max(0f, timeAccumulator / timeStep));
+	}
+	
+	/**
+	 * Set whether the simulation runs on its own thread.
+	 * 
+	 * When on, a background thread steps the simulation on its own clock (at
+	 * {@link #getTimeStep()}, following {@link #setFixedTimestep(boolean)}), and
+	 * {@link #stepSimulation(float)} does nothing. After each step the thread
+	 * publishes a snapshot: the new vorton positions and a velocity grid as with
+	 * {@link #setTracerGrid(boolean)}. Tracers, {@link #traceVortons(List)} and
+	 * {@link #sampleVelocities} only read the latest snapshot, so the calling
+	 * thread never waits on tree builds, diffusion or advection. Tracers outside
+	 * of the grid see no fluid velocity.
+	 * 
+	 * While this is on, anything that changes the vortons (injections,
+	 * distribution, settings) should go through {@link #invokeOnSimulation(Runnable)}.
+	 * 
+	 * If a step throws on the simulation thread, or on a worker it handed
+	 * work to, the thread stops and this is turned off. The next call to
+	 * {@link #stepSimulation(float)},
+	 * {@link #advectTracers(FluidTracer[], float)}, {@link #sampleVelocities} or
+	 * {@link #traceVortons(List)} throws an IllegalStateException caused by it.
+	 * */
+	public void setAsynchronous(boolean asynchronous){
+		Thread stopping;
+		synchronized (this){
+			if (asynchronous == this.asynchronous){
+				return;
+			}
+			this.asynchronous = asynchronous;
+			
+			if (asynchronous){
+				simulationThread = new Thread(new Runnable(){
+					public void run(){
+						runSimulation();
+					}
+				}, "VortonSimulation");
+				simulationThread.setDaemon(true);
+				simulationThread.start();
+				return;
+			}
+			stopping = simulationThread;
+			simulationThread = null;
+		}
+		
+		/*
+		 * Joined outside of the lock, since the step in flight may need it.
+		 * Not interrupted: that would abandon a step's work mid-flight. The
+		 * loop notices within a step.
+		 * */
+		if (stopping != null){
+			try {
+				stopping.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		runSimulationTasks();
+	}
+	
+	public boolean isAsynchronous(){
+		return asynchronous;
+	}
+	
+	/**
+	 * Run the given task on the simulation thread, between steps. When the
+	 * simulation isn't {@link #setAsynchronous(boolean) asynchronous}, it runs
+	 * now, or as soon as a {@link #setTimeSlices(int) time-sliced} step in
+	 * flight finishes.
+	 * */
+	public void invokeOnSimulation(Runnable task){
+		if (!asynchronous && slice < 0){
+			task.run();
+			return;
+		}
+		simulationTasks.add(task);
+	}
+	
+	/**
+	 * Throw, on the calling thread, whatever stopped the simulation thread.
+	 * */
+	protected void checkSimulationFailure(){
+		RuntimeException failure = simulationFailure;
+		if (failure != null){
+			simulationFailure = null;
+			throw new IllegalStateException("The simulation thread stopped", failure);
+		}
+	}
+	
+	protected void runSimulationTasks(){
+		Runnable task;
+		while ((task = simulationTasks.poll()) != null){
+			task.run();
+		}
+	}
+	
+	/**
+	 * The background simulation loop: step when a step is due, publish, sleep.
+	 * */
+	protected void runSimulation(){
+		long last = System.nanoTime();
+		while (asynchronous && simulationThread == Thread.currentThread() && !Thread.currentThread().isInterrupted()){
+			try {
+				runSimulationTasks();
+				
+				long now = System.nanoTime();
+				float elapsed = (now - last) * 1e-9f;
+				last = now;
+				if (advanceSimulation(elapsed) > 0){
+					publishSnapshot();
+				}
+			} catch (RuntimeException ex) {
+				simulationFailure = ex;
+				asynchronous = false;
+				break;
+			}
+			
+			long wait = (long) ((timeStep - timeAccumulator) * 1000f);
+			if (wait > 0){
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException ex) {
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Publish the state of the step that just finished. Snapshots are pooled;
+	 * one is only reused once no reader can reach it.
+	 * */
+	protected void publishSnapshot(){
+		FieldSnapshot current = published;
+		FieldSnapshot spare = null;
+		for (int i = 0; i < snapshots.size() && spare == null; i++){
+			if (isSnapshotFree(snapshots.get(i), current)){
+				spare = snapshots.get(i);
+			}
+		}
+		if (spare == null){
+			spare = new FieldSnapshot();
+			snapshots.add(spare);
+		}
+		
+		if (spare.positions.length != frontPos.length){
+			spare.positions = new float[frontPos.length];
+		}
+		System.arraycopy(frontPos, 0, spare.positions, 0, frontPos.length);
+		fillGrid(spare.grid);
+		spare.previous = current;
+		spare.nanoTime = System.nanoTime();
+		published = spare;
+	}
+	
+	protected boolean isSnapshotFree(FieldSnapshot s, FieldSnapshot current){
+		if (s == current || (current != null && s == current.previous) || s.readers.get() > 0){
+			return false;
+		}
+		for (int i = 0; i < snapshots.size(); i++){ //a reader of t may also read t.previous
+			FieldSnapshot t = snapshots.get(i);
+			if (t.previous == s && t.readers.get() > 0){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the latest snapshot and keep it from being reused until it's released.
+	 * 
+	 * @return the snapshot, or null if none has been published yet.
+	 * */
+	protected FieldSnapshot acquireSnapshot(){
+		while (true){
+			FieldSnapshot s = published;
+			if (s == null){
+				return null;
+			}
+			s.readers.incrementAndGet();
+			if (s == published){
+				return s;
+			}
+			s.readers.decrementAndGet(); //replaced in the meantime: it may be being rewritten
+		}
+	}
+	
+	protected void releaseSnapshot(FieldSnapshot s){
+		if (s != null){
+			s.readers.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * How far presentation time is from a snapshot to the next one due.
+	 * */
+	protected float getSnapshotAlpha(FieldSnapshot s){
+		float elapsed = (System.nanoTime() - s.nanoTime) * 1e-9f;
+		return Math.min(1f, Math.max(0f, elapsed / timeStep));
+	}
+	
+	public void setHasDriver(boolean hasDriver){
+		this.hasDriver = hasDriver;
+	}
+	
+	public boolean hasDriver(){
+		return hasDriver;
+	}
+	
+	/**
+	 * Set how many levels of recursion to descend when building the octree.
+	 * Takes effect at the start of the next step, so a step (sliced or not)
+	 * never sees it change partway through.
+	 * */
+	public void setGridResolution(int gridResolution){
+		this.pendingGridResolution = gridResolution;
+	}
+	
+	/**
+	 * The resolution last set, which the tree uses from the next step on.
+	 * */
+	public int getGridResolution(){
+		return pendingGridResolution;
+	}
+	
+	protected void applyGridResolution(){
+		int resolution = pendingGridResolution;
+		if (resolution != gridResolution){ //the engines are sized from the resolution when created
+			gridResolution = resolution;
+			fmm = null;
+			vic = null;
+		}
+	}
+	
+	/**
+	 * How long the given phase took in the last step, in milliseconds.
+	 * */
+	public float getPhaseMillis(StepPhase phase){
+		return phaseMillis[phase.ordinal()];
+	}
+	
+	/**
+	 * How long the whole of the last step took, in milliseconds.
+	 * */
+	public float getStepMillis(){
+		float total = 0f;
+		for (float ms : phaseMillis){
+			total += ms;
+		}
+		return total;
+	}
+	
+	/**
+	 * Record the time since start against the given phase.
+	 * 
+	 * @return the current time, to start the next phase from.
+	 * */
+	protected long recordPhase(StepPhase phase, long start){
+		long now = System.nanoTime();
+		phaseMillis[phase.ordinal()] = (now - start) * 1e-6f;
+		return now;
+	}
+	
+	/**
+	 * Set the input transform. This will be used to transform
+	 * all vector quantity inputs.
+	 * */
+	public void setInputTransform(Transform xform){
+		this.inputTransform.set(xform);
+	}
+	
+	/**
+	 * Get the number of vortons in the fluid simulation.
+	 * */
+	public int getNVortons(){
+		return vortons.length;
+	}
+	
+	protected void backCopy(){
+		System.arraycopy(frontPos, 0, backPos, 0, frontPos.length);
+		System.arraycopy(frontVort, 0, backVort, 0, frontVort.length);
+	}
+	
+	/**
+	 * Swap back and front position/vorticity buffers.
+	 * */
+	protected void swapBuffers(){
+		float[] t = frontPos;
+		frontPos = backPos;
+		backPos = t;
+		
+		t = frontVort;
+		frontVort = backVort;
+		backVort = t;
+		stepVort = backVort; //until the next stretch
+	}
+	
+	/**
+	 * Deprecated. The number of threads launched is now
+	 * automatically determined by the number of cores available.
+	 * */
+	@Deprecated
+	public void initializeThreads(int notUsed){
+		initializeThreads();
+	}
+	
+	/**
+	 * Initialize worker threads. This *must* be done before
+	 * the simulation is started.
+	 * 
+	 * The number of threads started will be equal to the 
+	 * number of cores returned by ThreadingUtils.
+	 * */
+	@Deprecated
+	public void initializeThreads(){
+
+	}
+	
+	/**
+	 * Interrupt all worker threads. After this is called,
+	 * another call to {@link initializeThreads} is required
+	 * for the simulation to run.
+	 * */
+	@Deprecated
+	public void stopThreads(){
+	}
+	
+	public void randomizeVortons(){
+		randomizeVortons(1);
+	}
+	
+	/**
+	 * Randomize all vortons' positions and vorticities.
+	 * 
+	 * Honestly, this is useless unless you just want chaos.
+	 * */
+	public void randomizeVortons(float amp){
+		
+		Vector3f tVort = new Vector3f();
+		for (Vorton vI : vortons){
+			BufferedVorton v = (BufferedVorton) vI;
+			
+			tVort.set(randomComponent(), randomComponent(), randomComponent());
+			tVort.multLocal(amp);
+			v.accumulateVorticity(tVort);
+		}
+	}
+	
+	
+	protected float randomComponent(){
+		return random.nextFloat() * (random.nextFloat() < 0.5f ? -1 : 1);
+	}
+	
+	public void distributeVortons(Vector3f min, Vector3f max){
+		distributeVortons(min, max, 0f);
+	}
+	
+	/**
+	 * Distribute vortons evenly over a grid.
+	 * 
+	 * @param min the lower bound of the grid's bounding box.
+	 * @param max the upper bound of the grid's bounding box.
+	 * */
+	public void distributeVortons(Vector3f min, Vector3f max, float jitter){
+
+		float particlesPerSide = (float) StrictMath.cbrt(vortons.length);
+		int nParticles = (int) particlesPerSide;
+		float xStep = (max.x - min.x) / particlesPerSide;
+		float yStep = (max.y - min.y) / particlesPerSide;
+		float zStep = (max.z - min.z) / particlesPerSide;
+		
+		Vector3f temp = new Vector3f();
+		
+		int index = 0;
+		outer:
+		for (int i = 0; i < nParticles; i++){
+			float y = yStep * i + min.y;
+			for (int j = 0; j < nParticles; j++){
+				float x = xStep * j + min.x;
+				for (int k = 0; k < nParticles; k++){
+					float z = zStep * k + min.z;
+					if (index >= vortons.length){
+						break outer;
+					}
+					BufferedVorton bv = (BufferedVorton) vortons[index];
+					temp.set(jitter(x, jitter), jitter(y, jitter), jitter(z, jitter));
+					inputTransform.transformVector(temp, temp);
+					bv.initializeAll(temp, Vector3f.ZERO);
+					++index;
+				}
+			}
+		}
+		swapBuffers(); //swap new values to back buffer for first run
+	}
+	
+	protected float jitter(float coord, float jitter){
+		if (jitter <= 0f){
+			return coord;
+		}
+		
+		return coord + (random.nextFloat() * jitter * (random.nextFloat() < 0.5f ? -1 : 1));
+	}
+	
+	/**
+	 * Inject a not-very-good vortex ring.
+	 * 
+	 * @param radius the interior radius of the ring.
+	 * @param thickness the width of the ring
+	 * @param strength by default, this method generates vorticities from (0,1). These vorticities are multiplied by strength. Think of
+	 * it as an amplitude parameter.
+	 * @param directionIn the direction the vortex ring should travel. Transformed by inputTransform.
+	 * @param centerIn the center of the vortex ring. Transformed by inputTransform.
+	 * */
+	public void injectVortexRing(float radius, float thickness, float strength, Vector3f directionIn, Vector3f centerIn){
+		Vector3f direction = new Vector3f(directionIn);
+		Vector3f center = new Vector3f(centerIn);
+		inputTransform.getRotation().mult(direction, direction);
+		inputTransform.transformVector(center, center);
+		
+		direction.normalizeLocal();
+		
+		Vector3f fromCenter = new Vector3f();
+		float tween;
+		Vector3f ptOnLine = new Vector3f();
+		Vector3f rho = new Vector3f();
+		float rhoL;
+		float distAlongDir;
+		float radCore;
+		
+		Vector3f temp = new Vector3f();
+		
+		Vector3f rhoHat = new Vector3f();
+		Vector3f phiHat = new Vector3f();
+		
+		for (Vorton vI : vortons){
+			BufferedVorton v = (BufferedVorton) vI;
+			fromCenter.set(v.getPosition()).subtractLocal(center);
+			
+			tween = fromCenter.dot(direction);
+			
+			temp.set(direction).multLocal(tween);
+			ptOnLine.set(center).addLocal(temp);
+			
+			rho.set(v.getPosition()).subtractLocal(ptOnLine);
+			rhoL = rho.length();
+			distAlongDir = direction.dot(fromCenter);
+			
+			radCore = FastMath.sqr(rhoL - radius) + FastMath.sqr(distAlongDir);
+			radCore = FastMath.sqrt(radCore);
+			
+			
+			if (radCore < thickness){
+				float vortProfile = radCore < thickness ? 
+						0.5f * (cos(FastMath.PI * radCore / thickness) + 1f) 
+						: 0f;
+				float vortPhi = vortProfile;
+				rhoHat.set(rho);
+				rhoHat.normalizeLocal();
+				direction.cross(rhoHat, phiHat);
+				
+				temp.set(phiHat).multLocal(vortPhi * strength);
+				
+				temp.addLocal(v.getVort());
+				v.accumulateVorticity(temp);
+			}
+			v.setPosition(v.getPosition()); //copy to front buffer
+		}
+	}
+	
+	/**
+	 * Inject a pretty good vortex ring.
+	 * 
+	 * @param radius the interior radius of the ring.
+	 * @param thickness the width of the ring
+	 * @param height the height of the vortex ring.
+	 * @param strength by default, this method generates vorticities from (0,1). These vorticities are multiplied by strength. Think of
+	 * it as an amplitude parameter.
+	 * @param directionIn the direction the vortex ring should travel. Transformed by inputTransform.
+	 * @param centerIn the center of the vortex ring. Transformed by inputTransform.
+	 * */
+	public void injectJetRing(float radius, float thickness, float height, float strength, Vector3f directionIn, Vector3f centerIn){
+		Vector3f direction = new Vector3f(directionIn);
+		Vector3f center = new Vector3f(centerIn);
+		
+		inputTransform.getRotation().mult(direction, direction);
 		inputTransform.transformVector(center, center);
 		
-		direction.normalizeLocal();
+		direction.normalizeLocal();
+		
+		float radiusOuter = radius + thickness;
+		Vector3f fromCenter = new Vector3f();
+		float tween;
+		Vector3f ptOnLine = new Vector3f();
+		Vector3f rho = new Vector3f();
+		float rhoL;
+		float distAlongDir;
+		
+		Vector3f temp = new Vector3f();
+		
+		Vector3f rhoHat = new Vector3f();
+		Vector3f phiHat = new Vector3f();
+		
+		for (Vorton vI : vortons){
+			BufferedVorton v = (BufferedVorton) vI;
+						
+			fromCenter.set(v.getPosition()).subtractLocal(center);
+			tween = fromCenter.dot(direction);
+			
+			temp.set(direction).multLocal(tween);
+			ptOnLine.set(center).addLocal(temp);
+			rho.set(v.getPosition()).subtractLocal(ptOnLine);
+			
+			rhoL = rho.length();
+			distAlongDir = direction.dot(fromCenter);
+			
+			if (rhoL < radiusOuter && rhoL > radius){
+				float streamwiseProfile = FastMath.abs(distAlongDir) < height ?
+											0.5f * (cos(FastMath.PI * distAlongDir / radius) + 1f) 
+											: 0f;
+				
+				float radialProfile = sin(FastMath.PI * (rhoL - radius) / thickness);
+				float vortPhi = streamwiseProfile * radialProfile * FastMath.PI / thickness;
+				
+				rhoHat.set(rho);
+				rhoHat.normalizeLocal();
+				
+				direction.cross(rhoHat, phiHat);
+				phiHat.multLocal(vortPhi * strength);
+				
+				v.accumulateVorticity(phiHat);
+			}
+			v.setPosition(v.getPosition()); //copy to front buffer
+		}
+	}
+	
+	/**
+	 * Set a uniform vorticity over the whole field.
+	 * */
+	public void uniformVorticity(Vector3f vort){
+		for (Vorton vI : vortons){
+			BufferedVorton v = (BufferedVorton) vI;
+			v.accumulateVorticity(vort);
+			v.setPosition(v.getPosition());
+		}
+	}
+	
+	/**
+	 * This is the one you want.
+	 * */
+	public void injectRadial(float strength, float scale, Vector3f center){
+		float x, y;
+		Vector3f vort = new Vector3f();
+		Vector3f pos = new Vector3f();
+		
+		for (Vorton vI : vortons){
+			BufferedVorton v = (BufferedVorton) vI;
+			
+			pos.set(v.getPosition());
+			inputTransform.transformInverseVector(pos, pos);
+			
+			x = pos.x;
+			y = pos.y;
+			x *= scale;
+			y *= scale;
+			float norm = norm2(x, y);
+			if (norm >= 0.001f){
+				vort.x = vort.y = 0f;
+				vort.z = radialCurlZ(x, y) * strength;
+				
+				inputTransform.getRotation().multLocal(vort);
+				
+				v.accumulateVorticity(vort);
+			}
+			v.setPosition(v.getPosition());
+		}
+	}
+	
+	private float radialCurlZ(float x, float y){
+		float normQd = norm2Sq(x, y);
+		normQd *= 2;
+		return -(2 * x * FastMath.sign(y) / normQd) + (2 * y * FastMath.sign(x) / normQd);    
+	}
+	
+	private float norm2Sq(float x, float y){
+		return (x * x) + (y * y);
+	}
+	
+	private float norm2(float x, float y){
+		return FastMath.sqrt((x * x) + (y * y));
+	}
+	
+	public void injectRadial(float strength, Vector3f center){
+		Vector3f fromCenter = new Vector3f();
+		Vector3f vort = new Vector3f();
+		
+		for (Vorton vI : vortons){
+			BufferedVorton v = (BufferedVorton) vI;
+			
+			fromCenter.set(v.getPosition()).subtractLocal(center);
+			
+			if (fromCenter.length() <= 0.001f){
+				continue;
+			}
+			
+			vort.set(0, 0, 0);
+			vort.z = injectRadialDiff(fromCenter.x, fromCenter.x, fromCenter.y) - 
+					 injectRadialDiff(fromCenter.y, fromCenter.x, fromCenter.y);
+			vort.multLocal(strength);
+			
+			v.accumulateVorticity(vort);
+			v.setPosition(v.getPosition());
+		}
+	}
+	
+	/**
+	 * Injections use StrictMath, whose results don't vary between platforms
+	 * (see {@link #setDeterministic(boolean)}).
+	 * */
+	protected static float cos(float angle){
+		return (float) StrictMath.cos(angle);
+	}
+	
+	protected static float sin(float angle){
+		return (float) StrictMath.sin(angle);
+	}
+	
+	private float injectRadialDiff(float q, float x, float y){
+		return (q * q) / (float) StrictMath.pow((x * x + y * y), 1.5f);
+	}
+	
+	/**
+	 * Injects horizontal radial.
+	 * */
+	public void injectRadial(float height, float radius, float strength, float zFudge, int samples, Vector3f center){
+		float degreesPerSample = 360f / (float) samples;
+		float degAccum = 0f;
+		
+		Vector3f dir = new Vector3f();
+		Vector3f pos = new Vector3f();
+		for (int i = 0; i < samples; i++){
+			pos.set(radius * cos(FastMath.DEG_TO_RAD * degAccum), 
+					radius * sin(FastMath.DEG_TO_RAD * degAccum), 
+					0);
+			dir.set(pos).normalizeLocal();
+			pos.addLocal(center);
+			
+			dir.z += zFudge;
+			injectJetRing(0.01f, height, 0.2f, strength, dir, pos);
+			
+			degAccum += degreesPerSample;
+		}
+	}
+	
+	/**
+	 * Step the simulation forward by dt.
+	 * @param dt how much time to add to the simulation.
+	 * */
+	public void stepSimulation(float dt){
+		checkSimulationFailure();
+		if (asynchronous){ //the simulation thread keeps its own time
+			return;
+		}
+		advanceSimulation(dt);
+	}
+	
+	/**
+	 * Add dt to the clock, and run whatever steps are due.
+	 * 
+	 * @return how many steps were run.
+	 * */
+	protected int advanceSimulation(float dt){
+		if (slice >= 0 || (timeSlices > 1 && !adaptiveTimestep && !asynchronous)){
+			return advanceSliced(dt);
+		}
+		timeAccumulator += dt; //let's be honest, this lags.
+		if (!fixedTimestep){
+			if (timeAccumulator > timeStep){ //if you put a "while" instead of an "if", simulation is better, but performance is unacceptable.
+				step();
+				timeAccumulator -= timeStep;
+				return 1;
+			}
+			return 0;
+		}
+		
+		int steps = 0;
+		for (; steps < maxSubsteps && timeAccumulator >= timeStep; steps++){
+			step();
+			timeAccumulator -= timeStep;
+		}
+		if (timeAccumulator >= timeStep){ //still behind: drop whole steps instead of spiralling
+			timeAccumulator %= timeStep;
+		}
+		return steps;
+	}
+	
+	/**
+	 * Run one simulation step of {@link #getTimeStep()} seconds.
+	 * */
+	protected void step(){
+		long t = System.nanoTime();
+		beginStep();
+		t = recordPhase(StepPhase.TREE, t);
+		
+		if (adaptiveTimestep){
+			stepAdaptive(t);
+		}
+		else {
+			if (stretching){
+				stretchAndTilt();
+			}
+			t = recordPhase(StepPhase.STRETCH, t);
+			diffuseVorticity();
+			t = recordPhase(StepPhase.DIFFUSE, t);
+			advectVortons();
+			recordPhase(StepPhase.ADVECT, t);
+		}
+		finishStep();
+	}
+	
+	/**
+	 * The start of a step: swap buffers and build the tree.
+	 * */
+	protected void beginStep(){
+		swapBuffers();
+		applyGridResolution();
+		buildVortonTree();
+		rateStepping = multiRate && !adaptiveTimestep;
+		if (rateStepping && (rateClassReset || nextAdvection == null || nextAdvection.length != vortons.length)){
+			if (nextAdvection == null || nextAdvection.length != vortons.length){
+				nextAdvection = new int[vortons.length];
+			}
+			Arrays.fill(nextAdvection, 0);
+			rateClassReset = false;
+		}
+		trackingActivity = sleeping;
+		if (trackingActivity && (sleepReset || quietSteps == null || quietSteps.length != vortons.length)){
+			if (quietSteps == null || quietSteps.length != vortons.length){
+				quietSteps = new int[vortons.length];
+			}
+			Arrays.fill(quietSteps, 0);
+			sleepReset = false;
+		}
+	}
+	
+	/**
+	 * The end of a step, once the front buffers are complete.
+	 * */
+	protected void finishStep(){
+		if (trackingActivity){
+			activeVortons = countActive();
+		}
+		++stepCount;
+		if (deterministic){
+			stateHash = hashState();
+		}
+	}
+	
+	/**
+	 * advanceSimulation for time-sliced mode: start a step when one is
+	 * due, and run one slice of it per call.
+	 * */
+	protected int advanceSliced(float dt){
+		timeAccumulator += dt;
+		if (slice < 0){
+			if (timeAccumulator < timeStep){
+				return 0;
+			}
+			timeAccumulator -= timeStep;
+			if (fixedTimestep && timeAccumulator >= timeStep){ //a sliced step can't catch up
+				timeAccumulator %= timeStep;
+			}
+		}
+		if (!stepSlice()){
+			return 0;
+		}
+		runSimulationTasks();
+		return 1;
+	}
+	
+	/**
+	 * Run the next slice of the step in flight, starting one if none is:
+	 * the tree, then stretch and diffusion, then the rest split into equal
+	 * parts of the vortons to advect.
+	 * 
+	 * @return true if that finished the step.
+	 * */
+	protected boolean stepSlice(){
+		long t = System.nanoTime();
+		if (slice < 0){
+			slice = 0;
+			stepSlices = Math.max(2, timeSlices); //fixed for the step
+		}
+		int advectSlices = Math.max(1, stepSlices - 2);
+		int firstAdvect = stepSlices - advectSlices;
+		
+		if (slice == 0){
+			beginStep();
+			recordPhase(StepPhase.TREE, t);
+		}
+		else {
+			if (slice == 1){
+				if (stretching){
+					stretchAndTilt();
+				}
+				t = recordPhase(StepPhase.STRETCH, t);
+				diffuseVorticity();
+				t = recordPhase(StepPhase.DIFFUSE, t);
+				phaseMillis[StepPhase.ADVECT.ordinal()] = 0f;
+			}
+			if (slice >= firstAdvect){
+				advectVortons(slice - firstAdvect, advectSlices);
+				phaseMillis[StepPhase.ADVECT.ordinal()] += (System.nanoTime() - t) * 1e-6f;
+			}
+		}
 		
-		float radiusOuter = radius + thickness;
-		Vector3f fromCenter = new Vector3f();
-		float tween;
-		Vector3f ptOnLine = new Vector3f();
-		Vector3f rho = new Vector3f();
-		float rhoL;
-		float distAlongDir;
+		if (++slice < stepSlices){
+			return false;
+		}
+		slice = -1;
+		finishStep();
+		return true;
+	}
+	
+	/**
+	 * Run whatever is left of a time-sliced step in flight.
+	 * */
+	protected void finishSlicedStep(){
+		if (slice < 0){
+			return;
+		}
+		boolean done = false;
+		while (!done){
+			done = stepSlice();
+		}
+		runSimulationTasks();
+	}
+	
+	/**
+	 * A step whose length is picked from the vorton velocities: advection
+	 * only records velocities, then the step is chosen, and positions are
+	 * moved last.
+	 * */
+	protected void stepAdaptive(long t){
+		if (vortonVelocities == null || vortonVelocities.length != backPos.length){
+			vortonVelocities = new float[backPos.length];
+		}
+		recordingVelocities = true;
+		advectVortons();
+		recordingVelocities = false;
+		timeStep = chooseTimeStep();
+		long advectNanos = System.nanoTime() - t;
+		t += advectNanos;
 		
-		Vector3f temp = new Vector3f();
+		if (stretching){
+			stretchAndTilt();
+		}
+		t = recordPhase(StepPhase.STRETCH, t);
+		diffuseVorticity();
+		t = recordPhase(StepPhase.DIFFUSE, t);
 		
-		Vector3f rhoHat = new Vector3f();
-		Vector3f phiHat = new Vector3f();
+		float[] bPos = backPos;
+		float[] fPos = frontPos;
+		float[] vel = vortonVelocities;
+		for (int i = 0; i < vel.length; i++){
+			fPos[i] = bPos[i] + vel[i] * timeStep;
+		}
+		phaseMillis[StepPhase.ADVECT.ordinal()] = (advectNanos + System.nanoTime() - t) * 1e-6f;
+	}
+	
+	/**
+	 * Pick the step length from the recorded vorton velocities.
+	 * */
+	protected float chooseTimeStep(){
+		float[] vel = vortonVelocities;
+		float maxSq = 0f;
+		for (int i = 0; i < vel.length; i += 3){
+			float sq = vel[i] * vel[i] + vel[i + 1] * vel[i + 1] + vel[i + 2] * vel[i + 2];
+			if (sq > maxSq){
+				maxSq = sq;
+			}
+		}
+		maxVortonSpeed = (float) Math.sqrt(maxSq);
 		
-		for (Vorton vI : vortons){
-			BufferedVorton v = (BufferedVorton) vI;
-						
-			fromCenter.set(v.getPosition()).subtractLocal(center);
-			tween = fromCenter.dot(direction);
-			
-			temp.set(direction).multLocal(tween);
-			ptOnLine.set(center).addLocal(temp);
-			rho.set(v.getPosition()).subtractLocal(ptOnLine);
-			
-			rhoL = rho.length();
-			distAlongDir = direction.dot(fromCenter);
-			
-			if (rhoL < radiusOuter && rhoL > radius){
-				float streamwiseProfile = FastMath.abs(distAlongDir) < height ?
-											0.5f * (FastMath.cos(FastMath.PI * distAlongDir / radius) + 1f) 
-											: 0f;
-				
-				float radialProfile = FastMath.sin(FastMath.PI * (rhoL - radius) / thickness);
-				float vortPhi = streamwiseProfile * radialProfile * FastMath.PI / thickness;
-				
-				rhoHat.set(rho);
-				rhoHat.normalizeLocal();
-				
-				direction.cross(rhoHat, phiHat);
-				phiHat.multLocal(vortPhi * strength);
-				
-				v.accumulateVorticity(phiHat);
+		float dt = maxVortonSpeed > 0f ? courantNumber * VORTON_RADIUS / maxVortonSpeed : maxTimeStep;
+		dt = Math.min(maxTimeStep, Math.max(minTimeStep, dt));
+		collectLeafGroups();
+		return Math.min(dt, getDiffusionStepLimit()); //over the minimum if need be: that would blow up
+	}
+	
+	protected synchronized void addSimTime(float time){
+		timeAccumulator += time;
+	}
+	
+	protected synchronized void subtractSimTime(float time){
+		timeAccumulator -= time;
+	}
+	
+	/**
+	 * Update the positions of the given list of tracer positions.
+	 * @param tracerPositions A list of tracer positions to sample. These Vector3fs themselves are updated
+	 * with the new positions.
+	 * @param tpf how much time to simulate for particle advection. In reality, particles are advanced by min(tpf, DT).
+	 * */
+	public void advectTracers(FluidTracer[] tracers, float tpf){
+		checkSimulationFailure();
+		if (asynchronous){
+			this.currentTPF = tpf;
+			beginSnapshotRead();
+			List<WorkRange> ranges = WorkRange.divideWork(tracers.length, tracers, this, tracerThreads.nThreads());
+			tracerThreads.submitWork(ranges, this);
+			endSnapshotRead();
+			return;
+		}
+		if (vortonTree == null){
+			backCopy();
+			buildVortonTree();
+		}
+		this.currentTPF = tpf;
+		
+		long ms = System.currentTimeMillis();
+		if (tracerGrid){
+			if (velocityGridStale){
+				fillVelocityGrid();
 			}
-			v.setPosition(v.getPosition()); //copy to front buffer
+			List<WorkRange> ranges = WorkRange.divideWork(tracers.length, tracers, this, tracerThreads.nThreads());
+			tracerThreads.submitWork(ranges, this);
+		}
+		else if (useLeafTraversal()){
+			advectTracersByLeaf(tracers);
+		}
+		else {
+			List<WorkRange> ranges = WorkRange.divideWork(tracers.length, tracers, this, tracerThreads.nThreads());
+			tracerThreads.submitWork(ranges, this);
+		}
+		if (debugPrintln)
+			System.out.println("Tracers took (ms): " + (System.currentTimeMillis() - ms));
+	}
+	
+	protected void beginSnapshotRead(){
+		readSnapshot = acquireSnapshot();
+		readAlpha = readSnapshot == null ? 1f : getSnapshotAlpha(readSnapshot);
+	}
+	
+	protected void endSnapshotRead(){
+		releaseSnapshot(readSnapshot);
+		readSnapshot = null;
+	}
+	
+	/**
+	 * Sample the velocity at every node of the tracer grid.
+	 * */
+	protected void fillVelocityGrid(){
+		if (interpolating){ //keep the last step's grid to blend from
+			UniformGrid t = previousVelocityGrid;
+			previousVelocityGrid = velocityGrid;
+			velocityGrid = t;
+		}
+		if (velocityGrid == null){
+			velocityGrid = new UniformGrid();
 		}
+		fillGrid(velocityGrid);
+		velocityGridStale = false;
 	}
 	
 	/**
-	 * Set a uniform vorticity over the whole field.
+	 * Lay the given grid over the vortons (plus a vorton radius) and sample the
+	 * velocity at every node.
 	 * */
-	public void uniformVorticity(Vector3f vort){
-		for (Vorton vI : vortons){
-			BufferedVorton v = (BufferedVorton) vI;
-			v.accumulateVorticity(vort);
-			v.setPosition(v.getPosition());
+	protected void fillGrid(UniformGrid grid){
+		Vector3f min = treeMin.subtract(VORTON_RADIUS, VORTON_RADIUS, VORTON_RADIUS);
+		Vector3f max = treeMax.add(VORTON_RADIUS, VORTON_RADIUS, VORTON_RADIUS);
+		grid.reset(min, max, tracerGridSpacing);
+		
+		long ms = System.currentTimeMillis();
+		List<WorkRange> ranges = WorkRange.divideWork(grid.nNodes(), grid, this, advectThreads.nThreads());
+		simWork = WORK_GRID;
+		advectThreads.submitWork(ranges, this);
+		if (debugPrintln)
+			System.out.println("Velocity grid took (ms): " + (System.currentTimeMillis() - ms));
+	}
+	
+	/**
+	 * Sample the velocity at a batch of points, on the worker threads.
+	 * 
+	 * The points are sorted along a Morton curve first, so each thread works on
+	 * a compact region of space. Like tracers, they read the tracer grid when it's on.
+	 * Scratch is kept between calls, so once warmed up this doesn't allocate
+	 * anything per point.
+	 * */
+	public void sampleVelocities(float[] positions, int nPoints, float[] velocities){
+		checkSimulationFailure();
+		if (nPoints <= 0){
+			return;
+		}
+		if (asynchronous){
+			beginSnapshotRead();
+			sampleBatch.prepare(positions, nPoints, velocities);
+			tracerThreads.submitWork(sampleBatch.getRanges(this, tracerThreads.nThreads()), this);
+			endSnapshotRead();
+			return;
+		}
+		if (vortonTree == null){
+			backCopy();
+			buildVortonTree();
+		}
+		if (tracerGrid && velocityGridStale){
+			fillVelocityGrid();
+		}
+		
+		long ms = System.currentTimeMillis();
+		sampleBatch.prepare(positions, nPoints, velocities);
+		tracerThreads.submitWork(sampleBatch.getRanges(this, tracerThreads.nThreads()), this);
+		if (debugPrintln)
+			System.out.println("Sampling took (ms): " + (System.currentTimeMillis() - ms));
+	}
+	
+	/**
+	 * The velocity for a tracer: from the tracer grid if it's on and covers the
+	 * tracer, otherwise computed directly.
+	 * */
+	protected void computeTracerVelocity(FluidTracer tracer, InfluenceBuffer scratch, float[] gradient, Vector3f store){
+		computeTracerVelocity(tracer.position, tracer.radius, scratch, gradient, store);
+	}
+	
+	protected void computeTracerVelocity(Vector3f position, float searchRadius, InfluenceBuffer scratch, float[] gradient, Vector3f store){
+		if (asynchronous){
+			FieldSnapshot s = readSnapshot;
+			boolean sampled = s != null && (interpolating && s.previous != null ? 
+					s.grid.sample(position, s.previous.grid, readAlpha, store) : 
+					s.grid.sample(position, store));
+			if (!sampled){
+				store.zero();
+			}
+			return;
+		}
+		if (tracerGrid && velocityGrid != null){
+			boolean sampled = interpolating && previousVelocityGrid != null ? 
+					velocityGrid.sample(position, previousVelocityGrid, getInterpolationAlpha(), store) : 
+					velocityGrid.sample(position, store);
+			if (sampled){
+				return;
+			}
 		}
+		computeVelocity(position, searchRadius, -1, scratch, gradient, store);
 	}
 	
 	/**
-	 * This is the one you want.
+	 * Bin the tracers by leaf, then advect each leaf's tracers against one shared influence list.
+	 * Tracers outside of the tree are queried one by one.
 	 * */
-	public void injectRadial(float strength, float scale, Vector3f center){
-		float x, y;
-		Vector3f vort = new Vector3f();
-		Vector3f pos = new Vector3f();
+	protected void advectTracersByLeaf(FluidTracer[] tracers){
+		OTree tree = (OTree) vortonTree;
+		if (tracerOrder.length < tracers.length){
+			tracerOrder = new int[tracers.length];
+			tracerSlots = new int[tracers.length];
+		}
 		
-		for (Vorton vI : vortons){
-			BufferedVorton v = (BufferedVorton) vI;
-			
-			pos.set(v.getPosition());
-			inputTransform.transformInverseVector(pos, pos);
-			
-			x = pos.x;
-			y = pos.y;
-			x *= scale;
-			y *= scale;
-			float norm = norm2(x, y);
-			if (norm >= 0.001f){
-				vort.x = vort.y = 0f;
-				vort.z = radialCurlZ(x, y) * strength;
-				
-				inputTransform.getRotation().multLocal(vort);
-				
-				v.accumulateVorticity(vort);
+		++binPass;
+		ArrayList<OTreeNode> leaves = tracerLeaves;
+		leaves.clear();
+		leaves.add(null); //slot 0 is for tracers outside of the tree
+		for (int i = 0; i < tracers.length; i++){
+			OTreeNode leaf = tree.findLeaf(tracers[i].position);
+			if (leaf == null){
+				tracerSlots[i] = 0;
+				continue;
 			}
-			v.setPosition(v.getPosition());
+			if (leaf.binPass != binPass){
+				leaf.binPass = binPass;
+				leaf.binSlot = leaves.size();
+				leaves.add(leaf);
+			}
+			tracerSlots[i] = leaf.binSlot;
+		}
+		
+		int nSlots = leaves.size();
+		if (tracerStarts.length < nSlots + 1){
+			tracerStarts = new int[nSlots + 1];
+			tracerFill = new int[nSlots + 1];
+		}
+		int[] starts = tracerStarts;
+		Arrays.fill(starts, 0, nSlots + 1, 0);
+		for (int i = 0; i < tracers.length; i++){
+			starts[tracerSlots[i] + 1]++;
+		}
+		for (int s = 0; s < nSlots; s++){
+			starts[s + 1] += starts[s];
+		}
+		int[] fill = tracerFill;
+		System.arraycopy(starts, 0, fill, 0, nSlots + 1);
+		for (int i = 0; i < tracers.length; i++){
+			tracerOrder[fill[tracerSlots[i]]++] = i;
+		}
+		
+		int nItems = 0;
+		for (int s = 0; s < nSlots; s++){
+			if (starts[s] == starts[s + 1]){
+				continue;
+			}
+			LeafWorkItem item = getLeafWorkItem(tracerLeafWork, nItems++);
+			item.leaf = leaves.get(s);
+			item.tracers = tracers;
+			item.first = starts[s];
+			item.last = starts[s + 1] - 1;
+		}
+		tracerThreads.submitWork(WorkRange.divideWork(nItems, tracerLeafWork, this, tracerThreads.nThreads() * LEAF_RANGES_PER_THREAD), this);
+		for (int k = 0; k < nItems; k++){ //don't keep the tracers alive
+			tracerLeafWork.get(k).tracers = null;
 		}
 	}
 	
-	private float radialCurlZ(float x, float y){
-		float normQd = norm2Sq(x, y);
-		normQd *= 2;
-		return -(2 * x * FastMath.sign(y) / normQd) + (2 * y * FastMath.sign(x) / normQd);    
+	/**
+	 * Get the item at the given index of a pool of work items, growing the pool as needed.
+	 * Items are reused as they are, so every field that matters has to be set.
+	 * */
+	protected LeafWorkItem getLeafWorkItem(ArrayList<LeafWorkItem> pool, int index){
+		if (index == pool.size()){
+			pool.add(new LeafWorkItem(this));
+		}
+		return pool.get(index);
+	}
+
+	/**
+	 * Build the OTree of vortons.
+	 * 
+	 * This is public because you may want the tree for debugging purposes.
+	 * */
+	public void buildVortonTree(){
+		Vector3f min = new Vector3f();
+		Vector3f max = new Vector3f();
+		computeBounds(min, max);
+		treeMin.set(min);
+		treeMax.set(max);
+		velocityGridStale = true;
+		
+		if (vortonTree == null){
+			vortonTree = new OTree();
+		}
+		long ms = System.currentTimeMillis();
+		vortonTree.build(vortons, min, max, gridResolution);
+		if (velocityMethod == VelocityMethod.BARNES_HUT){
+			buildBarnesHutTree(min, max);
+		}
+		else if (velocityMethod == VelocityMethod.FMM){
+			if (fmm == null){
+				fmm = new VortonFMM();
+				fmm.setMaxLevel(gridResolution);
+			}
+			fmm.build(backPos, backVort, vortons.length, min, max);
+		}
+		else if (velocityMethod == VelocityMethod.VORTEX_IN_CELL){
+			if (vic == null){
+				vic = new VortonVIC();
+				vic.setGridSize(2 << gridResolution);
+			}
+			vic.build(backPos, backVort, vortons.length, min, max);
+		}
+		if (debugPrintln){
+			System.out.println("Tree build took (ms) : " + (System.currentTimeMillis() - ms) + 
+					" Bounds: " + min + ", " + max);
+		}
+	}
+
+	protected void buildBarnesHutTree(Vector3f min, Vector3f max){
+		if (bhTree == null){
+			bhTree = new VortonBHTree(min, max, barnesHutMultipoleOrder);
+		}
+		else {
+			bhTree.clear(min, max);
+		}
+		
+		for (Vorton v : vortons){
+			bhTree.add(v);
+		}
+		bhTree.updateDerived();
 	}
 	
-	private float norm2Sq(float x, float y){
-		return (x * x) + (y * y);
+	/**
+	 * Gather the influences on the given position into a buffer, using the
+	 * current velocity method.
+	 * 
+	 * @param exclude the index of a vorton to leave out (e.g. the one being advected), or -1.
+	 * */
+	protected void getInfluences(Vector3f pos, float searchRadius, int exclude, InfluenceBuffer store){
+		if (velocityMethod == VelocityMethod.BARNES_HUT && bhTree != null){
+			bhTree.getInfluences(pos, barnesHutTheta, exclude, store);
+		}
+		else { //the Barnes-Hut tree isn't built until the next step after switching to it.
+			vortonTree.getInfluences(pos, searchRadius, exclude, store);
+		}
+	}
+	
+	/**
+	 * Compute the field velocity at the given position, using the current velocity method.
+	 * 
+	 * @param searchRadius the search radius for tree queries.
+	 * @param exclude the index of a vorton to leave out of the sum (e.g. the one being advected), or -1.
+	 * @param scratch a buffer to gather influences in.
+	 * @param gradient 12 floats of scratch for the FMM.
+	 * */
+	protected void computeVelocity(Vector3f pos, float searchRadius, int exclude, InfluenceBuffer scratch, float[] gradient, Vector3f store){
+		computeVelocity(pos, searchRadius, exclude, scratch, gradient, backVort, store);
 	}
 	
-	private float norm2(float x, float y){
-		return FastMath.sqrt((x * x) + (y * y));
+	/**
+	 * Compute the velocity, reading nearby vortons' vorticity from the given
+	 * buffer (the FMM and vortex-in-cell use what they were built from).
+	 * */
+	protected void computeVelocity(Vector3f pos, float searchRadius, int exclude, InfluenceBuffer scratch, float[] gradient, 
+			float[] vorticities, Vector3f store){
+		if (velocityMethod == VelocityMethod.FMM && fmm != null){
+			fmm.computeVelocity(pos, gradient, store);
+			return;
+		}
+		if (velocityMethod == VelocityMethod.VORTEX_IN_CELL && vic != null){
+			vic.computeVelocity(pos, store);
+			return;
+		}
+		
+		scratch.clear();
+		getInfluences(pos, searchRadius, exclude, scratch);
+		TracerMath.computeVelocityFromInfluences(pos, scratch, backPos, vorticities, store);
 	}
 	
-	public void injectRadial(float strength, Vector3f center){
-		Vector3f fromCenter = new Vector3f();
-		Vector3f vort = new Vector3f();
-		
-		for (Vorton vI : vortons){
-			BufferedVorton v = (BufferedVorton) vI;
-			
-			fromCenter.set(v.getPosition()).subtractLocal(center);
-			
-			if (fromCenter.length() <= 0.001f){
-				continue;
-			}
-			
-			vort.set(0, 0, 0);
-			vort.z = injectRadialDiff(fromCenter.x, fromCenter.x, fromCenter.y) - 
-					 injectRadialDiff(fromCenter.y, fromCenter.x, fromCenter.y);
-			vort.multLocal(strength);
-			
-			v.accumulateVorticity(vort);
-			v.setPosition(v.getPosition());
+	/**
+	 * Compute the bounds of all vorton positions in the back buffer.
+	 * */
+	protected void computeBounds(Vector3f min, Vector3f max){
+		if (vortons.length < PARALLEL_BOUNDS_THRESHOLD || advectThreads.nThreads() < 2){
+			min.set(Vector3f.POSITIVE_INFINITY);
+			max.set(Vector3f.NEGATIVE_INFINITY);
+			accumulateBounds(backPos, 0, vortons.length - 1, min, max);
+			return;
 		}
+		
+		boundsMin.set(Vector3f.POSITIVE_INFINITY);
+		boundsMax.set(Vector3f.NEGATIVE_INFINITY);
+		List<WorkRange> ranges = WorkRange.divideWork(vortons.length, backPos, this, advectThreads.nThreads());
+		simWork = WORK_BOUNDS;
+		advectThreads.submitWork(ranges, this);
+		min.set(boundsMin);
+		max.set(boundsMax);
 	}
 	
-	private float injectRadialDiff(float q, float x, float y){
-		return (q * q) / FastMath.pow((x * x + y * y), 1.5f);
+	/**
+	 * Merge one range's bounds. Locks the bounds rather than the space, so
+	 * nothing holding the space's lock can stall a step.
+	 * */
+	protected void mergeBounds(Vector3f min, Vector3f max){
+		synchronized (boundsMin){
+			boundsMin.minLocal(min);
+			boundsMax.maxLocal(max);
+		}
 	}
 	
 	/**
-	 * Injects horizontal radial.
+	 * Grow min/max to contain positions first..last (inclusive) of a flat xyz buffer.
 	 * */
-	public void injectRadial(float height, float radius, float strength, float zFudge, int samples, Vector3f center){
-		float degreesPerSample = 360f / (float) samples;
-		float degAccum = 0f;
-		
-		Vector3f dir = new Vector3f();
-		Vector3f pos = new Vector3f();
-		for (int i = 0; i < samples; i++){
-			pos.set(radius * FastMath.cos(FastMath.DEG_TO_RAD * degAccum), 
-					radius * FastMath.sin(FastMath.DEG_TO_RAD * degAccum), 
-					0);
-			dir.set(pos).normalizeLocal();
-			pos.addLocal(center);
-			
-			dir.z += zFudge;
-			injectJetRing(0.01f, height, 0.2f, strength, dir, pos);
-			
-			degAccum += degreesPerSample;
+	protected static void accumulateBounds(float[] positions, int first, int last, Vector3f min, Vector3f max){
+		float minX = min.x, minY = min.y, minZ = min.z;
+		float maxX = max.x, maxY = max.y, maxZ = max.z;
+		for (int i = first; i <= last; i++){
+			int offset = i * 3;
+			float x = positions[offset], y = positions[offset + 1], z = positions[offset + 2];
+			if (x < minX) minX = x;
+			if (x > maxX) maxX = x;
+			if (y < minY) minY = y;
+			if (y > maxY) maxY = y;
+			if (z < minZ) minZ = z;
+			if (z > maxZ) maxZ = z;
 		}
+		min.set(minX, minY, minZ);
+		max.set(maxX, maxY, maxZ);
 	}
-	
+
 	/**
-	 * Step the simulation forward by dt.
-	 * @param dt how much time to add to the simulation.
+	 * Stretch and tilt every vorton's vorticity by the velocity gradient there:
+	 * dw/dt = (w . grad) u. The new values are written to a scratch buffer (other
+	 * threads are still reading the old ones), which diffusion and advection then
+	 * carry on from. The back buffer is left as is, for tracers and probes.
 	 * */
-	public void stepSimulation(float dt){
-		timeAccumulator += dt; //let's be honest, this lags.
-		if (timeAccumulator > DT){ //if you put a "while" instead of an "if", simulation is better, but performance is unacceptable.
-			swapBuffers();
-			buildVortonTree();
-			
-			//stretchAndTilt();
-			diffuseVorticity();
-			advectVortons();
-			timeAccumulator -= DT;
+	protected void stretchAndTilt(){
+		if (stretchVort == null || stretchVort.length != backVort.length){
+			stretchVort = new float[backVort.length];
 		}
+		
+		List<WorkRange> ranges = WorkRange.divideWork(vortons.length, vortons, this, advectThreads.nThreads());
+		
+		long ms = System.currentTimeMillis();
+		simWork = WORK_STRETCH;
+		advectThreads.submitWork(ranges, this);
+		stepVort = stretchVort;
+		if (debugPrintln)
+			System.out.println("Stretch and tilt took (ms): " + (System.currentTimeMillis() - ms));
 	}
 	
-	protected synchronized void addSimTime(float time){
-		timeAccumulator += time;
+	/**
+	 * Stretch the vorton at the given index, given its velocity and velocity gradient
+	 * (as from {@link TracerMath#computeVelocityAndGradientFromInfluences}).
+	 * */
+	protected void stretchVorton(int index, float[] gradient){
+		int offset = index * 3;
+		float wx = backVort[offset], wy = backVort[offset + 1], wz = backVort[offset + 2];
+		
+		stretchVort[offset] = wx + (gradient[3] * wx + gradient[4] * wy + gradient[5] * wz) * timeStep;
+		stretchVort[offset + 1] = wy + (gradient[6] * wx + gradient[7] * wy + gradient[8] * wz) * timeStep;
+		stretchVort[offset + 2] = wz + (gradient[9] * wx + gradient[10] * wy + gradient[11] * wz) * timeStep;
 	}
 	
-	protected synchronized void subtractSimTime(float time){
-		timeAccumulator -= time;
+	
+	protected void advectVortons(){
+		advectVortons(0, 1);
 	}
 	
 	/**
-	 * Update the positions of the given list of tracer positions.
-	 * @param tracerPositions A list of tracer positions to sample. These Vector3fs themselves are updated
-	 * with the new positions.
-	 * @param tpf how much time to simulate for particle advection. In reality, particles are advanced by min(tpf, DT).
+	 * Advect one of nParts equal parts of the vortons. Probes ride along with the last part.
 	 * */
-	public void advectTracers(FluidTracer[] tracers, float tpf){
-		if (vortonTree == null){
-			backCopy();
-			buildVortonTree();
+	protected void advectVortons(int part, int nParts){
+		if (useLeafTraversal()){
+			advectVortonsByLeaf(part, nParts);
+			return;
 		}
-		this.currentTPF = tpf;
 		
-		List<WorkRange> ranges = WorkRange.divideWork(tracers.length, tracers, this, tracerThreads.nThreads());
+		int first = (int) ((long) vortons.length * part / nParts);
+		int end = (int) ((long) vortons.length * (part + 1) / nParts);
+		List<WorkRange> ranges = WorkRange.divideWork(first, end - first, vortons, this, advectThreads.nThreads());
+		int nProbes = part == nParts - 1 ? probes.beginPass() : 0;
+		if (nProbes > 0){ //probes ride along in the same submission
+			ranges.addAll(WorkRange.divideWork(nProbes, probes, this, advectThreads.nThreads()));
+		}
 		
 		long ms = System.currentTimeMillis();
-		tracerThreads.submitWork(ranges, this);
+		simWork = WORK_ADVECT;
+		advectThreads.submitWork(ranges, this);
+		if (part == nParts - 1){
+			probes.publish();
+		}
 		if (debugPrintln)
-			System.out.println("Tracers took (ms): " + (System.currentTimeMillis() - ms));
+			System.out.println("Advection took (ms): " + (System.currentTimeMillis() - ms));
+		
 	}
-
+	
 	/**
-	 * Build the OTree of vortons.
-	 * 
-	 * This is public because you may want the tree for debugging purposes.
+	 * Advect each occupied leaf's vortons against one shared influence list,
+	 * for one of nParts equal parts of the leaves.
 	 * */
-	public void buildVortonTree(){
-		Vector3f min = new Vector3f(Vector3f.POSITIVE_INFINITY);
-		Vector3f max = new Vector3f(Vector3f.NEGATIVE_INFINITY);
+	protected void advectVortonsByLeaf(int part, int nParts){
+		ArrayList<OTreeNode> leaves = vortonLeaves;
+		leaves.clear();
+		((OTree) vortonTree).getLeaves(leaves);
 		
-		for (Vorton v : vortons){
-			min.minLocal(v.getPosition());
-			max.maxLocal(v.getPosition());
-		}
-		if (vortonTree == null){
-			vortonTree = new OTree(min, max);
-			vortonTree.splitTo(gridResolution);
+		int first = (int) ((long) leaves.size() * part / nParts);
+		int end = (int) ((long) leaves.size() * (part + 1) / nParts);
+		for (int i = first; i < end; i++){
+			LeafWorkItem item = getLeafWorkItem(vortonLeafWork, i - first);
+			item.leaf = leaves.get(i);
+			item.vortons = item.leaf.getItems();
 		}
-		else {
-			vortonTree.rebuild(min, max, gridResolution);
+		List<WorkRange> ranges = WorkRange.divideWork(end - first, vortonLeafWork, this, advectThreads.nThreads() * LEAF_RANGES_PER_THREAD);
+		int nProbes = part == nParts - 1 ? probes.beginPass() : 0;
+		if (nProbes > 0){
+			ranges.addAll(WorkRange.divideWork(nProbes, probes, this, advectThreads.nThreads()));
 		}
+		
 		long ms = System.currentTimeMillis();
-		for (Vorton v : vortons){
-			vortonTree.insert(v);
-		}
-		vortonTree.getRoot().updateDerivedQuantities();
-		if (debugPrintln){
-			System.out.println("Tree build took (ms) : " + (System.currentTimeMillis() - ms) + 
-					" Bounds: " + vortonTree.getRoot().getMin() + ", " + vortonTree.getRoot().getMax());
+		simWork = WORK_LEAVES;
+		advectThreads.submitWork(ranges, this);
+		if (part == nParts - 1){
+			probes.publish();
 		}
-	}
-
-	protected void stretchAndTilt(){
-//		stretchWork.addAll(vortons);
-//		outstandingWorkItems = new CountDownLatch()
-//		long ms = System.currentTimeMillis();
-//		synchronized (outstandingWorkItems){
-//			try {
-//				while (outstandingWorkItems.get() != 0){
-//					outstandingWorkItems.wait();
-//				}
-//				if (debugPrintln)
-//					System.out.println("Stretch and tilt took (ms): " + (System.currentTimeMillis() - ms));
-//			} catch (InterruptedException ex) {
-//				ex.printStackTrace();
-//			}
-//		}
+		if (debugPrintln)
+			System.out.println("Advection took (ms): " + (System.currentTimeMillis() - ms));
 	}
 	
+	protected void advectLeafVortons(LeafWorkItem item, InfluenceBuffer influences, ThreadVars vars){
+		int nDue = 0;
+		for (int i = 0; i < item.vortons.size(); i++){
+			int index = item.vortons.get(i).getIndex();
+			if (isAdvectionDue(index)){
+				++nDue;
+			}
+			else {
+				holdVorton(index);
+			}
+		}
+		if (nDue == 0){
+			return;
+		}
+		
+		influences.clear();
+		((OTree) vortonTree).getLeafInteractions(item.leaf, VORTON_RADIUS, influences);
+		influences.gather(backPos, stepVort, FOUR_THIRDS_PI * VORTON_RADIUS_CUBE);
+		
+		Vector3f pos = vars.temp1;
+		Vector3f vel = vars.temp0;
+		for (int i = 0; i < item.vortons.size(); i++){ //a vorton's own contribution is exactly zero, so it needn't be removed
+			int index = item.vortons.get(i).getIndex();
+			if (!isAdvectionDue(index)){
+				continue;
+			}
+			int offset = index * 3;
+			pos.set(backPos[offset], backPos[offset + 1], backPos[offset + 2]);
+			TracerMath.computeVelocityFromGathered(pos, influences, vel);
+			advectVorton(index, vel);
+		}
+	}
 	
-	protected void advectVortons(){
-		List<WorkRange> ranges = WorkRange.divideWork(vortons.length, vortons, this, advectThreads.nThreads());
+	protected void advectLeafTracers(LeafWorkItem item, InfluenceBuffer influences, ThreadVars vars, float[] gradient){
+		Vector3f vel = vars.temp0;
+		if (item.leaf == null){
+			for (int k = item.first; k <= item.last; k++){
+				FluidTracer tracer = item.tracers[tracerOrder[k]];
+				computeVelocity(tracer.position, tracer.radius, -1, influences, gradient, vel);
+				TracerMath.moveTracer(tracer, vel, vars, currentTPF, timeStep);
+			}
+			return;
+		}
 		
-		long ms = System.currentTimeMillis();
-		advectThreads.submitWork(ranges, this);
-		if (debugPrintln)
-			System.out.println("Advection took (ms): " + (System.currentTimeMillis() - ms));
+		float radius = 0f; //the list has to serve the tracer with the largest search radius
+		for (int k = item.first; k <= item.last; k++){
+			radius = Math.max(radius, item.tracers[tracerOrder[k]].radius);
+		}
 		
+		influences.clear();
+		((OTree) vortonTree).getLeafInteractions(item.leaf, radius, influences);
+		influences.gather(backPos, backVort, FOUR_THIRDS_PI * VORTON_RADIUS_CUBE);
+		for (int k = item.first; k <= item.last; k++){
+			FluidTracer tracer = item.tracers[tracerOrder[k]];
+			TracerMath.computeVelocityFromGathered(tracer.position, influences, vel);
+			TracerMath.moveTracer(tracer, vel, vars, currentTPF, timeStep);
+		}
+	}
+	
+	/**
+	 * Evaluate probes first..last (inclusive) against the back buffers.
+	 * 
+	 * The velocity and its gradient come from one pass over the influences, and
+	 * the vorticity is the curl of that gradient. With the FMM and vortex-in-cell
+	 * methods, the velocity comes from those engines instead.
+	 * */
+	protected void evaluateProbes(VelocityProbes probes, int first, int last, InfluenceBuffer scratch, ThreadVars vars, float[] gradient){
+		Vector3f pos = vars.temp1;
+		Vector3f vel = vars.temp0;
+		for (int i = first; i <= last; i++){
+			if (!probes.isLive(i)){
+				probes.clear(i);
+				continue;
+			}
+			probes.getPosition(i, pos);
+			boolean engine = (velocityMethod == VelocityMethod.FMM && fmm != null) || 
+				(velocityMethod == VelocityMethod.VORTEX_IN_CELL && vic != null);
+			if (engine){ //before the gradient is filled, since the FMM uses it as scratch
+				computeVelocity(pos, VORTON_RADIUS, -1, scratch, gradient, vel);
+			}
+			scratch.clear();
+			getInfluences(pos, VORTON_RADIUS, -1, scratch);
+			TracerMath.computeVelocityAndGradientFromInfluences(pos, scratch, backPos, backVort, gradient);
+			if (!engine){
+				vel.set(gradient[0], gradient[1], gradient[2]);
+			}
+			probes.store(i, vel, gradient[10] - gradient[8], gradient[5] - gradient[9], gradient[6] - gradient[4]);
+		}
 	}
 	
 	protected void diffuseVorticity(){
-		ArrayList<OTreeNode> groups = new ArrayList<OTreeNode>();
-		vortonTree.getRoot().getLeaves(groups);
+		collectLeafGroups();
+		ArrayList<List<Vorton>> groups = leafGroups;
 		
 		ArrayList<DiffuseWorkItem> work = new ArrayList<DiffuseWorkItem>(groups.size());
 		
 		for (int i = 0; i < groups.size(); i++){
-			OTreeNode node = groups.get(i);
+			if (trackingActivity && holdSleepingGroup(groups.get(i))){
+				continue;
+			}
 			DiffuseWorkItem item = new DiffuseWorkItem(this);
-			node.getItems(item.vortons);
+			item.vortons = groups.get(i);
 			work.add(item);
 		}
 		
@@ -619,35 +2298,149 @@ public class VortonSpace implements TracerAdvecter {
 	
 	
 	/**
-	 * Honestly, this is super slow and kinda broken.
+	 * Move the vorton at the given index from its back position, at the given velocity.
 	 * */
-	protected void getJacobian(List<Vorton> influences, Vector3f position, ThreadVars vars){
-		for (int i = 0; i < jacobianOffsets.length; i++){
-			position.add(jacobianOffsets[i], vars.vec[i]);
+	protected void advectVorton(int index, Vector3f velocity){
+		int offset = index * 3;
+		if (trackingActivity){
+			updateActivity(index, velocity);
 		}
-		
-		for (int i = 0; i < jacobianOffsets.length; i++){
-			TracerMath.computeVelocityFromVortons(vars.vec[i], influences, vars.temp2, vars.temp0, vars.temp1);
-			vars.vec[i].set(vars.temp2);
+		float steps = rateStepping ? assignRateClass(index, velocity) : 1f;
+		if (recordingVelocities){ //moved once the step length is known
+			float[] vel = vortonVelocities;
+			vel[offset] = velocity.x * steps;
+			vel[offset + 1] = velocity.y * steps;
+			vel[offset + 2] = velocity.z * steps;
+			return;
 		}
 		
-		vars.vec[1].subtractLocal(vars.vec[0]).divideLocal(JACOBIAN_D); // d/dx
-		vars.vec[3].subtractLocal(vars.vec[2]).divideLocal(JACOBIAN_D); // d/dy
-		vars.vec[5].subtractLocal(vars.vec[4]).divideLocal(JACOBIAN_D); // d/dz
+		float[] bPos = backPos;
+		float[] fPos = frontPos;
+		float dt = timeStep * steps;
 		
-		vars.mat.setColumn(0, vars.vec[1]);
-		vars.mat.setColumn(1, vars.vec[3]);
-		vars.mat.setColumn(2, vars.vec[5]);
+		fPos[offset] = bPos[offset] + velocity.x * dt;
+		fPos[offset + 1] = bPos[offset + 1] + velocity.y * dt;
+		fPos[offset + 2] = bPos[offset + 2] + velocity.z * dt;
 	}
 	
-	protected void advectVorton(Vorton v, List<Vorton> influences, ThreadVars vars){
-		TracerMath.computeVelocityFromVortons(v.getPosition(), influences, vars.temp0, vars.temp1, vars.temp2);
-		
-		vars.temp0.multLocal(DT);
-		
-		v.getPosition(vars.temp1);
-		vars.temp1.addLocal(vars.temp0);
-		v.setPosition(vars.temp1);
+	/**
+	 * Is the vorton at the given index due for advection this step?
+	 * */
+	protected boolean isAdvectionDue(int index){
+		if (trackingActivity && isAsleep(index) && (index + stepCount) % sleepCheckInterval != 0){
+			return false;
+		}
+		return !rateStepping || nextAdvection[index] <= stepCount;
+	}
+	
+	protected boolean isAsleep(int index){
+		return quietSteps[index] >= sleepDelay;
+	}
+	
+	/**
+	 * Count a step towards the vorton's sleep if it was quiet (by the vorticity
+	 * the step works from and the given velocity), or wake it up if not.
+	 * */
+	protected void updateActivity(int index, Vector3f velocity){
+		int offset = index * 3;
+		float[] sVort = stepVort;
+		float wx = sVort[offset], wy = sVort[offset + 1], wz = sVort[offset + 2];
+		if (wx * wx + wy * wy + wz * wz < sleepVorticity * sleepVorticity && 
+			velocity.lengthSquared() < sleepSpeed * sleepSpeed){
+			if (quietSteps[index] < sleepDelay){
+				++quietSteps[index];
+			}
+		}
+		else {
+			quietSteps[index] = 0;
+		}
+	}
+	
+	/**
+	 * Wake every vorton in a group (a leaf) if any of them has more than twice
+	 * the sleep vorticity.
+	 * 
+	 * @return true if the group was woken.
+	 * */
+	protected boolean wakeGroup(List<Vorton> group){
+		float[] bVort = stepVort;
+		float wake = 4f * sleepVorticity * sleepVorticity;
+		for (int i = 0; i < group.size(); i++){
+			int offset = group.get(i).getIndex() * 3;
+			float wx = bVort[offset], wy = bVort[offset + 1], wz = bVort[offset + 2];
+			if (wx * wx + wy * wy + wz * wz > wake){
+				for (int j = 0; j < group.size(); j++){
+					quietSteps[group.get(j).getIndex()] = 0;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * If every vorton in the group sleeps and none has enough vorticity to
+	 * wake them, carry their vorticities over; it isn't worth a work item.
+	 * 
+	 * @return true if the group was held.
+	 * */
+	protected boolean holdSleepingGroup(List<Vorton> group){
+		for (int i = 0; i < group.size(); i++){
+			if (!isAsleep(group.get(i).getIndex())){
+				return false;
+			}
+		}
+		if (wakeGroup(group)){
+			return false;
+		}
+		for (int i = 0; i < group.size(); i++){
+			int offset = group.get(i).getIndex() * 3;
+			frontVort[offset] = stepVort[offset];
+			frontVort[offset + 1] = stepVort[offset + 1];
+			frontVort[offset + 2] = stepVort[offset + 2];
+		}
+		return true;
+	}
+	
+	protected int countActive(){
+		int active = 0;
+		for (int i = 0; i < quietSteps.length; i++){
+			if (quietSteps[i] < sleepDelay){
+				++active;
+			}
+		}
+		return active;
+	}
+	
+	/**
+	 * Leave a vorton that isn't due where it is.
+	 * */
+	protected void holdVorton(int index){
+		int offset = index * 3;
+		if (recordingVelocities){
+			float[] vel = vortonVelocities;
+			vel[offset] = vel[offset + 1] = vel[offset + 2] = 0f;
+			return;
+		}
+		frontPos[offset] = backPos[offset];
+		frontPos[offset + 1] = backPos[offset + 1];
+		frontPos[offset + 2] = backPos[offset + 2];
+	}
+	
+	/**
+	 * Put a vorton in the slowest rate class its speed allows, and schedule its next advection.
+	 * 
+	 * @return how many steps it should be moved by now.
+	 * */
+	protected int assignRateClass(int index, Vector3f velocity){
+		float travel = velocity.length() * timeStep;
+		float limit = courantNumber * VORTON_RADIUS;
+		int rate = 0;
+		while (rate < maxRateClass && travel * (2 << rate) <= limit){
+			++rate;
+		}
+		nextAdvection[index] = stepCount + (1 << rate);
+		return 1 << rate;
 	}
 	
 	/**
@@ -656,32 +2449,95 @@ public class VortonSpace implements TracerAdvecter {
 	 * themselves is perhaps attractive enough for use.
 	 * */
 	public void traceVortons(List<Vector3f> tracers){
+		checkSimulationFailure();
+		if (asynchronous){
+			traceSnapshot(tracers);
+			return;
+		}
+		
 		Iterator<Vector3f> tIt = tracers.iterator();
+		float[] bPos = backPos;
+		
+		if (interpolating){
+			float[] fPos = frontPos;
+			float alpha = getInterpolationAlpha();
+			for (int i = 0; i < vortons.length && tIt.hasNext(); i++){
+				Vector3f trace = tIt.next();
+				int offset = i * 3;
+				trace.set(bPos[offset] + (fPos[offset] - bPos[offset]) * alpha, 
+						  bPos[offset + 1] + (fPos[offset + 1] - bPos[offset + 1]) * alpha, 
+						  bPos[offset + 2] + (fPos[offset + 2] - bPos[offset + 2]) * alpha);
+			}
+			return;
+		}
 		
 		for (int i = 0; i < vortons.length && tIt.hasNext(); i++){
 			Vector3f trace = tIt.next();
-			vortons[i].getPosition(trace);
+			int offset = i * 3;
+			trace.set(bPos[offset], bPos[offset + 1], bPos[offset + 2]);
+		}
+	}
+	
+	/**
+	 * traceVortons for asynchronous mode: read the published positions,
+	 * blended with the ones before them when interpolating.
+	 * */
+	protected void traceSnapshot(List<Vector3f> tracers){
+		FieldSnapshot s = acquireSnapshot();
+		if (s == null){
+			return;
+		}
+		
+		Iterator<Vector3f> tIt = tracers.iterator();
+		float[] pos = s.positions;
+		float[] prev = interpolating && s.previous != null && s.previous.positions.length == pos.length ? 
+				s.previous.positions : pos;
+		float alpha = getSnapshotAlpha(s);
+		for (int i = 0; i * 3 < pos.length && tIt.hasNext(); i++){
+			Vector3f trace = tIt.next();
+			int offset = i * 3;
+			trace.set(prev[offset] + (pos[offset] - prev[offset]) * alpha, 
+					  prev[offset + 1] + (pos[offset + 1] - prev[offset + 1]) * alpha, 
+					  prev[offset + 2] + (pos[offset + 2] - prev[offset + 2]) * alpha);
 		}
+		releaseSnapshot(s);
 	}
 	
 	protected void diffuseGroupOfVortons(List<Vorton> vortons, ThreadVars vars){
+		float[] bVort = stepVort;
+		float[] fVort = frontVort;
+		
+		boolean holdSleepers = trackingActivity && !wakeGroup(vortons);
+		float rate = viscosity;
+		if (rate * timeStep * vortons.size() > 1f){ //past the stable step: mix no faster than it can
+			rate = 1f / (timeStep * vortons.size());
+		}
+		float decay = Math.max(0f, 1f - (viscosity * timeStep));
+		
 		for (int i = 0; i < vortons.size(); i++){
-			Vorton v = vortons.get(i);
-			vars.temp1.zero();
+			int index = vortons.get(i).getIndex();
+			int vOffset = index * 3;
+			float vx = bVort[vOffset], vy = bVort[vOffset + 1], vz = bVort[vOffset + 2];
+			if (holdSleepers && isAsleep(index)){
+				fVort[vOffset] = vx;
+				fVort[vOffset + 1] = vy;
+				fVort[vOffset + 2] = vz;
+				continue;
+			}
+			float dx = 0f, dy = 0f, dz = 0f;
 			for (int j = 0; j < vortons.size(); j++){
 				if (i == j){
 					continue;
 				}
-				Vorton w = vortons.get(i);
+				int wOffset = vortons.get(j).getIndex() * 3;
 				
-				vars.temp0.set(w.getVort()).subtractLocal(v.getVort()).multLocal(viscosity);
-				vars.temp1.addLocal(vars.temp0);
+				dx += (bVort[wOffset] - vx) * rate;
+				dy += (bVort[wOffset + 1] - vy) * rate;
+				dz += (bVort[wOffset + 2] - vz) * rate;
 			}
-			v.getVort(vars.temp2);
-			vars.temp2.addLocal(vars.temp1.multLocal(DT));
-			vars.temp2.multLocal(1f - (viscosity * DT));
-			
-			v.setVort(vars.temp2);
+			fVort[vOffset] = (vx + dx * timeStep) * decay;
+			fVort[vOffset + 1] = (vy + dy * timeStep) * decay;
+			fVort[vOffset + 2] = (vz + dz * timeStep) * decay;
 		}
 	}
 	
@@ -696,7 +2552,7 @@ public class VortonSpace implements TracerAdvecter {
 	 * 
 	 * @return the most recent vorton octree built, or null if no tree has yet been built.
 	 * */
-	public OTree getLastTreeForDebug(){
+	public VortonTree getLastTreeForDebug(){
 		return vortonTree;
 	}
 
@@ -705,67 +2561,119 @@ public class VortonSpace implements TracerAdvecter {
 	 * */
 	protected class DiffuseWorkItem {
 		public final VortonSpace owner;
-		public ArrayList<Vorton> vortons = new ArrayList<Vorton>();
+		public List<Vorton> vortons;
 		public DiffuseWorkItem(VortonSpace owner){
 			this.owner = owner;
 		}
 			
 	}
 	
-//	/**
-//	 * Thread responsible for stretching/tilting.
-//	 * */
-//	protected class StretchThread implements Runnable {
-//		ThreadVars vars = new ThreadVars();
-//		ArrayList<Vorton> localVortons = new ArrayList<Vorton>(1000);
-//		
-//		public void run(){
-//			mainloop:
-//			while (!Thread.interrupted()){
-//				Vorton vorton;
-//				try {
-//					vorton = stretchWork.take();
-//				} catch (InterruptedException ex) {
-//					break mainloop;
-//				}
-//				
-//				localVortons.clear();
-//				vortonTree.getInfluentialVortons(vorton.getPosition(), VORTON_RADIUS, localVortons);
-//
-//				getJacobian(localVortons, vorton.getPosition(), vars);
-//				
-//				vars.temp0.set(vorton.getVort()); //get vorticity
-//				vars.mat.multLocal(vars.temp0); //stretch/tilt
-//				vars.temp0.multLocal(DT); //time
-//				vorton.getVort(vars.temp1); //old vorticity
-//				vars.temp1.addLocal(vars.temp0); //add new vorticity
-//				vorton.setVort(vars.temp1); //update
-//				outstandingWorkItems.countDown();
-//			}
-//		}
-//	}
-	
-	/**
-	 * Thread responsible for vorton advection.
+	/**
+	 * One leaf's worth of points to advect: either the leaf's vortons, or
+	 * the tracers at tracerOrder[first..last].
+	 * */
+	protected class LeafWorkItem {
+		public final VortonSpace owner;
+		public OTreeNode leaf;
+		public List<Vorton> vortons;
+		public FluidTracer[] tracers;
+		public int first;
+		public int last;
+		public LeafWorkItem(VortonSpace owner){
+			this.owner = owner;
+		}
+	}
+	
+	/**
+	 * The state published after a step in asynchronous mode.
+	 * */
+	protected static class FieldSnapshot {
+		public float[] positions = new float[0];
+		public final UniformGrid grid = new UniformGrid();
+		public FieldSnapshot previous;
+		public long nanoTime;
+		public final AtomicInteger readers = new AtomicInteger();
+	}
+	
+	/**
+	 * Thread responsible for vorton advection, and the rest of a step's range work:
+	 * leaf-by-leaf advection, stretching/tilting, bounds and the tracer grid.
 	 * */
 	protected static class AdvectKernel extends Kernel<WorkRange> {
 		ThreadVars vars = new ThreadVars();
-		ArrayList<Vorton> localVortons = new ArrayList<Vorton>(512);
+		InfluenceBuffer influences = new InfluenceBuffer();
+		float[] gradient = new float[12];
+		Vector3f min = new Vector3f();
+		Vector3f max = new Vector3f();
 		
 		public AdvectKernel(){}
 		
 		public void process(WorkRange range){
 			VortonSpace vs = (VortonSpace) range.parent;
-			Vorton[] vortons = (Vorton[]) range.workingSet;
+			if (range.workingSet instanceof VelocityProbes){
+				vs.evaluateProbes((VelocityProbes) range.workingSet, range.first, range.last, influences, vars, gradient);
+				return;
+			}
+			switch (vs.simWork){
+			case WORK_ADVECT:
+				advect(vs, range);
+				break;
+			case WORK_LEAVES:
+				List<?> items = (List<?>) range.workingSet;
+				for (int k = range.first; k <= range.last; k++){
+					vs.advectLeafVortons((LeafWorkItem) items.get(k), influences, vars);
+				}
+				break;
+			case WORK_STRETCH:
+				stretch(vs, range);
+				break;
+			case WORK_BOUNDS:
+				min.set(Vector3f.POSITIVE_INFINITY);
+				max.set(Vector3f.NEGATIVE_INFINITY);
+				accumulateBounds((float[]) range.workingSet, range.first, range.last, min, max);
+				vs.mergeBounds(min, max);
+				break;
+			case WORK_GRID:
+				fillGrid(vs, (UniformGrid) range.workingSet, range);
+				break;
+			}
+		}
+		
+		protected void advect(VortonSpace vs, WorkRange range){
+			for (int i = range.first; i <= range.last; i++){
+				if (!vs.isAdvectionDue(i)){
+					vs.holdVorton(i);
+					continue;
+				}
+				int offset = i * 3;
+				vars.temp1.set(vs.backPos[offset], vs.backPos[offset + 1], vs.backPos[offset + 2]);
+				vs.computeVelocity(vars.temp1, VORTON_RADIUS, i, influences, gradient, vs.stepVort, vars.temp0);
+				vs.advectVorton(i, vars.temp0);
+			}
+		}
+		
+		protected void stretch(VortonSpace vs, WorkRange range){
 			for (int i = range.first; i <= range.last; i++){
-				Vorton vorton = vortons[i];
-				if (!localVortons.isEmpty()){
-					localVortons.clear();
+				int offset = i * 3;
+				if (vs.trackingActivity && vs.isAsleep(i)){
+					vs.stretchVort[offset] = vs.backVort[offset];
+					vs.stretchVort[offset + 1] = vs.backVort[offset + 1];
+					vs.stretchVort[offset + 2] = vs.backVort[offset + 2];
+					continue;
 				}
-				vs.vortonTree.getInfluentialVortons(vorton.getPosition(), VORTON_RADIUS, localVortons);
-				localVortons.remove(vorton);
-				vs.advectVorton(vorton, localVortons, vars);
-				localVortons.clear();
+				vars.temp1.set(vs.backPos[offset], vs.backPos[offset + 1], vs.backPos[offset + 2]);
+				influences.clear();
+				vs.getInfluences(vars.temp1, VORTON_RADIUS, i, influences);
+				TracerMath.computeVelocityAndGradientFromInfluences(vars.temp1, influences, vs.backPos, vs.backVort, gradient);
+				vs.stretchVorton(i, gradient);
+			}
+		}
+		
+		protected void fillGrid(VortonSpace vs, UniformGrid grid, WorkRange range){
+			for (int i = range.first; i <= range.last; i++){
+				grid.getNodePosition(i, vars.temp1);
+				vs.computeVelocity(vars.temp1, VORTON_RADIUS, -1, influences, gradient, vars.temp0);
+				grid.setVelocity(i, vars.temp0);
 			}
 		}
 	}
@@ -784,73 +2692,121 @@ public class VortonSpace implements TracerAdvecter {
 	}
 	
 	/**
-	 * Thread responsible for update tracer locations.
+	 * Thread responsible for update tracer locations, batch velocity samples,
+	 * and leaf-by-leaf tracers.
 	 * */
 	protected static class TracerKernel extends Kernel<WorkRange> {
 		ThreadVars vars = new ThreadVars();
-		ArrayList<Vorton> localVortons = new ArrayList<Vorton>(512);
+		InfluenceBuffer influences = new InfluenceBuffer();
+		float[] gradient = new float[12];
 		
 		public TracerKernel(){}
 		
 		public void process(WorkRange range){
 			VortonSpace vs = (VortonSpace) range.parent;
+			if (range.workingSet instanceof SampleBatch){
+				sample(vs, (SampleBatch) range.workingSet, range);
+				return;
+			}
+			if (range.workingSet instanceof List){
+				List<?> items = (List<?>) range.workingSet;
+				for (int k = range.first; k <= range.last; k++){
+					vs.advectLeafTracers((LeafWorkItem) items.get(k), influences, vars, gradient);
+				}
+				return;
+			}
 			FluidTracer[] workingSet = (FluidTracer[]) range.workingSet;
 			for (int i = range.first; i <= range.last; i++){
 				FluidTracer tracer = workingSet[i];
-				if (!localVortons.isEmpty()){
-					localVortons.clear();
-				}
-				vs.vortonTree.getInfluentialVortons(tracer.position, tracer.radius, localVortons);
-				TracerMath.advectTracer(tracer, localVortons, vars, vs.currentTPF);
-				localVortons.clear();
+				vs.computeTracerVelocity(tracer, influences, gradient, vars.temp0);
+				TracerMath.moveTracer(tracer, vars.temp0, vars, vs.currentTPF, vs.timeStep);
+			}
+		}
+		
+		protected void sample(VortonSpace vs, SampleBatch batch, WorkRange range){
+			for (int k = range.first; k <= range.last; k++){
+				int i = batch.order[k];
+				int o = i * 3;
+				vars.temp1.set(batch.positions[o], batch.positions[o + 1], batch.positions[o + 2]);
+				vs.computeTracerVelocity(vars.temp1, VORTON_RADIUS, influences, gradient, vars.temp0);
+				batch.setVelocity(i, vars.temp0.x, vars.temp0.y, vars.temp0.z);
 			}
 		}
 	}
 	
 	/**
 	 * A vorton that links back to VortonSpace front/back buffers.
+	 * 
+	 * The vectors returned by {@link #getPosition()} and {@link #getVort()} are
+	 * per-vorton views refreshed from the back buffer on each call; writing to
+	 * them does not write through, and two threads reading the same vorton
+	 * race on them (see {@link Vorton#getPosition()}). The kernels don't use
+	 * them at all, they read the buffers by {@link #getIndex()}.
 	 * */
 	public class BufferedVorton extends Vorton {
 		protected final int index;
+		protected final int offset;
+		protected final Vector3f positionView = new Vector3f();
+		protected final Vector3f vortView = new Vector3f();
 		
 		public BufferedVorton(int index){
 			this.index = index;
+			this.offset = index * 3;
+		}
+		
+		public int getIndex(){
+			return index;
 		}
 		
 		public void initializeAll(Vector3f position, Vector3f vort){
-			backPos.get()[index].set(position);
-			frontPos.get()[index].set(position);
+			write(backPos, position);
+			write(frontPos, position);
 			
-			backVort.get()[index].set(vort);
-			frontVort.get()[index].set(vort);
+			write(backVort, vort);
+			write(frontVort, vort);
 		}
 		
 		public void accumulateVorticity(Vector3f vortContrib){
-			frontVort.get()[index].addLocal(vortContrib);
+			float[] fVort = frontVort;
+			fVort[offset] += vortContrib.x;
+			fVort[offset + 1] += vortContrib.y;
+			fVort[offset + 2] += vortContrib.z;
 		}
 		
 		public Vector3f getPosition(){
-			return backPos.get()[index];
+			getPosition(positionView);
+			return positionView;
 		}
 		
 		public void getPosition(Vector3f store){
-			store.set(backPos.get()[index]);
+			read(backPos, store);
 		}
 		
 		public void setPosition(Vector3f value){
-			frontPos.get()[index].set(value);
+			write(frontPos, value);
 		}
 		
 		public void getVort(Vector3f store){
-			store.set(backVort.get()[index]);
+			read(backVort, store);
 		}
 		
 		public Vector3f getVort(){
-			return backVort.get()[index];
+			getVort(vortView);
+			return vortView;
 		}
 		
 		public void setVort(Vector3f value){
-			frontVort.get()[index].set(value);
+			write(frontVort, value);
+		}
+		
+		protected void read(float[] buffer, Vector3f store){
+			store.set(buffer[offset], buffer[offset + 1], buffer[offset + 2]);
+		}
+		
+		protected void write(float[] buffer, Vector3f value){
+			buffer[offset] = value.x;
+			buffer[offset + 1] = value.y;
+			buffer[offset + 2] = value.z;
 		}
 		
 		public boolean equals(Object o){
@@ -0,0 +1,277 @@
+package com.htssoft.sploosh.presentation;
+
+import java.util.ArrayList;
+
+import com.htssoft.sploosh.TracerAdvecter;
+import com.htssoft.sploosh.VortonSpace;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Camera.FrustumIntersect;
+
+/**
+ * Scales a {@link FluidView} (and the {@link VortonSpace} it drives) down
+ * with its distance from the camera.
+ *
+ * Each level applies from the previous level's distance out to its own, and
+ * scales the settings the view had when the level of detail first saw it: the
+ * simulation step is made longer (so fewer steps are run per second), the
+ * tree shallower, and fewer tracers are kept alive. Distance is measured from
+ * the camera to the view's bounds, so a camera inside the effect is at 0.
+ *
+ * When the view is outside of every camera's frustum, it drops to keep-alive:
+ * the simulation runs at the keep-alive settings and tracers are suspended
+ * (kept, but neither affected nor advected) until it is seen again.
+ *
+ * Longer steps are not held to {@link VortonSpace#getDiffusionStepLimit()},
+ * which depends on the tree a level hasn't built yet; past it, diffusion
+ * mixes as fast as it stably can, so a distant or unseen effect is
+ * somewhat less viscous rather than unstable.
+ *
+ * Only the view that drives its simulation changes the simulation's
+ * settings, and a {@link VortonSpace#isDeterministic() deterministic}
+ * simulation is left alone. A {@link FrameBudgetGovernor} on the same view
+ * would fight over the same settings; use one or the other.
+ * */
+public class FluidLevelOfDetail {
+	/**
+	 * One distance band.
+	 * */
+	public static class Level {
+		/**
+		 * How far from the camera this level reaches.
+		 * */
+		public final float maxDistance;
+		/**
+		 * What the simulation step is multiplied by.
+		 * */
+		public final float stepFactor;
+		/**
+		 * How many levels shallower the tree is.
+		 * */
+		public final int depthDrop;
+		/**
+		 * The fraction of tracers kept alive.
+		 * */
+		public final float tracerFraction;
+
+		public Level(float maxDistance, float stepFactor, int depthDrop, float tracerFraction){
+			this.maxDistance = maxDistance;
+			this.stepFactor = stepFactor;
+			this.depthDrop = depthDrop;
+			this.tracerFraction = tracerFraction;
+		}
+	}
+
+	/**
+	 * The level index reported while off screen.
+	 * */
+	public static final int KEEP_ALIVE = -1;
+
+	protected final ArrayList<Level> levels = new ArrayList<Level>();
+	protected Level keepAlive = new Level(Float.POSITIVE_INFINITY, 4f, 2, 0f);
+	protected float hysteresis = 0.1f;
+	protected int minTreeDepth = 1;
+
+	protected int level = 0;
+	protected boolean initialized = false;
+	protected int baseTracers;
+	protected int baseTreeDepth;
+	protected float baseStep;
+
+	/*
+	 * What the cameras saw since the last update. Rendering comes after
+	 * the update in a frame, so each update acts on the frame before.
+	 * */
+	protected float seenDistance = Float.POSITIVE_INFINITY;
+	protected boolean seen = false;
+	protected boolean observed = false;
+
+	/**
+	 * Create a level of detail with three levels: full detail to 20 units, then
+	 * half the steps, one level shallower and half the tracers to 60 units,
+	 * then a quarter of the steps, two levels shallower and a quarter of the
+	 * tracers beyond that.
+	 * */
+	public FluidLevelOfDetail(){
+		addLevel(20f, 1f, 0, 1f);
+		addLevel(60f, 2f, 1, 0.5f);
+		addLevel(Float.POSITIVE_INFINITY, 4f, 2, 0.25f);
+	}
+
+	/**
+	 * Remove all levels. At least one has to be added back before the next update.
+	 * */
+	public void clearLevels(){
+		levels.clear();
+	}
+
+	/**
+	 * Add a level, reaching out to the given distance. Levels are kept in order of distance.
+	 *
+	 * @param stepFactor what the simulation step is multiplied by, 1 or more.
+	 * @param depthDrop how many levels shallower the tree is.
+	 * @param tracerFraction the fraction of tracers kept alive.
+	 * */
+	public void addLevel(float maxDistance, float stepFactor, int depthDrop, float tracerFraction){
+		Level l = new Level(maxDistance, stepFactor, depthDrop, tracerFraction);
+		int i = 0;
+		while (i < levels.size() && levels.get(i).maxDistance <= maxDistance){
+			++i;
+		}
+		levels.add(i, l);
+	}
+
+	public Level getLevel(int index){
+		return index == KEEP_ALIVE ? keepAlive : levels.get(index);
+	}
+
+	public int getNLevels(){
+		return levels.size();
+	}
+
+	/**
+	 * Set the simulation settings used while off screen. Defaults to
+	 * a quarter of the steps, two levels shallower, which may well be
+	 * past {@link VortonSpace#getDiffusionStepLimit()}.
+	 * */
+	public void setKeepAlive(float stepFactor, int depthDrop){
+		keepAlive = new Level(Float.POSITIVE_INFINITY, stepFactor, depthDrop, 0f);
+	}
+
+	/**
+	 * Set how far past a boundary (as a fraction of its distance) the camera
+	 * has to be before the level changes, so a camera sitting on a boundary
+	 * doesn't flip back and forth. Defaults to 0.1.
+	 * */
+	public void setHysteresis(float hysteresis){
+		this.hysteresis = hysteresis;
+	}
+
+	public void setMinTreeDepth(int depth){
+		this.minTreeDepth = depth;
+	}
+
+	/**
+	 * The current level's index, or {@link #KEEP_ALIVE}.
+	 * */
+	public int getCurrentLevel(){
+		return level;
+	}
+
+	/**
+	 * Note what a camera rendering the view sees. Called by the view for each viewport.
+	 * */
+	public void observe(FluidView view, Camera cam){
+		observed = true;
+		BoundingVolume bound = view.getWorldBound();
+		if (bound == null){
+			seenDistance = 0f;
+			seen = true;
+			return;
+		}
+
+		int planeState = cam.getPlaneState(); //the render pass may be partway through culling with it
+		cam.setPlaneState(0);
+		boolean visible = cam.contains(bound) != FrustumIntersect.Outside;
+		cam.setPlaneState(planeState);
+
+		if (visible){
+			seen = true;
+			seenDistance = Math.min(seenDistance, bound.distanceToEdge(cam.getLocation()));
+		}
+	}
+
+	/**
+	 * Pick a level from what the cameras saw last frame, and apply it if it changed.
+	 * */
+	public void update(FluidView view){
+		if (!initialized){
+			initialize(view);
+		}
+		if (!observed){ //not rendered yet
+			return;
+		}
+
+		int next = seen ? pickLevel(seenDistance) : KEEP_ALIVE;
+		seen = false;
+		observed = false;
+		seenDistance = Float.POSITIVE_INFINITY;
+
+		if (next != level){
+			level = next;
+			apply(view, getLevel(level));
+		}
+	}
+
+	protected void initialize(FluidView view){
+		baseTracers = view.getLiveTracers();
+		VortonSpace space = getSpace(view);
+		if (space != null){
+			baseTreeDepth = space.getGridResolution();
+			baseStep = space.getTimeStep();
+		}
+		initialized = true;
+	}
+
+	/**
+	 * The level for the given distance, allowing for hysteresis around the current one.
+	 * */
+	protected int pickLevel(float distance){
+		if (level == KEEP_ALIVE){
+			return levelFor(distance);
+		}
+		int farther = levelFor(distance / (1f + hysteresis));
+		if (farther > level){
+			return farther;
+		}
+		int nearer = levelFor(distance / (1f - hysteresis));
+		return nearer < level ? nearer : level;
+	}
+
+	protected int levelFor(float distance){
+		for (int i = 0; i < levels.size() - 1; i++){
+			if (distance <= levels.get(i).maxDistance){
+				return i;
+			}
+		}
+		return levels.size() - 1;
+	}
+
+	/**
+	 * Get the view's simulation, if this level of detail may change it.
+	 * */
+	protected VortonSpace getSpace(FluidView view){
+		TracerAdvecter fluid = view.getFluid();
+		if (!view.isSimEnabled() || !(fluid instanceof VortonSpace) || ((VortonSpace) fluid).isDeterministic()){
+			return null;
+		}
+		return (VortonSpace) fluid;
+	}
+
+	/**
+	 * Apply a level. Simulation settings go through {@link VortonSpace#invokeOnSimulation(Runnable)},
+	 * so they land between steps even when the simulation runs on its own thread or in slices.
+	 * */
+	protected void apply(FluidView view, Level l){
+		boolean offScreen = l == keepAlive;
+		view.setTracersSuspended(offScreen);
+		if (!offScreen){
+			view.setLiveTracers(Math.round(baseTracers * l.tracerFraction));
+		}
+
+		final VortonSpace space = getSpace(view);
+		if (space == null || baseStep == 0f){ //no simulation when first seen
+			return;
+		}
+		final int depth = Math.max(minTreeDepth, baseTreeDepth - l.depthDrop);
+		final float step = baseStep * l.stepFactor;
+		space.invokeOnSimulation(new Runnable(){
+			public void run(){
+				space.setGridResolution(depth);
+				if (!space.isAdaptiveTimestep()){
+					space.setTimeStep(step);
+				}
+			}
+		});
+	}
+}
@@ -50,6 +50,11 @@ public class FluidView extends Geometry {
 	protected float particleRadius = 0.1f;
 	protected float particleDrag = 0.8f;
 	protected float currentTPF;
+	protected int liveTracers;
+	protected FluidTracer[] liveBuffer;
+	protected FrameBudgetGovernor governor;
+	protected FluidLevelOfDetail levelOfDetail;
+	protected boolean tracersSuspended = false;
 	
 	/**
 	 * Create a fluid view with the given number of tracers,
@@ -86,6 +91,8 @@ public class FluidView extends Geometry {
 		
 		freeIndexes = new BitSet(this.nTracers);
 		freeIndexes.set(0, nTracers);
+		liveTracers = nTracers;
+		liveBuffer = tracerMesh.getBufferArray();
 		
 		if (fluid.hasDriver()){
 			enableSim = false;
@@ -132,6 +139,10 @@ public class FluidView extends Geometry {
 		this.enableSim = !this.enableSim;
 	}
 	
+	public boolean isSimEnabled(){
+		return enableSim;
+	}
+	
 	/**
 	 * Set the nominal radius of tracer particles.
 	 * 
@@ -147,6 +158,94 @@ public class FluidView extends Geometry {
 		particleRadius = r;
 	}
 	
+	public float getTracerRadius(){
+		return particleRadius;
+	}
+	
+	/**
+	 * Set the tracer radius (see {@link #setTracerRadius(float)}), for
+	 * new tracers and the ones already alive.
+	 * */
+	public void setLiveTracerRadius(float r){
+		particleRadius = r;
+		for (int i = 0; i < liveTracers; i++){
+			liveBuffer[i].radius = r;
+		}
+	}
+	
+	/**
+	 * Set how many of this view's tracers are used. Tracers past that
+	 * count are killed and no longer advected. Raising the count again
+	 * makes room for streamed tracers; burst tracers aren't brought back.
+	 * 
+	 * Fluids advect whole arrays, so any count short of all of them copies
+	 * the live tracers into a new array of that length. This is meant for
+	 * occasional changes, like a {@link FrameBudgetGovernor}'s or a
+	 * {@link FluidLevelOfDetail}'s, not for every frame.
+	 * */
+	public void setLiveTracers(int n){
+		n = Math.max(0, Math.min(nTracers, n));
+		if (n == liveTracers){
+			return;
+		}
+		FluidTracer[] tracers = tracerMesh.getBufferArray();
+		for (int i = n; i < liveTracers; i++){
+			tracers[i].lifetime = 0f;
+			tracers[i].age = 1f;
+			freeIndexes.set(i);
+		}
+		liveTracers = n;
+		if (n == nTracers){
+			liveBuffer = tracers;
+		}
+		else {
+			liveBuffer = new FluidTracer[n];
+			System.arraycopy(tracers, 0, liveBuffer, 0, n);
+		}
+	}
+	
+	public int getLiveTracers(){
+		return liveTracers;
+	}
+	
+	public TracerAdvecter getFluid(){
+		return fluid;
+	}
+	
+	/**
+	 * Set a governor to keep this view within a frame time budget, or null for none.
+	 * */
+	public void setGovernor(FrameBudgetGovernor governor){
+		this.governor = governor;
+	}
+	
+	public FrameBudgetGovernor getGovernor(){
+		return governor;
+	}
+	
+	/**
+	 * Set a camera-distance level of detail for this view, or null for none.
+	 * */
+	public void setLevelOfDetail(FluidLevelOfDetail levelOfDetail){
+		this.levelOfDetail = levelOfDetail;
+	}
+	
+	public FluidLevelOfDetail getLevelOfDetail(){
+		return levelOfDetail;
+	}
+	
+	/**
+	 * Set whether tracers are suspended: kept as they are, but not
+	 * streamed, affected, or advected. The simulation still steps.
+	 * */
+	public void setTracersSuspended(boolean suspended){
+		this.tracersSuspended = suspended;
+	}
+	
+	public boolean isTracersSuspended(){
+		return tracersSuspended;
+	}
+	
 	/**
 	 * Set the drag quantity for new tracers from this
 	 * fluid view.
@@ -240,7 +339,7 @@ public class FluidView extends Geometry {
 		
 		
 		FluidTracer[] tracers = tracerMesh.getBufferArray();
-		for (int i = 0; i < tracers.length; i++){
+		for (int i = 0; i < liveTracers; i++){
 			initTracer(tracers, i, trans);
 		}
 	}
@@ -268,7 +367,7 @@ public class FluidView extends Geometry {
 		FluidTracer[] tracers = tracerMesh.getBufferArray();
 	
 		int freeIndex = freeIndexes.nextSetBit(0);
-		while (freeIndex >= 0 && freeIndex < nTracers - 1 && streamAccum >= 1f){ 
+		while (freeIndex >= 0 && freeIndex < liveTracers - 1 && streamAccum >= 1f){ 
 			initTracer(tracers, freeIndex, trans);	
 			freeIndex = freeIndexes.nextSetBit(freeIndex + 1);
 			streamAccum -= 1f;
@@ -298,22 +397,37 @@ public class FluidView extends Geometry {
 			return;
 		}
 		
-		if (!burstMode){
+		if (levelOfDetail != null){
+			levelOfDetail.update(this);
+		}
+		
+		if (!burstMode && !tracersSuspended){
 			updateStream(tpf);
 		}
 				
+		long start = System.nanoTime();
 		if (enableSim){
 			fluid.stepSimulation(tpf);
 		}
+		long simDone = System.nanoTime();
+		if (tracersSuspended){
+			return;
+		}
 		
-		FluidTracer[] buffer = tracerMesh.getBufferArray();
+		FluidTracer[] buffer = liveBuffer;
 		
 		affectParticles(buffer);
+		long affectDone = System.nanoTime();
 		
 		fluid.advectTracers(buffer, tpf);
+		long tracersDone = System.nanoTime();
 		tracerMesh.updateBuffers();
 		this.setBoundRefresh();
 		
+		if (governor != null){
+			governor.update(this, (simDone - start) * 1e-6f, (affectDone - simDone) * 1e-6f, (tracersDone - affectDone) * 1e-6f);
+		}
+		
 	}
 		
 	protected static class AffectorKernel extends Kernel<WorkRange> {
@@ -372,6 +486,9 @@ public class FluidView extends Geometry {
 
 		@Override
 		public void render(RenderManager rm, ViewPort vp) {
+			if (levelOfDetail != null){
+				levelOfDetail.observe(FluidView.this, vp.getCamera());
+			}
 		}
 		
 	}
@@ -0,0 +1,306 @@
+package com.htssoft.sploosh.presentation;
+
+import java.util.ArrayList;
+
+import com.htssoft.sploosh.TracerAdvecter;
+import com.htssoft.sploosh.VortonSpace;
+import com.htssoft.sploosh.VortonSpace.StepPhase;
+
+/**
+ * Keeps a {@link FluidView} (and the {@link VortonSpace} it drives) inside a
+ * per-frame time budget.
+ *
+ * The view reports how long simulation, affectors and tracers took each frame
+ * (see {@link FluidView#setGovernor(FrameBudgetGovernor)}). Times are smoothed
+ * over a few frames. When the total is over budget, the most expensive side is
+ * cut back one notch: tracers by live count, then search radius; the simulation
+ * by tree depth if the tree build dominates the step, otherwise by a longer
+ * step. When the total is comfortably under budget, the most recent cut is
+ * undone one notch. After each adjustment the governor waits a while for the
+ * times to settle.
+ *
+ * Nothing is ever raised above what it was when the governor first saw it.
+ * */
+public class FrameBudgetGovernor {
+	/**
+	 * The quantities the governor adjusts.
+	 * */
+	public enum Knob {
+		/**
+		 * How many of the view's tracers are alive and advected.
+		 * */
+		LIVE_TRACERS,
+		/**
+		 * The tracers' vorton search radius.
+		 * */
+		TRACER_RADIUS,
+		/**
+		 * The vorton tree's depth.
+		 * */
+		TREE_DEPTH,
+		/**
+		 * The simulation step length, in seconds. Longer steps mean fewer steps per second.
+		 * It is never lengthened past {@link VortonSpace#getDiffusionStepLimit()}.
+		 * */
+		SIM_STEP
+	}
+
+	/**
+	 * Told about every adjustment.
+	 * */
+	public interface Listener {
+		public void budgetAdjusted(FrameBudgetGovernor governor, Knob knob, float oldValue, float newValue);
+	}
+
+	protected float budgetMillis;
+	protected float slack = 0.7f;
+	protected float smoothing = 0.1f;
+	protected int settleFrames = 30;
+
+	protected float minTracerFraction = 0.25f;
+	protected float minRadiusFraction = 0.5f;
+	protected int minTreeDepth = 2;
+	protected float maxStepFactor = 4f;
+
+	protected float simMillis, affectMillis, tracerMillis;
+	protected int settle;
+	protected boolean initialized = false;
+	protected int baseTracers;
+	protected float baseRadius;
+	protected int baseTreeDepth;
+	protected float baseStep;
+
+	/**
+	 * Cuts made so far, most recent last. Each is undone before the one before it.
+	 * */
+	protected final ArrayList<Knob> cuts = new ArrayList<Knob>();
+	protected final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+	/**
+	 * @param budgetMillis how much of each frame the fluid may use, in milliseconds.
+	 * */
+	public FrameBudgetGovernor(float budgetMillis){
+		this.budgetMillis = budgetMillis;
+	}
+
+	public void setBudgetMillis(float budgetMillis){
+		this.budgetMillis = budgetMillis;
+	}
+
+	public float getBudgetMillis(){
+		return budgetMillis;
+	}
+
+	/**
+	 * Set the fraction of the budget below which cuts are undone. Defaults to 0.7.
+	 * */
+	public void setSlack(float slack){
+		this.slack = slack;
+	}
+
+	/**
+	 * Set the lower limits: the fraction of tracers kept alive, the fraction
+	 * of the search radius kept, the shallowest tree, and how many times longer
+	 * the simulation step may get.
+	 * */
+	public void setLimits(float minTracerFraction, float minRadiusFraction, int minTreeDepth, float maxStepFactor){
+		this.minTracerFraction = minTracerFraction;
+		this.minRadiusFraction = minRadiusFraction;
+		this.minTreeDepth = minTreeDepth;
+		this.maxStepFactor = maxStepFactor;
+	}
+
+	public void addListener(Listener listener){
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener){
+		listeners.remove(listener);
+	}
+
+	/**
+	 * The smoothed total time per frame, in milliseconds.
+	 * */
+	public float getFrameMillis(){
+		return simMillis + affectMillis + tracerMillis;
+	}
+
+	/**
+	 * Take one frame's timings, and adjust if needed.
+	 * */
+	public void update(FluidView view, float simMs, float affectMs, float tracerMs){
+		if (!initialized){
+			initialize(view);
+		}
+		simMillis += (simMs - simMillis) * smoothing;
+		affectMillis += (affectMs - affectMillis) * smoothing;
+		tracerMillis += (tracerMs - tracerMillis) * smoothing;
+
+		if (settle > 0){
+			--settle;
+			return;
+		}
+
+		float total = getFrameMillis();
+		if (total > budgetMillis){
+			if (cut(view)){
+				settle = settleFrames;
+			}
+		}
+		else if (total < budgetMillis * slack && !cuts.isEmpty()){
+			restore(view, cuts.remove(cuts.size() - 1));
+			settle = settleFrames;
+		}
+	}
+
+	protected void initialize(FluidView view){
+		baseTracers = view.getLiveTracers();
+		baseRadius = view.getTracerRadius();
+		VortonSpace space = getSpace(view);
+		if (space != null){
+			baseTreeDepth = space.getGridResolution();
+			baseStep = space.getTimeStep();
+		}
+		initialized = true;
+	}
+
+	/**
+	 * Get the view's simulation, if it's one the governor can adjust. A
+	 * {@link VortonSpace#isDeterministic() deterministic} one has to keep
+	 * the settings every peer agreed on, so only tracers are adjusted.
+	 * */
+	protected VortonSpace getSpace(FluidView view){
+		TracerAdvecter fluid = view.getFluid();
+		if (!(fluid instanceof VortonSpace) || ((VortonSpace) fluid).isDeterministic()){
+			return null;
+		}
+		return (VortonSpace) fluid;
+	}
+
+	/**
+	 * Cut the most expensive side back a notch.
+	 *
+	 * @return false if there was nothing left to cut.
+	 * */
+	protected boolean cut(FluidView view){
+		VortonSpace space = getSpace(view);
+		boolean simFirst = simMillis > affectMillis + tracerMillis;
+
+		if (simFirst && space != null && cutSimulation(view, space)){
+			return true;
+		}
+		if (cutTracers(view)){
+			return true;
+		}
+		return !simFirst && space != null && cutSimulation(view, space);
+	}
+
+	protected boolean cutTracers(FluidView view){
+		int live = view.getLiveTracers();
+		int minLive = (int) (baseTracers * minTracerFraction);
+		if (live > minLive){
+			apply(view, Knob.LIVE_TRACERS, Math.max(minLive, (int) (live * 0.75f)));
+			return true;
+		}
+		float radius = view.getTracerRadius();
+		float minRadius = baseRadius * minRadiusFraction;
+		if (radius > minRadius){
+			apply(view, Knob.TRACER_RADIUS, Math.max(minRadius, radius * 0.8f));
+			return true;
+		}
+		return false;
+	}
+
+	protected boolean cutSimulation(FluidView view, VortonSpace space){
+		boolean treeBound = space.getPhaseMillis(StepPhase.TREE) >
+			space.getPhaseMillis(StepPhase.DIFFUSE) + space.getPhaseMillis(StepPhase.ADVECT);
+		float maxStep = Math.min(baseStep * maxStepFactor, space.getDiffusionStepLimit());
+		boolean canStep = !space.isAdaptiveTimestep() && space.getTimeStep() < maxStep;
+		boolean canDepth = space.getGridResolution() > minTreeDepth;
+
+		if (canDepth && (treeBound || !canStep)){
+			apply(view, Knob.TREE_DEPTH, space.getGridResolution() - 1);
+			return true;
+		}
+		if (canStep){
+			apply(view, Knob.SIM_STEP, Math.min(maxStep, space.getTimeStep() * 2f));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Undo one notch of the given cut.
+	 * */
+	protected void restore(FluidView view, Knob knob){
+		VortonSpace space = getSpace(view);
+		switch (knob){
+		case LIVE_TRACERS:
+			apply(view, knob, Math.min(baseTracers, (int) Math.ceil(view.getLiveTracers() / 0.75f)));
+			break;
+		case TRACER_RADIUS:
+			apply(view, knob, Math.min(baseRadius, view.getTracerRadius() / 0.8f));
+			break;
+		case TREE_DEPTH:
+			if (space != null){ //went deterministic since the cut: leave it be
+				apply(view, knob, Math.min(baseTreeDepth, space.getGridResolution() + 1));
+			}
+			break;
+		case SIM_STEP:
+			if (space != null){
+				apply(view, knob, Math.max(baseStep, space.getTimeStep() * 0.5f));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Set a knob. Simulation settings go through {@link VortonSpace#invokeOnSimulation(Runnable)},
+	 * so they land between steps even when the simulation runs on its own thread or in slices.
+	 * */
+	protected void apply(FluidView view, Knob knob, float value){
+		final VortonSpace space = getSpace(view);
+		float old = 0f;
+		switch (knob){
+		case LIVE_TRACERS:
+			old = view.getLiveTracers();
+			view.setLiveTracers((int) value);
+			break;
+		case TRACER_RADIUS:
+			old = view.getTracerRadius();
+			view.setLiveTracerRadius(value);
+			break;
+		case TREE_DEPTH:
+			old = space.getGridResolution();
+			final int depth = (int) value;
+			space.invokeOnSimulation(new Runnable(){
+				public void run(){
+					space.setGridResolution(depth);
+				}
+			});
+			break;
+		case SIM_STEP:
+			old = space.getTimeStep();
+			final float step = value;
+			space.invokeOnSimulation(new Runnable(){
+				public void run(){
+					space.setTimeStep(step);
+				}
+			});
+			break;
+		}
+		if (isCut(knob, old, value)){
+			cuts.add(knob);
+		}
+		for (int i = 0; i < listeners.size(); i++){
+			listeners.get(i).budgetAdjusted(this, knob, old, value);
+		}
+	}
+
+	/**
+	 * Is going from old to value a cut (as opposed to a restore)?
+	 * */
+	protected boolean isCut(Knob knob, float old, float value){
+		return knob == Knob.SIM_STEP ? value > old : value < old;
+	}
+}
@@ -0,0 +1,186 @@
+package com.htssoft.sploosh.space;
+
+import java.util.List;
+
+import com.htssoft.sploosh.MultipoleVorton;
+import com.htssoft.sploosh.Vorton;
+import com.jme3.math.Vector3f;
+
+/**
+ * A caller-owned, reusable result buffer for influence queries.
+ *
+ * Vortons that live in a simulation's flat buffers are stored by index.
+ * Everything else (plain super vortons, frozen vortons) is copied inline
+ * as six floats: position xyz then vorticity xyz. Multipole aggregates are
+ * kept by reference, since their moments are needed for evaluation.
+ *
+ * The arrays only grow, so once a buffer has warmed up, filling it does
+ * not allocate.
+ *
+ * For evaluating one buffer at many points, {@link #gather} copies the
+ * indexed and inline influences into structure-of-arrays form, and the
+ * scratch arrays hold per-influence intermediates while evaluating them.
+ * See {@link com.htssoft.sploosh.TracerMath#computeVelocityFromGathered}.
+ * */
+public class InfluenceBuffer {
+	public int[] indices = new int[256];
+	public int nIndices;
+
+	public float[] inline = new float[6 * 64];
+	public int nInline;
+
+	public MultipoleVorton[] multipoles = new MultipoleVorton[64];
+	public int nMultipoles;
+
+	/**
+	 * Gathered positions and scaled vorticities, padded with zero vorticity
+	 * to a multiple of 4 entries.
+	 * */
+	public float[] gatheredPX = new float[256], gatheredPY = new float[256], gatheredPZ = new float[256];
+	public float[] gatheredWX = new float[256], gatheredWY = new float[256], gatheredWZ = new float[256];
+	public int nGathered;
+
+	public float[] scratchRX = new float[256], scratchRY = new float[256], scratchRZ = new float[256];
+	public float[] scratchLaw = new float[256];
+	public float[] scratchUX = new float[256], scratchUY = new float[256], scratchUZ = new float[256];
+
+	public void clear(){
+		nIndices = 0;
+		nInline = 0;
+		nGathered = 0;
+		for (int i = 0; i < nMultipoles; i++){
+			multipoles[i] = null;
+		}
+		nMultipoles = 0;
+	}
+
+	/**
+	 * How many influences are in the buffer?
+	 * */
+	public int size(){
+		return nIndices + nInline + nMultipoles;
+	}
+
+	public void addIndex(int index){
+		if (nIndices == indices.length){
+			int[] grown = new int[indices.length * 2];
+			System.arraycopy(indices, 0, grown, 0, nIndices);
+			indices = grown;
+		}
+		indices[nIndices++] = index;
+	}
+
+	/**
+	 * Add a vorton by index if it has one, otherwise by value.
+	 * */
+	public void add(Vorton v){
+		int index = v.getIndex();
+		if (index >= 0){
+			addIndex(index);
+		}
+		else {
+			addAggregate(v);
+		}
+	}
+
+	/**
+	 * Add the given vortons, skipping the one with the given index.
+	 * */
+	public void addAll(List<Vorton> vortons, int exclude){
+		for (int i = 0; i < vortons.size(); i++){
+			Vorton v = vortons.get(i);
+			int index = v.getIndex();
+			if (index < 0){
+				addAggregate(v);
+			}
+			else if (index != exclude){
+				addIndex(index);
+			}
+		}
+	}
+
+	/**
+	 * Add a vorton that has no index, e.g. a tree node's super vorton.
+	 * */
+	public void addAggregate(Vorton v){
+		if (v instanceof MultipoleVorton){
+			if (nMultipoles == multipoles.length){
+				MultipoleVorton[] grown = new MultipoleVorton[multipoles.length * 2];
+				System.arraycopy(multipoles, 0, grown, 0, nMultipoles);
+				multipoles = grown;
+			}
+			multipoles[nMultipoles++] = (MultipoleVorton) v;
+			return;
+		}
+
+		Vector3f pos = v.getPosition();
+		Vector3f vort = v.getVort();
+		addInline(pos.x, pos.y, pos.z, vort.x, vort.y, vort.z);
+	}
+
+	public void addInline(float px, float py, float pz, float wx, float wy, float wz){
+		int o = nInline * 6;
+		if (o + 6 > inline.length){
+			float[] grown = new float[inline.length * 2];
+			System.arraycopy(inline, 0, grown, 0, o);
+			inline = grown;
+		}
+		inline[o] = px;
+		inline[o + 1] = py;
+		inline[o + 2] = pz;
+		inline[o + 3] = wx;
+		inline[o + 4] = wy;
+		inline[o + 5] = wz;
+		nInline++;
+	}
+
+	/**
+	 * Copy the indexed (read from the given flat xyz buffers) and inline influences
+	 * into the gathered arrays, multiplying vorticities by the given scale.
+	 * Multipoles are left where they are.
+	 * */
+	public void gather(float[] positions, float[] vorticities, float scale){
+		int n = nIndices + nInline;
+		int padded = (n + 3) & ~3;
+		if (padded > gatheredPX.length){
+			int size = Math.max(padded, gatheredPX.length * 2);
+			gatheredPX = new float[size];
+			gatheredPY = new float[size];
+			gatheredPZ = new float[size];
+			gatheredWX = new float[size];
+			gatheredWY = new float[size];
+			gatheredWZ = new float[size];
+			scratchRX = new float[size];
+			scratchRY = new float[size];
+			scratchRZ = new float[size];
+			scratchLaw = new float[size];
+			scratchUX = new float[size];
+			scratchUY = new float[size];
+			scratchUZ = new float[size];
+		}
+		
+		for (int i = 0; i < nIndices; i++){
+			int offset = indices[i] * 3;
+			gatheredPX[i] = positions[offset];
+			gatheredPY[i] = positions[offset + 1];
+			gatheredPZ[i] = positions[offset + 2];
+			gatheredWX[i] = vorticities[offset] * scale;
+			gatheredWY[i] = vorticities[offset + 1] * scale;
+			gatheredWZ[i] = vorticities[offset + 2] * scale;
+		}
+		for (int i = 0, o = 0; i < nInline; i++, o += 6){
+			int g = nIndices + i;
+			gatheredPX[g] = inline[o];
+			gatheredPY[g] = inline[o + 1];
+			gatheredPZ[g] = inline[o + 2];
+			gatheredWX[g] = inline[o + 3] * scale;
+			gatheredWY[g] = inline[o + 4] * scale;
+			gatheredWZ[g] = inline[o + 5] * scale;
+		}
+		for (int g = n; g < padded; g++){
+			gatheredPX[g] = gatheredPY[g] = gatheredPZ[g] = 0f;
+			gatheredWX[g] = gatheredWY[g] = gatheredWZ[g] = 0f;
+		}
+		nGathered = padded;
+	}
+}
@@ -0,0 +1,829 @@
+package com.htssoft.sploosh.space;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.htssoft.sploosh.SimpleVorton;
+import com.htssoft.sploosh.Vorton;
+import com.htssoft.sploosh.threading.RangeTask;
+import com.htssoft.sploosh.threading.SharedWorkers;
+import com.htssoft.sploosh.threading.WorkRange;
+import com.jme3.math.Vector3f;
+
+/**
+ * A pointerless octree.
+ *
+ * This answers the same queries as {@link OTree}, but all nodes live in flat
+ * primitive arrays. Vortons are sorted by Morton code, so every node's vortons
+ * are one contiguous range of the sorted vorton array. Nodes are laid out level
+ * by level in Morton order, so each node's children are contiguous too. Only
+ * occupied cells get a node.
+ * 
+ * Large builds run in parallel on the {@link SharedWorkers}: Morton keys, a
+ * parallel LSD radix sort, node emission (counted per range, then placed by a
+ * prefix sum over the ranges), and a bottom-up aggregation pass, one level
+ * at a time. Ranges and scratch are kept from one build to the next.
+ * */
+public class LinearOTree implements VortonTree, RangeTask {
+	protected static final int PHASE_KEYS = 0;
+	protected static final int PHASE_HISTOGRAM = 1;
+	protected static final int PHASE_SCATTER = 2;
+	protected static final int PHASE_GATHER = 3;
+	protected static final int PHASE_AGGREGATE = 4;
+	protected static final int PHASE_NORMALIZE = 5;
+	protected static final int PHASE_COUNT = 6;
+	protected static final int PHASE_EMIT = 7;
+	protected static final int PHASE_LINK = 8;
+	protected static final int RADIX_BITS = 8;
+	protected static final int RADIX = 1 << RADIX_BITS;
+	
+	/**
+	 * Builds with fewer vortons than this run on the calling thread.
+	 * */
+	protected int parallelThreshold = 4096;
+	
+	protected int nVortons;
+	protected int maxLevel;
+	protected int nNodes;
+
+	protected float minX, minY, minZ;
+	protected float extentX, extentY, extentZ;
+
+	/**
+	 * Vortons as given to the last build, and sorted by Morton code.
+	 * */
+	protected Vorton[] vortons;
+	protected Vorton[] sorted;
+
+	/**
+	 * Morton key of each sorted vorton, and its index in {@link #vortons}.
+	 * */
+	protected int[] keys;
+	protected int[] order;
+	protected transient int[] tmpKeys;
+	protected transient int[] tmpOrder;
+	
+	/**
+	 * For each sorted vorton, the shallowest level at which its key differs
+	 * from the previous one (maxLevel + 1 if it shares a leaf with it).
+	 * */
+	protected transient byte[] divergence;
+	
+	/**
+	 * Parallel build state.
+	 * */
+	protected transient int phase;
+	protected transient int sortShift;
+	protected transient int[] srcKeys, srcOrder, dstKeys, dstOrder;
+	protected transient int[][] histograms;
+	/**
+	 * Per range, per level: how many nodes the range's vortons start, and
+	 * then the next free node at that level.
+	 * */
+	protected transient int[][] levelCounts;
+	protected transient BuildRange[] rangePool;
+	protected transient ArrayList<WorkRange> phaseRanges = new ArrayList<WorkRange>();
+
+	/**
+	 * Per node: level, first child node, child count, and [first, end) into the sorted vortons.
+	 * */
+	protected int[] nodeLevel;
+	protected int[] nodeFirstChild;
+	protected int[] nodeChildCount;
+	protected int[] nodeFirst;
+	protected int[] nodeEnd;
+
+	/**
+	 * Per node, xyz interleaved: cell bounds, aggregate vorticity, magnitude-weighted
+	 * position sum and centroid. And the sum of vorticity magnitudes.
+	 * */
+	protected float[] nodeMin;
+	protected float[] nodeMax;
+	protected float[] nodeVort;
+	protected float[] nodeWeightedPos;
+	protected float[] nodeCentroid;
+	protected float[] nodeVortMag;
+
+	/**
+	 * First node of each level.
+	 * */
+	protected int[] levelStart;
+
+	/**
+	 * Super vortons handed out by {@link #getInfluentialVortons}. These are
+	 * refreshed from the node arrays after each build and reused.
+	 * */
+	protected SimpleVorton[] superVortons;
+
+	/**
+	 * Create an empty tree. It's filled by {@link #build}.
+	 * */
+	public LinearOTree(){
+
+	}
+
+	public int nVortons(){
+		return nVortons;
+	}
+
+	public int nNodes(){
+		return nNodes;
+	}
+
+	/**
+	 * Set the number of vortons at which builds go parallel.
+	 * */
+	public void setParallelThreshold(int nVortons){
+		this.parallelThreshold = nVortons;
+	}
+
+	public void build(Vorton[] vortons, Vector3f min, Vector3f max, int level){
+		if (level > Morton.MAX_LEVEL){
+			throw new IllegalArgumentException("LinearOTree supports at most " + Morton.MAX_LEVEL + " levels, not " + level);
+		}
+
+		this.vortons = vortons;
+		this.nVortons = vortons.length;
+		this.maxLevel = level;
+		ensureVortonCapacity(nVortons);
+		setBounds(min, max);
+		
+		if (nVortons >= parallelThreshold && SharedWorkers.nThreads() > 1){
+			buildParallel();
+			return;
+		}
+
+		computeKeys(0, nVortons - 1);
+		Morton.sort(keys, order, nVortons, 3 * maxLevel, tmpKeys, tmpOrder);
+		gather(0, nVortons - 1);
+
+		ensureLevelCounts(1);
+		countNodes(0, 0, nVortons - 1);
+		layoutLevels(1);
+		emitNodes(0, 0, nVortons - 1);
+		linkNodes(0, nNodes - 1);
+		for (int l = maxLevel; l >= 0; l--){
+			aggregate(levelStart[l], levelStart[l + 1] - 1);
+		}
+		ensureSuperVortonCapacity();
+		normalize(0, nNodes - 1);
+	}
+	
+	protected void buildParallel(){
+		List<WorkRange> vortonRanges = divide(0, nVortons);
+		
+		runPhase(PHASE_KEYS, vortonRanges);
+		sortParallel(vortonRanges);
+		runPhase(PHASE_GATHER, vortonRanges);
+		
+		int nRanges = vortonRanges.size();
+		ensureLevelCounts(nRanges);
+		runPhase(PHASE_COUNT, vortonRanges);
+		layoutLevels(nRanges);
+		runPhase(PHASE_EMIT, vortonRanges);
+		runPhase(PHASE_LINK, divide(0, nNodes));
+		for (int l = maxLevel; l >= 0; l--){
+			runPhase(PHASE_AGGREGATE, divide(levelStart[l], levelStart[l + 1]));
+		}
+		ensureSuperVortonCapacity();
+		runPhase(PHASE_NORMALIZE, divide(0, nNodes));
+	}
+	
+	/**
+	 * Split [first, end) into one range per build thread.
+	 * 
+	 * The ranges and the list are reused by the next call, so each phase's
+	 * ranges are only good until the next phase is divided.
+	 * */
+	protected List<WorkRange> divide(int first, int end){
+		int nThreads = SharedWorkers.nThreads();
+		int n = end - first;
+		int nRanges = Math.max(1, Math.min(nThreads, n));
+		if (rangePool == null || rangePool.length < nRanges){
+			rangePool = new BuildRange[nRanges];
+			for (int r = 0; r < nRanges; r++){
+				rangePool[r] = new BuildRange(this, r);
+			}
+		}
+		
+		phaseRanges.clear();
+		for (int r = 0; r < nRanges; r++){
+			int rFirst = first + (int) ((long) n * r / nRanges);
+			int rEnd = first + (int) ((long) n * (r + 1) / nRanges);
+			if (rEnd > rFirst){
+				BuildRange range = rangePool[r];
+				range.from = rFirst;
+				range.to = rEnd - 1;
+				phaseRanges.add(range);
+			}
+		}
+		
+		return phaseRanges;
+	}
+	
+	protected void runPhase(int phase, List<WorkRange> ranges){
+		this.phase = phase;
+		SharedWorkers.run(ranges);
+	}
+	
+	/**
+	 * Parallel LSD radix sort of keys/order. Each pass builds a histogram
+	 * per range, turns them into per-range scatter offsets, and then scatters
+	 * each range. Ranges are scattered in order, so every pass is stable.
+	 * */
+	protected void sortParallel(List<WorkRange> ranges){
+		int nRanges = ranges.size();
+		if (histograms == null || histograms.length < nRanges){
+			histograms = new int[nRanges][RADIX];
+		}
+		
+		srcKeys = keys;
+		srcOrder = order;
+		dstKeys = tmpKeys;
+		dstOrder = tmpOrder;
+		
+		for (sortShift = 0; sortShift < 3 * maxLevel; sortShift += RADIX_BITS){
+			runPhase(PHASE_HISTOGRAM, ranges);
+			
+			int sum = 0;
+			for (int d = 0; d < RADIX; d++){
+				for (int r = 0; r < nRanges; r++){
+					int c = histograms[r][d];
+					histograms[r][d] = sum;
+					sum += c;
+				}
+			}
+			
+			runPhase(PHASE_SCATTER, ranges);
+			
+			int[] t = srcKeys; srcKeys = dstKeys; dstKeys = t;
+			t = srcOrder; srcOrder = dstOrder; dstOrder = t;
+		}
+		
+		if (srcKeys != keys){
+			tmpKeys = keys;
+			tmpOrder = order;
+			keys = srcKeys;
+			order = srcOrder;
+		}
+		srcKeys = srcOrder = dstKeys = dstOrder = null;
+	}
+	
+	protected void histogram(BuildRange range){
+		int[] counts = histograms[range.ordinal];
+		Arrays.fill(counts, 0);
+		for (int i = range.from; i <= range.to; i++){
+			counts[(srcKeys[i] >>> sortShift) & (RADIX - 1)]++;
+		}
+	}
+	
+	protected void scatter(BuildRange range){
+		int[] offsets = histograms[range.ordinal];
+		for (int i = range.from; i <= range.to; i++){
+			int dst = offsets[(srcKeys[i] >>> sortShift) & (RADIX - 1)]++;
+			dstKeys[dst] = srcKeys[i];
+			dstOrder[dst] = srcOrder[i];
+		}
+	}
+
+	protected void setBounds(Vector3f min, Vector3f max){
+		minX = min.x;
+		minY = min.y;
+		minZ = min.z;
+		extentX = max.x - min.x;
+		extentY = max.y - min.y;
+		extentZ = max.z - min.z;
+	}
+
+	protected void ensureVortonCapacity(int n){
+		if (keys == null || keys.length < n){
+			keys = new int[n];
+			order = new int[n];
+			sorted = new Vorton[n];
+		}
+		if (tmpKeys == null || tmpKeys.length < keys.length){
+			tmpKeys = new int[keys.length];
+			tmpOrder = new int[keys.length];
+			divergence = new byte[keys.length];
+		}
+	}
+
+	/**
+	 * Compute Morton keys for vortons first..last (inclusive).
+	 * */
+	protected void computeKeys(int first, int last){
+		int side = 1 << maxLevel;
+		float scaleX = extentX > 0f ? side / extentX : 0f;
+		float scaleY = extentY > 0f ? side / extentY : 0f;
+		float scaleZ = extentZ > 0f ? side / extentZ : 0f;
+
+		for (int i = first; i <= last; i++){
+			Vector3f p = vortons[i].getPosition();
+			int x = Morton.quantize(p.x, minX, scaleX, maxLevel);
+			int y = Morton.quantize(p.y, minY, scaleY, maxLevel);
+			int z = Morton.quantize(p.z, minZ, scaleZ, maxLevel);
+			keys[i] = Morton.encode(x, y, z);
+			order[i] = i;
+		}
+	}
+
+	/**
+	 * Fill the sorted vorton array for sorted vortons first..last (inclusive),
+	 * and note where each one's key diverges from its predecessor.
+	 * */
+	protected void gather(int first, int last){
+		for (int i = first; i <= last; i++){
+			sorted[i] = vortons[order[i]];
+			
+			if (i == 0){
+				divergence[i] = 0;
+				continue;
+			}
+			int diff = keys[i] ^ keys[i - 1];
+			if (diff == 0){
+				divergence[i] = (byte) (maxLevel + 1);
+			}
+			else {
+				int digit = (31 - Integer.numberOfLeadingZeros(diff)) / 3;
+				divergence[i] = (byte) (maxLevel - digit);
+			}
+		}
+	}
+
+	protected void ensureLevelCounts(int nRanges){
+		if (levelCounts == null || levelCounts.length < nRanges){
+			levelCounts = new int[nRanges][Morton.MAX_LEVEL + 2];
+		}
+	}
+	
+	/**
+	 * Count the nodes started by sorted vortons first..last (inclusive), per level.
+	 * 
+	 * A sorted vorton starts a new node at every level at or below the level
+	 * where its key diverges from the previous key (the root aside), so the
+	 * nodes at a level are the vortons that diverge at or above it.
+	 * */
+	protected void countNodes(int ordinal, int first, int last){
+		int[] counts = levelCounts[ordinal];
+		Arrays.fill(counts, 0, maxLevel + 2, 0);
+		for (int i = first; i <= last; i++){
+			counts[Math.max(1, divergence[i])]++;
+		}
+		for (int l = 1; l <= maxLevel; l++){
+			counts[l] += counts[l - 1];
+		}
+	}
+	
+	/**
+	 * Lay the levels out from the per-range counts, and turn each range's
+	 * counts into the first node it fills at each level.
+	 * */
+	protected void layoutLevels(int nRanges){
+		if (levelStart == null || levelStart.length < maxLevel + 2){
+			levelStart = new int[maxLevel + 2];
+		}
+		
+		levelStart[0] = 0;
+		levelStart[1] = 1;
+		for (int l = 1; l <= maxLevel; l++){
+			int next = levelStart[l];
+			for (int r = 0; r < nRanges; r++){
+				int c = levelCounts[r][l];
+				levelCounts[r][l] = next;
+				next += c;
+			}
+			levelStart[l + 1] = next;
+		}
+		nNodes = levelStart[maxLevel + 1];
+		ensureNodeCapacity(nNodes);
+		
+		nodeLevel[0] = 0;
+		nodeFirst[0] = 0;
+		nodeFirstChild[0] = levelStart[1];
+	}
+	
+	/**
+	 * Create the nodes started by sorted vortons first..last (inclusive). The
+	 * nodes a vorton starts form a chain, each the first child of the one above.
+	 * */
+	protected void emitNodes(int ordinal, int first, int last){
+		int[] cursor = levelCounts[ordinal];
+		for (int i = first; i <= last; i++){
+			int parent = -1;
+			for (int l = Math.max(1, divergence[i]); l <= maxLevel; l++){
+				int node = cursor[l]++;
+				nodeLevel[node] = l;
+				nodeFirst[node] = i;
+				if (parent >= 0){
+					nodeFirstChild[parent] = node;
+				}
+				parent = node;
+			}
+		}
+	}
+	
+	/**
+	 * Fill in the vorton range end and child count of nodes first..last
+	 * (inclusive). Nodes and their children are in order within a level, so
+	 * both end where the next node's begin.
+	 * */
+	protected void linkNodes(int first, int last){
+		for (int node = first; node <= last; node++){
+			int l = nodeLevel[node];
+			boolean lastInLevel = node + 1 == levelStart[l + 1];
+			nodeEnd[node] = lastInLevel ? nVortons : nodeFirst[node + 1];
+			
+			if (l == maxLevel){
+				nodeFirstChild[node] = nNodes;
+				nodeChildCount[node] = 0;
+			}
+			else {
+				int childEnd = lastInLevel ? levelStart[l + 2] : nodeFirstChild[node + 1];
+				nodeChildCount[node] = childEnd - nodeFirstChild[node];
+			}
+		}
+	}
+
+	protected void ensureNodeCapacity(int n){
+		if (nodeLevel != null && nodeLevel.length >= n){
+			return;
+		}
+		n = Math.max(16, n + n / 2);
+
+		nodeLevel = grow(nodeLevel, n);
+		nodeFirstChild = grow(nodeFirstChild, n);
+		nodeChildCount = grow(nodeChildCount, n);
+		nodeFirst = grow(nodeFirst, n);
+		nodeEnd = grow(nodeEnd, n);
+
+		nodeMin = grow(nodeMin, n * 3);
+		nodeMax = grow(nodeMax, n * 3);
+		nodeVort = grow(nodeVort, n * 3);
+		nodeWeightedPos = grow(nodeWeightedPos, n * 3);
+		nodeCentroid = grow(nodeCentroid, n * 3);
+		nodeVortMag = grow(nodeVortMag, n);
+	}
+
+	protected static int[] grow(int[] array, int n){
+		return array == null ? new int[n] : Arrays.copyOf(array, n);
+	}
+
+	protected static float[] grow(float[] array, int n){
+		return array == null ? new float[n] : Arrays.copyOf(array, n);
+	}
+
+	/**
+	 * Derive a node's cell bounds from the key prefix of its first vorton.
+	 * */
+	protected void setNodeBounds(int node){
+		int level = nodeLevel[node];
+		int o = node * 3;
+		int x = 0, y = 0, z = 0;
+		if (level > 0 && nodeEnd[node] > nodeFirst[node]){
+			int prefix = keys[nodeFirst[node]] >>> (3 * (maxLevel - level));
+			x = Morton.decodeX(prefix);
+			y = Morton.decodeY(prefix);
+			z = Morton.decodeZ(prefix);
+		}
+		float cells = 1 << level;
+		nodeMin[o] = minX + extentX * (x / cells);
+		nodeMin[o + 1] = minY + extentY * (y / cells);
+		nodeMin[o + 2] = minZ + extentZ * (z / cells);
+		nodeMax[o] = minX + extentX * ((x + 1) / cells);
+		nodeMax[o + 1] = minY + extentY * ((y + 1) / cells);
+		nodeMax[o + 2] = minZ + extentZ * ((z + 1) / cells);
+	}
+
+	/**
+	 * Compute raw aggregates for nodes first..last (inclusive). Leaves sum
+	 * their vortons, internal nodes sum their (already aggregated) children.
+	 * */
+	protected void aggregate(int first, int last){
+		for (int node = first; node <= last; node++){
+			float vx = 0f, vy = 0f, vz = 0f;
+			float px = 0f, py = 0f, pz = 0f;
+			float mag = 0f;
+
+			if (nodeChildCount[node] == 0){
+				for (int i = nodeFirst[node]; i < nodeEnd[node]; i++){
+					Vorton v = sorted[i];
+					Vector3f vort = v.getVort();
+					float vortMag = vort.length();
+					vx += vort.x;
+					vy += vort.y;
+					vz += vort.z;
+					Vector3f pos = v.getPosition();
+					px += pos.x * vortMag;
+					py += pos.y * vortMag;
+					pz += pos.z * vortMag;
+					mag += vortMag;
+				}
+			}
+			else {
+				int end = nodeFirstChild[node] + nodeChildCount[node];
+				for (int c = nodeFirstChild[node]; c < end; c++){
+					int co = c * 3;
+					vx += nodeVort[co];
+					vy += nodeVort[co + 1];
+					vz += nodeVort[co + 2];
+					px += nodeWeightedPos[co];
+					py += nodeWeightedPos[co + 1];
+					pz += nodeWeightedPos[co + 2];
+					mag += nodeVortMag[c];
+				}
+			}
+
+			int o = node * 3;
+			nodeVort[o] = vx;
+			nodeVort[o + 1] = vy;
+			nodeVort[o + 2] = vz;
+			nodeWeightedPos[o] = px;
+			nodeWeightedPos[o + 1] = py;
+			nodeWeightedPos[o + 2] = pz;
+			nodeVortMag[node] = mag;
+		}
+	}
+
+	protected void ensureSuperVortonCapacity(){
+		if (superVortons == null || superVortons.length < nNodes){
+			SimpleVorton[] grown = new SimpleVorton[nNodes + nNodes / 2];
+			if (superVortons != null){
+				System.arraycopy(superVortons, 0, grown, 0, superVortons.length);
+			}
+			superVortons = grown;
+		}
+	}
+
+	/**
+	 * Compute bounds and centroids for nodes first..last (inclusive), and refresh 
+	 * their super vortons.
+	 * */
+	protected void normalize(int first, int last){
+		for (int node = first; node <= last; node++){
+			setNodeBounds(node);
+			
+			int o = node * 3;
+			float mag = nodeVortMag[node];
+			float div = mag != 0f ? mag : 1f;
+			nodeCentroid[o] = nodeWeightedPos[o] / div;
+			nodeCentroid[o + 1] = nodeWeightedPos[o + 1] / div;
+			nodeCentroid[o + 2] = nodeWeightedPos[o + 2] / div;
+
+			SimpleVorton sv = superVortons[node];
+			if (sv == null){
+				sv = new SimpleVorton();
+				superVortons[node] = sv;
+			}
+			sv.getPosition().set(nodeCentroid[o], nodeCentroid[o + 1], nodeCentroid[o + 2]);
+			sv.getVort().set(nodeVort[o], nodeVort[o + 1], nodeVort[o + 2]);
+		}
+	}
+
+	/**
+	 * Does the root cell contain the given point?
+	 * */
+	protected boolean rootContains(Vector3f pos){
+		return pos.x >= minX && pos.x <= minX + extentX &&
+			   pos.y >= minY && pos.y <= minY + extentY &&
+			   pos.z >= minZ && pos.z <= minZ + extentZ;
+	}
+	
+	/**
+	 * Compute the Morton key of the leaf cell the given point falls in.
+	 * */
+	protected int keyOf(Vector3f pos){
+		int side = 1 << maxLevel;
+		int x = Morton.quantize(pos.x, minX, extentX > 0f ? side / extentX : 0f, maxLevel);
+		int y = Morton.quantize(pos.y, minY, extentY > 0f ? side / extentY : 0f, maxLevel);
+		int z = Morton.quantize(pos.z, minZ, extentZ > 0f ? side / extentZ : 0f, maxLevel);
+		return Morton.encode(x, y, z);
+	}
+	
+	/**
+	 * Does the given node's cell contain the point with the given key?
+	 * 
+	 * Comparing key prefixes, rather than bounds, keeps queries consistent
+	 * with the quantization used to build the tree.
+	 * */
+	protected boolean contains(int node, int key){
+		int shift = 3 * (maxLevel - nodeLevel[node]);
+		return (key >>> shift) == (keys[nodeFirst[node]] >>> shift);
+	}
+
+	protected float distanceSquaredToCentroid(int node, Vector3f pos){
+		int o = node * 3;
+		float dx = pos.x - nodeCentroid[o];
+		float dy = pos.y - nodeCentroid[o + 1];
+		float dz = pos.z - nodeCentroid[o + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	public void getInfluentialVortons(Vector3f query, float searchRadius, List<Vorton> storage){
+		if (nNodes == 0 || nodeEnd[0] == nodeFirst[0]){
+			return;
+		}
+		
+		if (!rootContains(query)){
+			if (nodeChildCount[0] > 0){
+				storage.add(superVortons[0]);
+			}
+			return;
+		}
+		
+		getInfluentialVortons(0, query, keyOf(query), searchRadius, storage);
+	}
+
+	/**
+	 * Same rules as {@link OTreeNode#getInfluentialVortons}, for a node
+	 * known to contain the query point.
+	 * */
+	protected void getInfluentialVortons(int node, Vector3f pos, int key, float searchRadius, List<Vorton> storage){
+		if (nodeChildCount[node] == 0){ //leaf node
+			addItems(node, storage);
+			return;
+		}
+		
+		int end = nodeFirstChild[node] + nodeChildCount[node];
+		for (int c = nodeFirstChild[node]; c < end; c++){
+			if (contains(c, key)){
+				getInfluentialVortons(c, pos, key, searchRadius, storage);
+			}
+			else if (distanceSquaredToCentroid(c, pos) < searchRadius){
+				storage.add(superVortons[c]);
+			}
+		}
+	}
+
+	public void getInfluences(Vector3f query, float searchRadius, int exclude, InfluenceBuffer store){
+		if (nNodes == 0 || nodeEnd[0] == nodeFirst[0]){
+			return;
+		}
+		
+		if (!rootContains(query)){
+			if (nodeChildCount[0] > 0){
+				store.addAggregate(superVortons[0]);
+			}
+			return;
+		}
+		
+		getInfluences(0, query, keyOf(query), searchRadius, exclude, store);
+	}
+	
+	protected void getInfluences(int node, Vector3f pos, int key, float searchRadius, int exclude, InfluenceBuffer store){
+		if (nodeChildCount[node] == 0){ //leaf node
+			for (int i = nodeFirst[node]; i < nodeEnd[node]; i++){
+				int index = sorted[i].getIndex();
+				if (index < 0){
+					store.addAggregate(sorted[i]);
+				}
+				else if (index != exclude){
+					store.addIndex(index);
+				}
+			}
+			return;
+		}
+		
+		int end = nodeFirstChild[node] + nodeChildCount[node];
+		for (int c = nodeFirstChild[node]; c < end; c++){
+			if (contains(c, key)){
+				getInfluences(c, pos, key, searchRadius, exclude, store);
+			}
+			else if (distanceSquaredToCentroid(c, pos) < searchRadius){
+				store.addAggregate(superVortons[c]);
+			}
+		}
+	}
+
+	protected void addItems(int node, List<Vorton> storage){
+		for (int i = nodeFirst[node]; i < nodeEnd[node]; i++){
+			storage.add(sorted[i]);
+		}
+	}
+
+	public void getLeafGroups(List<List<Vorton>> store){
+		if (nNodes == 0){
+			return;
+		}
+		List<Vorton> all = Arrays.asList(sorted).subList(0, nVortons);
+		for (int node = levelStart[maxLevel]; node < nNodes; node++){
+			if (nodeEnd[node] > nodeFirst[node]){
+				store.add(all.subList(nodeFirst[node], nodeEnd[node]));
+			}
+		}
+	}
+
+	public void getVortons(List<Vorton> store){
+		for (int i = 0; i < nVortons; i++){
+			store.add(sorted[i]);
+		}
+	}
+
+	/**
+	 * Get the minimum corner of the given node's cell.
+	 * */
+	public void getNodeMin(int node, Vector3f store){
+		int o = node * 3;
+		store.set(nodeMin[o], nodeMin[o + 1], nodeMin[o + 2]);
+	}
+
+	/**
+	 * Get the maximum corner of the given node's cell.
+	 * */
+	public void getNodeMax(int node, Vector3f store){
+		int o = node * 3;
+		store.set(nodeMax[o], nodeMax[o + 1], nodeMax[o + 2]);
+	}
+
+	public LinearOTree deepCopy(){
+		LinearOTree other = new LinearOTree();
+		other.nVortons = nVortons;
+		other.maxLevel = maxLevel;
+		other.nNodes = nNodes;
+		other.minX = minX;
+		other.minY = minY;
+		other.minZ = minZ;
+		other.extentX = extentX;
+		other.extentY = extentY;
+		other.extentZ = extentZ;
+
+		other.sorted = new Vorton[nVortons];
+		other.vortons = new Vorton[nVortons];
+		for (int i = 0; i < nVortons; i++){
+			SimpleVorton copy = new SimpleVorton(sorted[i]);
+			other.sorted[i] = copy;
+			other.vortons[order[i]] = copy;
+		}
+		other.keys = Arrays.copyOf(keys, nVortons);
+		other.order = Arrays.copyOf(order, nVortons);
+
+		other.nodeLevel = Arrays.copyOf(nodeLevel, nNodes);
+		other.nodeFirstChild = Arrays.copyOf(nodeFirstChild, nNodes);
+		other.nodeChildCount = Arrays.copyOf(nodeChildCount, nNodes);
+		other.nodeFirst = Arrays.copyOf(nodeFirst, nNodes);
+		other.nodeEnd = Arrays.copyOf(nodeEnd, nNodes);
+		other.nodeMin = Arrays.copyOf(nodeMin, nNodes * 3);
+		other.nodeMax = Arrays.copyOf(nodeMax, nNodes * 3);
+		other.nodeVort = Arrays.copyOf(nodeVort, nNodes * 3);
+		other.nodeWeightedPos = Arrays.copyOf(nodeWeightedPos, nNodes * 3);
+		other.nodeCentroid = Arrays.copyOf(nodeCentroid, nNodes * 3);
+		other.nodeVortMag = Arrays.copyOf(nodeVortMag, nNodes);
+		other.levelStart = Arrays.copyOf(levelStart, levelStart.length);
+		other.ensureSuperVortonCapacity();
+		other.normalize(0, nNodes - 1);
+
+		return other;
+	}
+	
+	/**
+	 * Runs whichever build phase the tree is in over a range.
+	 * */
+	public void processRange(WorkRange range){
+		BuildRange r = (BuildRange) range;
+		switch (phase){
+		case PHASE_KEYS:
+			computeKeys(r.from, r.to);
+			break;
+		case PHASE_HISTOGRAM:
+			histogram(r);
+			break;
+		case PHASE_SCATTER:
+			scatter(r);
+			break;
+		case PHASE_GATHER:
+			gather(r.from, r.to);
+			break;
+		case PHASE_COUNT:
+			countNodes(r.ordinal, r.from, r.to);
+			break;
+		case PHASE_EMIT:
+			emitNodes(r.ordinal, r.from, r.to);
+			break;
+		case PHASE_LINK:
+			linkNodes(r.from, r.to);
+			break;
+		case PHASE_AGGREGATE:
+			aggregate(r.from, r.to);
+			break;
+		case PHASE_NORMALIZE:
+			normalize(r.from, r.to);
+			break;
+		}
+	}
+	
+	/**
+	 * A range of vortons or nodes, from..to (inclusive), for one phase of a
+	 * parallel build. Ranges are pooled, so the bounds are set per phase
+	 * rather than through WorkRange's.
+	 * */
+	protected static class BuildRange extends WorkRange {
+		public final int ordinal;
+		public int from;
+		public int to;
+		
+		public BuildRange(LinearOTree tree, int ordinal){
+			super(0, -1, null, tree);
+			this.ordinal = ordinal;
+		}
+	}
+}
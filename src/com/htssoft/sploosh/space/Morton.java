@@ -0,0 +1,123 @@
+package com.htssoft.sploosh.space;
+
+import java.util.Arrays;
+
+/**
+ * Morton (Z-order) code helpers.
+ *
+ * Codes interleave up to 10 bits per axis, x in the lowest bit, which
+ * matches the child numbering used by {@link OTreeNode#chooseChildIndex}.
+ * */
+public class Morton {
+	/**
+	 * Maximum number of bits per axis.
+	 * */
+	public static final int MAX_LEVEL = 10;
+
+	/**
+	 * Interleave the given cell coordinates.
+	 * */
+	public static int encode(int x, int y, int z){
+		return spread(x) | (spread(y) << 1) | (spread(z) << 2);
+	}
+
+	public static int decodeX(int code){
+		return compact(code);
+	}
+
+	public static int decodeY(int code){
+		return compact(code >>> 1);
+	}
+
+	public static int decodeZ(int code){
+		return compact(code >>> 2);
+	}
+
+	/**
+	 * Spread the low 10 bits of v out to every third bit.
+	 * */
+	protected static int spread(int v){
+		v &= 0x3ff;
+		v = (v | (v << 16)) & 0x030000ff;
+		v = (v | (v << 8)) & 0x0300f00f;
+		v = (v | (v << 4)) & 0x030c30c3;
+		v = (v | (v << 2)) & 0x09249249;
+		return v;
+	}
+
+	/**
+	 * Inverse of spread.
+	 * */
+	protected static int compact(int v){
+		v &= 0x09249249;
+		v = (v | (v >>> 2)) & 0x030c30c3;
+		v = (v | (v >>> 4)) & 0x0300f00f;
+		v = (v | (v >>> 8)) & 0x030000ff;
+		v = (v | (v >>> 16)) & 0x3ff;
+		return v;
+	}
+
+	/**
+	 * Quantize a coordinate into one of 2^level cells along an axis.
+	 *
+	 * @param scale the number of cells per unit along this axis.
+	 * */
+	public static int quantize(float coord, float min, float scale, int level){
+		int cell = (int) ((coord - min) * scale);
+		int maxCell = (1 << level) - 1;
+		if (cell < 0){
+			return 0;
+		}
+		if (cell > maxCell){
+			return maxCell;
+		}
+		return cell;
+	}
+
+	/**
+	 * Stable LSD radix sort of the first n keys (and their values), 8 bits per pass.
+	 *
+	 * @param bits how many low bits of the keys are significant.
+	 * @param tmpKeys scratch, at least n long.
+	 * @param tmpValues scratch, at least n long.
+	 * */
+	public static void sort(int[] keys, int[] values, int n, int bits, int[] tmpKeys, int[] tmpValues){
+		sort(keys, values, n, bits, tmpKeys, tmpValues, new int[256]);
+	}
+
+	/**
+	 * As {@link #sort(int[], int[], int, int, int[], int[])}, with caller-owned
+	 * counts (at least 256 long), so sorting doesn't allocate.
+	 * */
+	public static void sort(int[] keys, int[] values, int n, int bits, int[] tmpKeys, int[] tmpValues, int[] counts){
+		int[] srcK = keys, srcV = values, dstK = tmpKeys, dstV = tmpValues;
+
+		for (int shift = 0; shift < bits; shift += 8){
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++){
+				counts[(srcK[i] >>> shift) & 0xff]++;
+			}
+
+			int sum = 0;
+			for (int d = 0; d < 256; d++){
+				int c = counts[d];
+				counts[d] = sum;
+				sum += c;
+			}
+
+			for (int i = 0; i < n; i++){
+				int dst = counts[(srcK[i] >>> shift) & 0xff]++;
+				dstK[dst] = srcK[i];
+				dstV[dst] = srcV[i];
+			}
+
+			int[] t = srcK; srcK = dstK; dstK = t;
+			t = srcV; srcV = dstV; dstV = t;
+		}
+
+		if (srcK != keys){
+			System.arraycopy(srcK, 0, keys, 0, n);
+			System.arraycopy(srcV, 0, values, 0, n);
+		}
+	}
+}
@@ -13,12 +13,26 @@ import com.jme3.math.Vector3f;
  * It is responsible for providing the "poles" in the multipole approximation of vorton
  * influence.
  * */
-public class OTree {
+public class OTree implements VortonTree {
 	protected OTreeNode root;
 	transient Vector3f tempVec = new Vector3f();
 	transient Vector3f tempMin = new Vector3f();
 	transient Vector3f tempMax = new Vector3f();
 	
+	protected boolean refit = false;
+	protected float refitSlack = 0.25f;
+	protected boolean adaptive = false;
+	protected int leafCapacity = 32;
+	protected int maxDepth = 8;
+	protected int multipoleOrder = 0;
+	transient OTreeNode[] leafOf;
+	transient Vorton[] lastVortons;
+	transient int lastLevel = -1;
+	transient ArrayList<OTreeNode> allLeaves = new ArrayList<OTreeNode>();
+	transient ArrayList<OTreeNode> shedding = new ArrayList<OTreeNode>();
+	transient ArrayList<OTreeNode> overfull = new ArrayList<OTreeNode>();
+	transient ArrayList<OTreeNode> groupLeaves = new ArrayList<OTreeNode>();
+	
 	/**
 	 * Serialization only. Do not use.
 	 * */
@@ -44,6 +58,267 @@ public class OTree {
 		root = other.root.deepCopy();
 	}
 	
+	/**
+	 * Set whether this tree is refit in place between builds.
+	 * 
+	 * In refit mode, vortons keep their leaf from the previous build and only
+	 * those that have left their leaf's cell are moved. In an adaptive tree, a
+	 * leaf they crowd past the leaf capacity is split. Aggregates are then
+	 * recomputed bottom-up only along the paths of leaves that changed. The tree
+	 * is fully rebuilt when the vortons leave the (slack-expanded) root bounds,
+	 * the level changes, or a different vorton array is given.
+	 * */
+	public void setRefit(boolean refit){
+		this.refit = refit;
+		lastVortons = null;
+	}
+	
+	public boolean isRefit(){
+		return refit;
+	}
+	
+	/**
+	 * Set the margin added around the vorton bounds on a full rebuild in refit mode,
+	 * as a fraction of the bounds' extent on each axis.
+	 * 
+	 * Bigger slack means fewer full rebuilds, but coarser cells.
+	 * */
+	public void setRefitSlack(float slack){
+		refitSlack = slack;
+	}
+	
+	public float getRefitSlack(){
+		return refitSlack;
+	}
+	
+	/**
+	 * Set whether this tree splits adaptively.
+	 * 
+	 * An adaptive tree only splits a node when it holds more than the leaf capacity,
+	 * down to the max depth, instead of splitting uniformly to the build level.
+	 * Dense regions get small leaves and empty space gets no nodes.
+	 * */
+	public void setAdaptive(boolean adaptive){
+		this.adaptive = adaptive;
+		lastVortons = null;
+	}
+	
+	public boolean isAdaptive(){
+		return adaptive;
+	}
+	
+	/**
+	 * How many vortons an adaptive leaf may hold before it is split.
+	 * */
+	public void setLeafCapacity(int leafCapacity){
+		this.leafCapacity = leafCapacity;
+	}
+	
+	public int getLeafCapacity(){
+		return leafCapacity;
+	}
+	
+	/**
+	 * The deepest level an adaptive tree will split to.
+	 * */
+	public void setMaxDepth(int maxDepth){
+		this.maxDepth = maxDepth;
+	}
+	
+	public int getMaxDepth(){
+		return maxDepth;
+	}
+	
+	/**
+	 * Set the order of the node aggregates: 0 is the plain super vorton (monopole),
+	 * 1 adds dipole moments and 2 adds quadrupole moments.
+	 * 
+	 * Higher orders make far cells much more accurate, so shallower trees give
+	 * the same quality, at the cost of a more expensive build and far field evaluation.
+	 * Takes effect on the next build.
+	 * */
+	public void setMultipoleOrder(int order){
+		if (order < 0 || order > 2){
+			throw new IllegalArgumentException("Multipole order must be 0, 1 or 2: " + order);
+		}
+		this.multipoleOrder = order;
+		lastVortons = null;
+	}
+	
+	public int getMultipoleOrder(){
+		return multipoleOrder;
+	}
+	
+	public void build(Vorton[] vortons, Vector3f min, Vector3f max, int level){
+		if (refit){
+			if (canRefit(vortons, min, max, level)){
+				refit(vortons);
+			}
+			else {
+				buildForRefit(vortons, min, max, level);
+			}
+			return;
+		}
+		
+		reset(min, max, level);
+		for (Vorton v : vortons){
+			insert(v);
+		}
+		root.updateDerivedQuantities();
+	}
+	
+	/**
+	 * Reform the (empty) tree over the given bounds, ready for insertion.
+	 * */
+	protected void reset(Vector3f min, Vector3f max, int level){
+		if (root == null){
+			root = new OTreeNode(min, max, 0);
+		}
+		root.setMultipoleOrder(multipoleOrder);
+		
+		if (adaptive){
+			root.reform(min, max);
+			root.collapse();
+		}
+		else {
+			rebuild(min, max, level);
+		}
+	}
+	
+	protected boolean canRefit(Vorton[] vortons, Vector3f min, Vector3f max, int level){
+		if (root == null || vortons != lastVortons || level != lastLevel){
+			return false;
+		}
+		Vector3f rootMin = root.getMin();
+		Vector3f rootMax = root.getMax();
+		return min.x >= rootMin.x && min.y >= rootMin.y && min.z >= rootMin.z &&
+			   max.x <= rootMax.x && max.y <= rootMax.y && max.z <= rootMax.z;
+	}
+	
+	/**
+	 * Full build over slack-expanded bounds, remembering the leaf of every vorton.
+	 * */
+	protected void buildForRefit(Vorton[] vortons, Vector3f min, Vector3f max, int level){
+		tempVec.set(max).subtractLocal(min).multLocal(refitSlack);
+		tempVec.x = Math.max(tempVec.x, FastMath.ZERO_TOLERANCE);
+		tempVec.y = Math.max(tempVec.y, FastMath.ZERO_TOLERANCE);
+		tempVec.z = Math.max(tempVec.z, FastMath.ZERO_TOLERANCE);
+		tempMin.set(min).subtractLocal(tempVec);
+		tempMax.set(max).addLocal(tempVec);
+		
+		reset(tempMin, tempMax, level);
+		
+		if (leafOf == null || leafOf.length != vortons.length){
+			leafOf = new OTreeNode[vortons.length];
+		}
+		if (adaptive){
+			for (int i = 0; i < vortons.length; i++){
+				insert(vortons[i]);
+			}
+			for (int i = 0; i < vortons.length; i++){ //splits move earlier vortons, so look their leaves up afterwards
+				leafOf[i] = root.findLeaf(vortons[i].getPosition());
+			}
+		}
+		else {
+			for (int i = 0; i < vortons.length; i++){
+				leafOf[i] = root.insert(vortons[i]);
+			}
+		}
+		root.updateDerivedQuantities();
+		
+		allLeaves.clear();
+		root.getAllLeaves(allLeaves);
+		lastVortons = vortons;
+		lastLevel = level;
+	}
+	
+	/**
+	 * Move the vortons that left their leaves, split the leaves that got too
+	 * full, then refresh aggregates along the changed paths.
+	 * */
+	protected void refit(Vorton[] vortons){
+		for (int i = 0; i < vortons.length; i++){
+			Vorton v = vortons[i];
+			OTreeNode leaf = leafOf[i];
+			if (leaf.contains(v.getPosition())){
+				continue;
+			}
+			
+			OTreeNode target = leaf.findLeaf(v.getPosition());
+			target.items.add(v);
+			leafOf[i] = target;
+			if (!leaf.shedding){ //removed below, in one pass per leaf
+				leaf.shedding = true;
+				shedding.add(leaf);
+			}
+			if (adaptive && target.items.size() == leafCapacity + 1 && target.level < maxDepth){
+				overfull.add(target);
+			}
+		}
+		
+		for (int i = 0; i < shedding.size(); i++){
+			OTreeNode leaf = shedding.get(i);
+			leaf.shedEscaped();
+			leaf.shedding = false;
+		}
+		shedding.clear();
+		
+		if (splitOverfull()){
+			for (int i = 0; i < vortons.length; i++){
+				if (leafOf[i].items == null){
+					leafOf[i] = leafOf[i].findLeaf(vortons[i].getPosition());
+				}
+			}
+			allLeaves.clear();
+			root.getAllLeaves(allLeaves);
+		}
+		
+		for (int i = 0; i < allLeaves.size(); i++){
+			OTreeNode leaf = allLeaves.get(i);
+			if (leaf.items.isEmpty() && leaf.vortonsPassedThroughHere == 0){ //was and still is empty
+				continue;
+			}
+			if (leaf.refitLeaf()){
+				markParentDirty(leaf);
+			}
+		}
+		
+		root.refitDerivedQuantities();
+	}
+	
+	/**
+	 * Split the leaves that refitting crowded past the leaf capacity. The
+	 * new nodes are built as in a full build; the split leaves and their
+	 * ancestors are left dirty.
+	 * 
+	 * @return true if any leaf was split.
+	 * */
+	protected boolean splitOverfull(){
+		boolean split = false;
+		for (int i = 0; i < overfull.size(); i++){
+			OTreeNode leaf = overfull.get(i);
+			if (leaf.items.size() <= leafCapacity){ //some of its vortons left too
+				continue;
+			}
+			leaf.splitLeaf(leafCapacity, maxDepth);
+			for (OTreeNode child : leaf.children){
+				if (child != null){
+					child.updateDerivedQuantities();
+				}
+			}
+			leaf.markDirty();
+			split = true;
+		}
+		overfull.clear();
+		return split;
+	}
+	
+	protected void markParentDirty(OTreeNode leaf){
+		if (leaf.parent != null){
+			leaf.parent.markDirty();
+		}
+	}
+	
 	public void rebuild(Vector3f min, Vector3f max, int level){
 		root.reform(min, max);
 		root.split(0, level);
@@ -67,6 +342,53 @@ public class OTree {
 		getRoot().getVortons(vortons);
 	}
 	
+	/**
+	 * Add the item list of every leaf that has at least one vorton in it. A
+	 * refit tree reads its list of leaves rather than walking the tree.
+	 * */
+	public void getLeafGroups(List<List<Vorton>> store){
+		ArrayList<OTreeNode> leaves = allLeaves;
+		if (!refit || lastVortons == null){
+			leaves = groupLeaves;
+			leaves.clear();
+			root.getLeaves(leaves);
+		}
+		for (int i = 0; i < leaves.size(); i++){
+			ArrayList<Vorton> items = leaves.get(i).items;
+			if (!items.isEmpty()){
+				store.add(items);
+			}
+		}
+	}
+	
+	/**
+	 * Get every leaf that has at least one vorton in it.
+	 * */
+	public void getLeaves(ArrayList<OTreeNode> store){
+		root.getLeaves(store);
+	}
+	
+	/**
+	 * Find the leaf that holds the given position.
+	 * 
+	 * @return null if the position is outside of the tree.
+	 * */
+	public OTreeNode findLeaf(Vector3f pos){
+		if (root == null || !root.contains(pos)){
+			return null;
+		}
+		return root.findLeaf(pos);
+	}
+	
+	/**
+	 * Get one list of influential vortons (elementary and super) that serves every point
+	 * in the given leaf. This is a superset of what {@link #getInfluentialVortons} gives
+	 * for any single point in the leaf, at the cost of one traversal per leaf.
+	 * */
+	public void getLeafInteractions(OTreeNode leaf, float searchRadius, InfluenceBuffer store){
+		OTreeNode.getLeafInteractions(leaf, searchRadius, store);
+	}
+	
 	/**
 	 * Creates a deep copy of the current OTree.
 	 * 
@@ -84,7 +406,12 @@ public class OTree {
 	 * Insert into tree.
 	 * */
 	public void insert(Vorton v){
-		root.insert(v);
+		if (adaptive){
+			root.insertAdaptive(v, leafCapacity, maxDepth);
+		}
+		else {
+			root.insert(v);
+		}
 	}
 	
 	/**
@@ -94,6 +421,10 @@ public class OTree {
 		root.getInfluentialVortons(query, searchRadius, storage);
 	}
 		
+	public void getInfluences(Vector3f query, float searchRadius, int exclude, InfluenceBuffer store){
+		root.getInfluences(query, searchRadius, exclude, store);
+	}
+		
 	/**
 	 * Get the pre-order traversal of this tree.
 	 * */
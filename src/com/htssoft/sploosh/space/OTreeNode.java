@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import com.htssoft.sploosh.MultipoleVorton;
 import com.htssoft.sploosh.SimpleVorton;
 import com.htssoft.sploosh.Vorton;
 import com.jme3.math.Vector3f;
@@ -20,6 +21,18 @@ public class OTreeNode {
 	SimpleVorton superVorton = new SimpleVorton();
 	int vortonsPassedThroughHere = 0;
 	float normVortMag = 0f;
+	int multipoleOrder = 0;
+	transient OTreeNode parent;
+	transient boolean dirty;
+	transient boolean shedding;
+	transient OTreeNode[] spareChildren;
+	transient ArrayList<Vorton> spareItems;
+	/**
+	 * Scratch for binning points by leaf: binSlot is only good while binPass
+	 * matches the pass of whoever is binning.
+	 * */
+	public transient int binPass;
+	public transient int binSlot;
 	
 	public OTreeNode(){
 		level = -1;
@@ -31,6 +44,19 @@ public class OTreeNode {
 		this.level = level;
 	}
 	
+	/**
+	 * Set how many moments this node's super vorton carries: 0 for the plain
+	 * summed vorticity, 1 to add dipoles, 2 to add quadrupoles. Children pick
+	 * this up when they are (re)split.
+	 * */
+	protected void setMultipoleOrder(int order){
+		if (order == multipoleOrder){
+			return;
+		}
+		multipoleOrder = order;
+		superVorton = order > 0 ? new MultipoleVorton(order) : new SimpleVorton();
+	}
+	
 	public Vector3f getMin(){
 		return cellMin;
 	}
@@ -43,23 +69,244 @@ public class OTreeNode {
 		store.addAll(items);
 	}
 	
+	/**
+	 * Get this leaf's items (null for internal nodes). The list is owned by the tree.
+	 * */
+	public List<Vorton> getItems(){
+		return items;
+	}
+	
 	/**
 	 * Insert another point
+	 * 
+	 * @return the leaf the vorton ended up in.
+	 * */
+	protected OTreeNode insert(Vorton vorton){
+		accumulate(vorton); //position needs to be eventually divided by normVortMag
+		
+		if (children != null){
+			return chooseChild(vorton.getPosition()).insert(vorton);
+		}
+		
+		items.add(vorton);
+		return this;
+	}
+	
+	/**
+	 * Insert another point, splitting any leaf that grows past leafCapacity
+	 * items until maxDepth is reached.
+	 * */
+	protected void insertAdaptive(Vorton vorton, int leafCapacity, int maxDepth){
+		OTreeNode node = this;
+		while (true){
+			node.accumulate(vorton);
+			if (node.children == null){
+				break;
+			}
+			node = node.chooseChild(vorton.getPosition());
+		}
+		
+		node.items.add(vorton);
+		if (node.items.size() > leafCapacity && node.level < maxDepth){
+			node.splitLeaf(leafCapacity, maxDepth);
+		}
+	}
+	
+	/**
+	 * Add the vorton to this node's (un-normalized) aggregate.
 	 * */
-	protected void insert(Vorton vorton){
+	protected void accumulate(Vorton vorton){
 		superVorton.getVort().addLocal(vorton.getVort());
 		float vortMag = vorton.getVort().length();
 		Vector3f pos = vorton.getPosition();
-		superVorton.getPosition().addLocal(pos.x * vortMag, pos.y * vortMag, pos.z * vortMag); //this needs to be eventually divided by n
+		superVorton.getPosition().addLocal(pos.x * vortMag, pos.y * vortMag, pos.z * vortMag);
 		normVortMag += vortMag;
-		vortonsPassedThroughHere++;	
-		
+		vortonsPassedThroughHere++;
+		if (multipoleOrder > 0){ //moved to the centroid in updateDerivedQuantities
+			((MultipoleVorton) superVorton).accumulate(pos, vorton.getVort(), cellMin);
+		}
+	}
+	
+	/**
+	 * Turn this leaf into an internal node, pushing its items down
+	 * one level.
+	 * */
+	protected void splitLeaf(int leafCapacity, int maxDepth){
+		ArrayList<Vorton> oldItems = items;
+		items = null;
+		split(level, level + 1);
+		for (int i = 0; i < oldItems.size(); i++){
+			chooseChild(oldItems.get(i).getPosition()).insertAdaptive(oldItems.get(i), leafCapacity, maxDepth);
+		}
+		oldItems.clear();
+		spareItems = oldItems;
+	}
+	
+	/**
+	 * Drop the items that have left this leaf's cell, swapping the last
+	 * item into each hole.
+	 * */
+	protected void shedEscaped(){
+		int size = items.size();
+		for (int i = size - 1; i >= 0; i--){
+			if (!contains(items.get(i).getPosition())){
+				items.set(i, items.get(--size));
+				items.remove(size);
+			}
+		}
+	}
+	
+	/**
+	 * Make this node a leaf again, keeping its children
+	 * around to be reused by the next split.
+	 * */
+	protected void collapse(){
 		if (children != null){
-			chooseChild(vorton.getPosition()).insert(vorton);
+			spareChildren = children;
+			children = null;
+		}
+		
+		if (items == null){
+			if (spareItems != null){
+				items = spareItems;
+				spareItems = null;
+			}
+			else {
+				items = new ArrayList<Vorton>();
+			}
+		}
+		else {
+			items.clear();
+		}
+	}
+	
+	/**
+	 * Find the leaf that should hold the given position, starting
+	 * from this node and walking up only as far as needed.
+	 * 
+	 * @return null if the position is outside of the whole tree.
+	 * */
+	protected OTreeNode findLeaf(Vector3f pos){
+		OTreeNode node = this;
+		while (!node.contains(pos)){
+			node = node.parent;
+			if (node == null){
+				return null;
+			}
+		}
+		
+		while (node.children != null){
+			node = node.chooseChild(pos);
+		}
+		return node;
+	}
+	
+	/**
+	 * Flag this node and all of its ancestors as needing their
+	 * aggregates recomputed.
+	 * */
+	protected void markDirty(){
+		OTreeNode node = this;
+		while (node != null && !node.dirty){
+			node.dirty = true;
+			node = node.parent;
+		}
+	}
+	
+	/**
+	 * Recompute this leaf's aggregate from its items.
+	 * 
+	 * @return true if the aggregate changed.
+	 * */
+	protected boolean refitLeaf(){
+		float vx = 0f, vy = 0f, vz = 0f;
+		float px = 0f, py = 0f, pz = 0f;
+		float mag = 0f;
+		for (int i = 0; i < items.size(); i++){
+			Vorton v = items.get(i);
+			Vector3f vort = v.getVort();
+			Vector3f pos = v.getPosition();
+			float vortMag = vort.length();
+			vx += vort.x; vy += vort.y; vz += vort.z;
+			px += pos.x * vortMag; py += pos.y * vortMag; pz += pos.z * vortMag;
+			mag += vortMag;
+		}
+		if (mag != 0){
+			px /= mag; py /= mag; pz /= mag;
+		}
+		
+		Vector3f superPos = superVorton.getPosition();
+		Vector3f superVort = superVorton.getVort();
+		boolean changed = vortonsPassedThroughHere != items.size() || normVortMag != mag ||
+				superVort.x != vx || superVort.y != vy || superVort.z != vz ||
+				superPos.x != px || superPos.y != py || superPos.z != pz;
+		
+		superVort.set(vx, vy, vz);
+		superPos.set(px, py, pz);
+		normVortMag = mag;
+		vortonsPassedThroughHere = items.size();
+		
+		if (changed && multipoleOrder > 0){
+			MultipoleVorton mp = (MultipoleVorton) superVorton;
+			mp.clearMoments();
+			for (int i = 0; i < items.size(); i++){
+				Vorton v = items.get(i);
+				mp.accumulate(v.getPosition(), v.getVort(), superPos);
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * Recompute the aggregates of the dirty internal nodes below (and including) this one
+	 * from their children. Clean subtrees are left alone.
+	 * */
+	protected void refitDerivedQuantities(){
+		if (!dirty){
 			return;
 		}
+		dirty = false;
 		
-		items.add(vorton);
+		if (children == null){
+			return;
+		}
+		
+		Vector3f superPos = superVorton.getPosition();
+		Vector3f superVort = superVorton.getVort();
+		superPos.zero();
+		superVort.zero();
+		normVortMag = 0f;
+		vortonsPassedThroughHere = 0;
+		
+		for (OTreeNode child : children){
+			if (child == null){
+				continue;
+			}
+			child.refitDerivedQuantities();
+			Vector3f childPos = child.superVorton.getPosition();
+			float childMag = child.normVortMag;
+			superVort.addLocal(child.superVorton.getVort());
+			superPos.addLocal(childPos.x * childMag, childPos.y * childMag, childPos.z * childMag);
+			normVortMag += childMag;
+			vortonsPassedThroughHere += child.vortonsPassedThroughHere;
+		}
+		
+		if (normVortMag != 0){
+			superPos.divideLocal(normVortMag);
+		}
+		
+		if (multipoleOrder > 0){
+			MultipoleVorton mp = (MultipoleVorton) superVorton;
+			mp.clearMoments();
+			for (OTreeNode child : children){
+				if (child == null || !(child.superVorton instanceof MultipoleVorton)){
+					continue;
+				}
+				Vector3f childPos = child.superVorton.getPosition();
+				mp.addTranslated((MultipoleVorton) child.superVorton, 
+						childPos.x - superPos.x, childPos.y - superPos.y, childPos.z - superPos.z);
+			}
+		}
 	}
 	
 	/**
@@ -68,8 +315,12 @@ public class OTreeNode {
 	 * */
 	public void updateDerivedQuantities(){
 		if (vortonsPassedThroughHere > 0){
+			Vector3f superPos = superVorton.getPosition();
 			if (normVortMag != 0){
-				superVorton.getPosition().divideLocal(normVortMag);
+				superPos.divideLocal(normVortMag);
+			}
+			if (multipoleOrder > 0){
+				((MultipoleVorton) superVorton).translate(cellMin.x - superPos.x, cellMin.y - superPos.y, cellMin.z - superPos.z);
 			}
 		}
 		
@@ -90,6 +341,9 @@ public class OTreeNode {
 		cellMax.set(max);
 		superVorton.getPosition().zero();
 		superVorton.getVort().zero();
+		if (multipoleOrder > 0){
+			((MultipoleVorton) superVorton).clearMoments();
+		}
 		vortonsPassedThroughHere = 0;
 		normVortMag = 0f;
 	}
@@ -99,22 +353,23 @@ public class OTreeNode {
 	 * */
 	protected void split(int curLevel, int targetLevel){
 		if (curLevel == targetLevel){
-			if (items == null){
-				items = new ArrayList<Vorton>();
-			}
-			else {
-				items.clear();
-			}
+			collapse();
 			return;
 		}
 		
 		if (splitPoint == null){
 			splitPoint = new Vector3f();
-			splitPoint.interpolate(cellMin, cellMax, 0.5f);	
-			children = new OTreeNode[8];
 		}
-		else {
-			splitPoint.interpolate(cellMin, cellMax, 0.5f);
+		splitPoint.interpolate(cellMin, cellMax, 0.5f);
+		
+		if (children == null){
+			if (spareChildren != null){
+				children = spareChildren;
+				spareChildren = null;
+			}
+			else {
+				children = new OTreeNode[8];
+			}
 		}
 		
 		for (int i = 0; i < 8; i++){
@@ -150,16 +405,22 @@ public class OTreeNode {
 			
 			if (children[child] == null){
 				childNode = new OTreeNode(tempMin, tempMax, curLevel + 1); 
+				childNode.parent = this;
 				children[child] = childNode;	
 			}
 			else {
 				childNode = children[child];
 				childNode.reform(tempMin, tempMax);
 			}
+			childNode.setMultipoleOrder(multipoleOrder);
 							
 			childNode.split(curLevel + 1, targetLevel);
 		}
-		items = null;
+		if (items != null){
+			items.clear();
+			spareItems = items;
+			items = null;
+		}
 	}
 	
 	/**
@@ -211,6 +472,23 @@ public class OTreeNode {
 		}
 	}
 	
+	/**
+	 * Gets all leaves in the tree, empty or not.
+	 * */
+	public void getAllLeaves(List<OTreeNode> store){
+		if (children == null){
+			store.add(this);
+			return;
+		}
+		
+		for (OTreeNode child : children){
+			if (child == null){
+				continue;
+			}
+			child.getAllLeaves(store);
+		}
+	}
+	
 	protected void getInfluentialVortons(Vector3f pos, float searchRadius, Collection<Vorton> storage){
 		if (vortonsPassedThroughHere == 0){
 			return;
@@ -226,7 +504,7 @@ public class OTreeNode {
 		}
 		else if (this.contains(pos)){ //inside bounding box
 			for (OTreeNode c : children){
-				if (c == null){
+				if (c == null || c.vortonsPassedThroughHere == 0){
 					continue;
 				}
 				if (c.contains(pos)){
@@ -248,6 +526,45 @@ public class OTreeNode {
 		}
 	}
 	
+	/**
+	 * Same as {@link #getInfluentialVortons(Vector3f, float, Collection)}, into
+	 * a reusable buffer and leaving out the vorton with the given index.
+	 * */
+	protected void getInfluences(Vector3f pos, float searchRadius, int exclude, InfluenceBuffer store){
+		if (vortonsPassedThroughHere == 0){
+			return;
+		}
+		
+		if (children == null){ //leaf node
+			if (contains(pos)){
+				store.addAll(items, exclude);
+			}
+			return;
+		}
+		else if (this.contains(pos)){ //inside bounding box
+			for (OTreeNode c : children){
+				if (c == null || c.vortonsPassedThroughHere == 0){
+					continue;
+				}
+				if (c.contains(pos)){
+					if (c.children == null){
+						store.addAll(c.items, exclude);
+					}
+					else {
+						c.getInfluences(pos, searchRadius, exclude, store);
+					}
+				}
+				else if (pos.distanceSquared(c.superVorton.getPosition()) < searchRadius){
+					store.addAggregate(c.superVorton);
+				}
+			}
+			return;
+		}
+		else { //internal node that does not contain the query point
+			store.addAggregate(superVorton);
+		}
+	}
+	
 	
 	/**
 	 * Get the list of vortons (super and elementary) that contribute
@@ -280,6 +597,42 @@ public class OTreeNode {
 //		}
 //	}
 	
+	/**
+	 * Get the influential vortons shared by every point in the given leaf.
+	 * 
+	 * This is {@link #getInfluentialVortons} done once for a whole leaf: the path
+	 * from the leaf up to the root is followed, and a sibling's super vorton is added if
+	 * it would be for <em>any</em> point in the leaf, i.e. if it is within the search
+	 * radius of the leaf's bounds.
+	 * */
+	protected static void getLeafInteractions(OTreeNode leaf, float searchRadius, InfluenceBuffer store){
+		if (leaf.children != null){ //not a leaf
+			return;
+		}
+		
+		store.addAll(leaf.items, -1);
+		for (OTreeNode next = leaf, node = leaf.parent; node != null; next = node, node = node.parent){
+			for (OTreeNode c : node.children){
+				if (c == null || c == next || c.vortonsPassedThroughHere == 0){
+					continue;
+				}
+				if (leaf.boundsDistanceSquared(c.superVorton.getPosition()) < searchRadius){
+					store.addAggregate(c.superVorton);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Squared distance from this cell to the given point; 0 if the point is inside.
+	 * */
+	protected float boundsDistanceSquared(Vector3f pos){
+		float dx = Math.max(0f, Math.max(cellMin.x - pos.x, pos.x - cellMax.x));
+		float dy = Math.max(0f, Math.max(cellMin.y - pos.y, pos.y - cellMax.y));
+		float dz = Math.max(0f, Math.max(cellMin.z - pos.z, pos.z - cellMax.z));
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
 	/**
 	 * Get all of the Vortons in the given cell.
 	 * */
@@ -360,7 +713,14 @@ public class OTreeNode {
 	public OTreeNode deepCopy(){
 		OTreeNode other = new OTreeNode(cellMin, cellMax, level);
 		other.vortonsPassedThroughHere = this.vortonsPassedThroughHere;
-		other.superVorton.set(this.superVorton);
+		other.normVortMag = this.normVortMag;
+		if (superVorton instanceof MultipoleVorton){
+			other.multipoleOrder = this.multipoleOrder;
+			other.superVorton = new MultipoleVorton((MultipoleVorton) superVorton);
+		}
+		else {
+			other.superVorton.set(this.superVorton);
+		}
 		
 		if (this.splitPoint != null){
 			other.splitPoint = new Vector3f(this.splitPoint);
@@ -378,6 +738,7 @@ public class OTreeNode {
 			for (int i = 0; i < children.length; i++){
 				if (children[i] != null){
 					other.children[i] = children[i].deepCopy();
+					other.children[i].parent = other;
 				}
 			}
 		}
@@ -1,81 +1,145 @@
 package com.htssoft.sploosh.space;
 
-import com.htssoft.sploosh.ThreadVars;
-import com.jme3.bounding.BoundingBox;
 import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
 
 /**
- * This is not used currently. Nor does it work.
- * 
- * It may be used in the future to accelerate velocity calculations.
- * 
- * Or, it may not, since then we'd be stuffed into a predefined volume.
- * 
- * Dunno.
+ * A uniform lattice of cached velocities, sampled by trilinear interpolation.
+ *
+ * The owner fills in the velocity at every node (see {@link #getNodePosition}
+ * and {@link #setVelocity}) once per simulation step, after which sampling
+ * costs the same no matter how many vortons there are.
+ *
+ * Velocities are stored flat, xyz-interleaved, with x varying fastest.
  * */
-public class UniformGrid<T> {
-	protected int[] nCells = new int[3];
-	protected BoundingBox bounds = new BoundingBox();
-	protected Vector3f extent = new Vector3f();
-	protected T[] values;
-	protected T defaultValue;
-	
-	@SuppressWarnings("unchecked")
-	public UniformGrid(Vector3f min, Vector3f max, int cellsPerUnit, T defaultValue){
-		bounds.setMinMax(min, max);
-		extent.set(max).subtractLocal(min);
-		this.defaultValue = defaultValue;
-		
-		nCells[0] = (int) (FastMath.ceil(extent.x * cellsPerUnit));
-		nCells[1] = (int) (FastMath.ceil(extent.y * cellsPerUnit));
-		nCells[2] = (int) (FastMath.ceil(extent.z * cellsPerUnit));
+public class UniformGrid {
+	/**
+	 * The spacing is widened if the bounds would need more nodes than this.
+	 * */
+	public static final int MAX_NODES = 64 * 64 * 64;
+
+	protected final Vector3f min = new Vector3f();
+	protected float spacing;
+	protected float invSpacing;
+	protected int nx, ny, nz;
+	protected float[] velocities = new float[0];
+
+	public UniformGrid(){
+
+	}
+
+	/**
+	 * Lay out nodes covering min..max, the given distance apart. Old velocities are not kept.
+	 * */
+	public void reset(Vector3f min, Vector3f max, float spacing){
+		float ex = max.x - min.x, ey = max.y - min.y, ez = max.z - min.z;
+		float volume = (ex + spacing) * (ey + spacing) * (ez + spacing);
+		if (volume / (spacing * spacing * spacing) > MAX_NODES){
+			spacing = FastMath.pow(volume / MAX_NODES, 1f / 3f);
+		}
 		
-		values = (T[]) new Object[nCells[0] * nCells[1] * nCells[2]];
+		float inv = 1f / spacing;
+		reset(min, spacing, (int) FastMath.ceil(ex * inv) + 1, (int) FastMath.ceil(ey * inv) + 1, (int) FastMath.ceil(ez * inv) + 1);
 	}
-	
-	public void insert(T value, Vector3f position, ThreadVars vars){
-		if (!bounds.contains(position)){
-			throw new IllegalArgumentException("Tried to add " + position + " to grid with bounds " + bounds);
+
+	/**
+	 * Lay out nx by ny by nz nodes starting at min, the given distance apart.
+	 * Old velocities are not kept.
+	 * */
+	public void reset(Vector3f min, float spacing, int nx, int ny, int nz){
+		this.min.set(min);
+		this.spacing = spacing;
+		this.invSpacing = 1f / spacing;
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+
+		int n = nx * ny * nz * 3;
+		if (velocities.length < n){
+			velocities = new float[n];
 		}
+	}
 
-		values[indexOfPosition(position, vars)] = value;
+	public int nNodes(){
+		return nx * ny * nz;
 	}
-	
-	public T get(Vector3f position, ThreadVars vars){
-		int index = indexOfPosition(position, vars);
-		
-		T retval = values[index];
-		if (retval == null){
-			return defaultValue;
-		}
-		
-		return retval;
+
+	public float getSpacing(){
+		return spacing;
 	}
-	
-	protected int indexOfPosition(Vector3f position, ThreadVars vars){
-		vars.temp0.set(position).subtractLocal(bounds.getMin(vars.temp1));
-		vars.temp0.divideLocal(extent);
-		int x, y, z;
-		x = (int) (vars.temp0.x * nCells[0]);
-		y = (int) (vars.temp0.y * nCells[1]);
-		z = (int) (vars.temp0.z * nCells[2]);
-		return linearize(x, y, z);
+
+	public void getNodePosition(int node, Vector3f store){
+		int x = node % nx;
+		int y = (node / nx) % ny;
+		int z = node / (nx * ny);
+		store.set(min.x + x * spacing, min.y + y * spacing, min.z + z * spacing);
+	}
+
+	public void setVelocity(int node, Vector3f velocity){
+		setVelocity(node, velocity.x, velocity.y, velocity.z);
+	}
+
+	public void setVelocity(int node, float x, float y, float z){
+		int offset = node * 3;
+		velocities[offset] = x;
+		velocities[offset + 1] = y;
+		velocities[offset + 2] = z;
+	}
+
+	/**
+	 * Interpolate the velocity at the given position.
+	 *
+	 * @return false (leaving store untouched) if the position is outside of the grid.
+	 * */
+	public boolean sample(Vector3f position, Vector3f store){
+		float fx = (position.x - min.x) * invSpacing;
+		float fy = (position.y - min.y) * invSpacing;
+		float fz = (position.z - min.z) * invSpacing;
+		if (!(fx >= 0f && fy >= 0f && fz >= 0f)){ //also catches NaN
+			return false;
+		}
+
+		int x = (int) fx, y = (int) fy, z = (int) fz;
+		if (x >= nx - 1 || y >= ny - 1 || z >= nz - 1){
+			return false;
+		}
+		float tx = fx - x, ty = fy - y, tz = fz - z;
+
+		int o = ((z * ny + y) * nx + x) * 3;
+		store.set(interpolate(o, tx, ty, tz), interpolate(o + 1, tx, ty, tz), interpolate(o + 2, tx, ty, tz));
+		return true;
 	}
-	
-	public void printTable(){
-		for (int z = 0; z < nCells[2]; z++){
-			for (int y = 0; y < nCells[1]; y++){
-				for (int x = 0; x < nCells[0]; x++){
-					System.out.print(values[linearize(x, y, z)]);
-				}
-				System.out.print("\n");
-			}
-			System.out.println("\t\t***");
+
+	/**
+	 * Interpolate the velocity at the given position, blended with another grid's:
+	 * alpha 0 is all previous, 1 is all this grid. Where only one grid covers the
+	 * position, that one is used.
+	 *
+	 * @return false (leaving store untouched) if neither grid covers the position.
+	 * */
+	public boolean sample(Vector3f position, UniformGrid previous, float alpha, Vector3f store){
+		if (!sample(position, store)){
+			return previous.sample(position, store);
+		}
+		float x = store.x, y = store.y, z = store.z;
+		if (!previous.sample(position, store)){
+			store.set(x, y, z);
+			return true;
 		}
+		store.set(store.x + (x - store.x) * alpha, store.y + (y - store.y) * alpha, store.z + (z - store.z) * alpha);
+		return true;
 	}
-	
-	private int linearize(int x, int y, int z){
-		return (z * nCells[0] * nCells[1]) + (y * nCells[0]) + x;
+
+	protected float interpolate(int o, float tx, float ty, float tz){
+		int dy = nx * 3;
+		int dz = nx * ny * 3;
+		float[] v = velocities;
+		float x00 = v[o] + (v[o + 3] - v[o]) * tx;
+		float x10 = v[o + dy] + (v[o + dy + 3] - v[o + dy]) * tx;
+		float x01 = v[o + dz] + (v[o + dz + 3] - v[o + dz]) * tx;
+		float x11 = v[o + dy + dz] + (v[o + dy + dz + 3] - v[o + dy + dz]) * tx;
+		float y0 = x00 + (x10 - x00) * ty;
+		float y1 = x01 + (x11 - x01) * ty;
+		return y0 + (y1 - y0) * tz;
 	}
 }
@@ -0,0 +1,62 @@
+package com.htssoft.sploosh.space;
+
+import java.util.List;
+
+import com.htssoft.sploosh.Vorton;
+import com.jme3.math.Vector3f;
+
+/**
+ * A spatial index over vortons that can answer influence queries.
+ *
+ * {@link OTree} is the object-graph implementation; {@link LinearOTree}
+ * keeps the same tree in flat arrays.
+ * */
+public interface VortonTree {
+	/**
+	 * Rebuild the tree over the given vortons.
+	 *
+	 * @param vortons the vortons to index.
+	 * @param min the lower bound of all vorton positions.
+	 * @param max the upper bound of all vorton positions.
+	 * @param level how many levels of subdivision to use.
+	 * */
+	public void build(Vorton[] vortons, Vector3f min, Vector3f max, int level);
+
+	/**
+	 * Get the influential vortons (elementary and super) for the given position.
+	 * */
+	public void getInfluentialVortons(Vector3f query, float searchRadius, List<Vorton> storage);
+
+	/**
+	 * Get the influential vortons for the given position into a reusable buffer,
+	 * leaving out the vorton with the given index.
+	 *
+	 * This follows the same rules as {@link #getInfluentialVortons}, but does not allocate.
+	 *
+	 * @param exclude the index of the vorton to leave out (e.g. the one being advected), or -1.
+	 * */
+	public void getInfluences(Vector3f query, float searchRadius, int exclude, InfluenceBuffer store);
+
+	/**
+	 * Get the contents of every leaf that has at least one vorton in it.
+	 *
+	 * The lists added are owned by the tree, and are only valid until the next build.
+	 * */
+	public void getLeafGroups(List<List<Vorton>> store);
+
+	/**
+	 * How many vortons were inserted in the last build?
+	 * */
+	public int nVortons();
+
+	/**
+	 * Get all vortons in the tree.
+	 * */
+	public void getVortons(List<Vorton> vortons);
+
+	/**
+	 * Create a deep copy of this tree, with SimpleVorton copies of
+	 * the live vortons.
+	 * */
+	public VortonTree deepCopy();
+}
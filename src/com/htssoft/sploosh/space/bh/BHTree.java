@@ -9,6 +9,11 @@ import com.jme3.math.Vector3f;
  * A Barnes-Hutt tree.
  * */
 public abstract class BHTree<BODY_T extends Body> {
+	/**
+	 * Cells narrower than this are not split any further; bodies
+	 * that land in them share the overflow list.
+	 * */
+	public static final float MIN_CELL_WIDTH = 1e-5f;
 	
 	/**
 	 * The body for this cell.
@@ -32,7 +37,7 @@ public abstract class BHTree<BODY_T extends Body> {
 	public Vector3f cellMax = new Vector3f();
 	
 	/**
-	 * The half length of a cube extent.
+	 * The largest extent of this cell.
 	 * */
 	protected float areaWidth;
 	
@@ -41,14 +46,38 @@ public abstract class BHTree<BODY_T extends Body> {
 	 * */
 	BHTree<BODY_T>[] children = null;
 	
+	/**
+	 * Children kept from before the last clear, reused by the next split.
+	 * */
+	BHTree<BODY_T>[] spareChildren = null;
+	
 	public BHTree(Vector3f min, Vector3f max){
+		setBounds(min, max);
+	}
+	
+	protected void setBounds(Vector3f min, Vector3f max){
 		this.cellMax.set(max);
 		this.cellMin.set(min);
-		areaWidth = Math.max(Math.max(cellMax.x - cellMin.x, cellMax.y - cellMin.y), cellMax.z - cellMax.z);
+		areaWidth = Math.max(Math.max(cellMax.x - cellMin.x, cellMax.y - cellMin.y), cellMax.z - cellMin.z);
 		
 		splitPoint.interpolate(cellMin, cellMax, 0.5f);
 	}
 	
+	/**
+	 * Empty this tree and give it new bounds, so that it can be refilled
+	 * without reallocating its nodes.
+	 * */
+	public void clear(Vector3f min, Vector3f max){
+		setBounds(min, max);
+		body = null;
+		overflowList.clear();
+		if (children != null){
+			spareChildren = children;
+			children = null;
+		}
+		resetIntegration();
+	}
+	
 	/**
 	 * Is this a leaf node?
 	 * */
@@ -125,8 +154,8 @@ public abstract class BHTree<BODY_T extends Body> {
 				return;
 			}
 			
-			// they have identical position.
-			if (newBody.getPosition().equals(body.getPosition())){
+			// they have identical position, or we can't separate them.
+			if (areaWidth < MIN_CELL_WIDTH || newBody.getPosition().equals(body.getPosition())){
 				overflowList.add(newBody);
 				return;
 			}
@@ -158,6 +187,11 @@ public abstract class BHTree<BODY_T extends Body> {
 	 * */
 	public abstract void integrateBody(BODY_T body);
 
+	/**
+	 * Forget everything added through {@link #integrateBody(Body)}.
+	 * */
+	public abstract void resetIntegration();
+
 	/**
 	 * Override this to update derived values.
 	 * */
@@ -201,7 +235,9 @@ public abstract class BHTree<BODY_T extends Body> {
 		Vector3f tempMin = new Vector3f();
 		Vector3f tempMax = new Vector3f();
 		
-		children = new BHTree[8];
+		BHTree<BODY_T>[] spare = spareChildren;
+		spareChildren = null;
+		children = spare != null ? spare : new BHTree[8];
 		
 		for (int i = 0; i < 8; i++){
 			int child = i;
@@ -232,8 +268,12 @@ public abstract class BHTree<BODY_T extends Body> {
 				tempMax.z = cellMax.z;
 			}
 			
-			BHTree<BODY_T> childTree = newNode(tempMin, tempMax);
-			children[i] = childTree;
+			if (spare != null){
+				children[i].clear(tempMin, tempMax);
+			}
+			else {
+				children[i] = newNode(tempMin, tempMax);
+			}
 		}
 	}
 	
@@ -0,0 +1,131 @@
+package com.htssoft.sploosh.space.bh;
+
+import com.htssoft.sploosh.MultipoleVorton;
+import com.htssoft.sploosh.SimpleVorton;
+import com.htssoft.sploosh.Vorton;
+import com.htssoft.sploosh.space.InfluenceBuffer;
+import com.jme3.math.Vector3f;
+
+/**
+ * A Barnes-Hut tree of vortons.
+ * 
+ * Each node aggregates the vortons added through it into a super vorton:
+ * the summed vorticity, placed at the vorticity-magnitude weighted centroid.
+ * Queries open a node when its width over the distance to that centroid
+ * exceeds theta, so a smaller theta is more accurate and slower.
+ * 
+ * With a multipole order above 0, the super vortons also carry dipole (and
+ * quadrupole) moments, which allows a larger theta for the same accuracy.
+ * */
+public class VortonBHTree extends BHTree<Vorton> {
+	protected final int multipoleOrder;
+	protected final SimpleVorton superVorton;
+	protected float normVortMag = 0f;
+	
+	public VortonBHTree(Vector3f min, Vector3f max){
+		this(min, max, 0);
+	}
+	
+	/**
+	 * @param multipoleOrder 0 for plain super vortons, 1 for dipoles, 2 for quadrupoles.
+	 * */
+	public VortonBHTree(Vector3f min, Vector3f max, int multipoleOrder){
+		super(min, max);
+		this.multipoleOrder = multipoleOrder;
+		superVorton = multipoleOrder > 0 ? new MultipoleVorton(multipoleOrder) : new SimpleVorton();
+	}
+	
+	@Override
+	public BHTree<Vorton> newNode(Vector3f min, Vector3f max){
+		return new VortonBHTree(min, max, multipoleOrder);
+	}
+	
+	@Override
+	public void integrateBody(Vorton body){
+		Vector3f vort = body.getVort();
+		superVorton.getVort().addLocal(vort);
+		float vortMag = vort.length();
+		Vector3f pos = body.getPosition();
+		superVorton.getPosition().addLocal(pos.x * vortMag, pos.y * vortMag, pos.z * vortMag); //divided by normVortMag in doUpdate
+		normVortMag += vortMag;
+		if (multipoleOrder > 0){ //moved to the centroid in doUpdate
+			((MultipoleVorton) superVorton).accumulate(pos, vort, cellMin);
+		}
+	}
+	
+	@Override
+	public void resetIntegration(){
+		superVorton.getPosition().zero();
+		superVorton.getVort().zero();
+		normVortMag = 0f;
+		if (multipoleOrder > 0){
+			((MultipoleVorton) superVorton).clearMoments();
+		}
+	}
+	
+	@Override
+	public void doUpdate(){
+		Vector3f superPos = superVorton.getPosition();
+		if (normVortMag != 0){
+			superPos.divideLocal(normVortMag);
+		}
+		else { //no vorticity to weight by, so use the middle of the cell.
+			superPos.set(splitPoint);
+		}
+		
+		if (multipoleOrder > 0){
+			((MultipoleVorton) superVorton).translate(cellMin.x - superPos.x, cellMin.y - superPos.y, cellMin.z - superPos.z);
+		}
+	}
+	
+	/**
+	 * Same as {@link #getInfluential}, into a reusable buffer and leaving out the
+	 * vorton with the given index.
+	 * */
+	public void getInfluences(Vector3f pos, float theta, int exclude, InfluenceBuffer store){
+		if (!isTouched()){
+			return;
+		}
+		
+		float d = superVorton.getPosition().distance(pos);
+		float s_d = areaWidth / d;
+		if (Float.isInfinite(s_d) || s_d > theta){ //close enough to recurse
+			if (isLeaf()){
+				if (hasBody()){
+					addBody(body, exclude, store);
+					for (int i = 0; i < overflowList.size(); i++){
+						addBody(overflowList.get(i), exclude, store);
+					}
+				}
+				return;
+			}
+			
+			for (int i = 0; i < children.length; i++){
+				((VortonBHTree) children[i]).getInfluences(pos, theta, exclude, store);
+			}
+		}
+		else { //just use the super body.
+			store.addAggregate(superVorton);
+		}
+	}
+	
+	protected static void addBody(Vorton v, int exclude, InfluenceBuffer store){
+		int index = v.getIndex();
+		if (index < 0){
+			store.addAggregate(v);
+		}
+		else if (index != exclude){
+			store.addIndex(index);
+		}
+	}
+	
+	@Override
+	public Vorton getSuperBody(){
+		return superVorton;
+	}
+	
+	@Override
+	public Vector3f getSuperPosition(){
+		return superVorton.getPosition();
+	}
+}
@@ -0,0 +1,480 @@
+package com.htssoft.sploosh.space.fmm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.htssoft.sploosh.TracerMath;
+import com.htssoft.sploosh.VortonSpace;
+import com.htssoft.sploosh.threading.RangeTask;
+import com.htssoft.sploosh.threading.SharedWorkers;
+import com.htssoft.sploosh.threading.WorkRange;
+import com.jme3.math.Vector3f;
+
+/**
+ * A fast multipole velocity engine for vortons.
+ *
+ * The vortons are binned into a uniform cube of leaf cells, with a dense grid
+ * per level above that. Each cell carries a multipole (summed vorticity plus
+ * dipole moments about the cell center), aggregated upward from the leaves.
+ * On the way back down, every cell gets a local expansion of the far field
+ * about its center (velocity plus its Jacobian): the parent's expansion moved to
+ * the child's center, plus the multipoles of the cells in its interaction list
+ * (children of the parent's neighbours that aren't neighbours themselves).
+ *
+ * The velocity at a point is then the direct sum over the 27 leaves around it
+ * plus one local expansion evaluation.
+ *
+ * Leaves are never narrower than {@link VortonSpace#VORTON_RADIUS}, so far field
+ * interactions are always outside of the vorton core and the plain 1/r^3 law
+ * that the expansions are built on holds.
+ * */
+public class VortonFMM implements RangeTask {
+	/**
+	 * Below this many cells in a level, translations are done on the calling thread.
+	 * */
+	protected static final int PARALLEL_CELL_THRESHOLD = 512;
+
+	protected int maxLevel = 5;
+	protected int leafLevel;
+
+	protected float[] positions;
+	protected float[] vorticities;
+	protected int nVortons;
+
+	protected final Vector3f rootMin = new Vector3f();
+	protected float rootWidth;
+
+	/**
+	 * Per level: summed vorticity (3 per cell), dipole (9 per cell, [l][b] = sum w_l d_b),
+	 * local expansion (3 velocity then 9 Jacobian, [k][j] = du_k/dx_j) and vorton count.
+	 * */
+	protected float[][] monopoles = new float[0][];
+	protected float[][] dipoles = new float[0][];
+	protected float[][] locals = new float[0][];
+	protected int[][] counts = new int[0][];
+
+	/**
+	 * Vorton indices sorted by leaf; leaf c holds leafItems[leafStart[c]..leafStart[c + 1]).
+	 * */
+	protected int[] leafStart = new int[0];
+	protected int[] leafItems = new int[0];
+
+	/**
+	 * The level being translated by the worker threads.
+	 * */
+	protected int translateLevel;
+
+	public VortonFMM(){
+
+	}
+
+	/**
+	 * Set the deepest level of subdivision allowed. Leaves may be shallower than
+	 * this if they would otherwise be narrower than the vorton radius.
+	 * */
+	public void setMaxLevel(int maxLevel){
+		this.maxLevel = maxLevel;
+	}
+
+	public int getMaxLevel(){
+		return maxLevel;
+	}
+
+	/**
+	 * The level of the leaves in the last build.
+	 * */
+	public int getLeafLevel(){
+		return leafLevel;
+	}
+
+	/**
+	 * Build the expansions for the given vortons.
+	 *
+	 * The buffers are kept (not copied) for the near field, so they must not be
+	 * written to until the next build.
+	 *
+	 * @param positions flat xyz vorton positions.
+	 * @param vorticities flat xyz vorton vorticities.
+	 * @param n how many vortons there are.
+	 * @param min the lower bound of all vorton positions.
+	 * @param max the upper bound of all vorton positions.
+	 * */
+	public void build(float[] positions, float[] vorticities, int n, Vector3f min, Vector3f max){
+		this.positions = positions;
+		this.vorticities = vorticities;
+		this.nVortons = n;
+
+		float width = Math.max(Math.max(max.x - min.x, max.y - min.y), max.z - min.z);
+		rootWidth = Math.max(width * 1.0001f, VortonSpace.VORTON_RADIUS);
+		rootMin.set(min.x + max.x, min.y + max.y, min.z + max.z).multLocal(0.5f).subtractLocal(rootWidth * 0.5f, rootWidth * 0.5f, rootWidth * 0.5f);
+
+		leafLevel = 0;
+		while (leafLevel < maxLevel && rootWidth / (1 << (leafLevel + 1)) >= VortonSpace.VORTON_RADIUS){
+			leafLevel++;
+		}
+
+		ensureCapacity();
+		binVortons();
+		computeLeafMultipoles();
+		for (int level = leafLevel - 1; level >= 0; level--){
+			aggregate(level);
+		}
+
+		for (int level = 0; level <= leafLevel; level++){
+			translateLevel = level;
+			int nCells = cellsAt(level);
+			if (nCells >= PARALLEL_CELL_THRESHOLD && SharedWorkers.nThreads() > 1){
+				List<WorkRange> ranges = WorkRange.divideWork(nCells, null, this, SharedWorkers.nThreads());
+				SharedWorkers.run(ranges);
+			}
+			else {
+				translate(0, nCells - 1);
+			}
+		}
+	}
+
+	protected static int cellsAt(int level){
+		int dim = 1 << level;
+		return dim * dim * dim;
+	}
+
+	protected void ensureCapacity(){
+		if (monopoles.length < leafLevel + 1){
+			float[][] m = new float[leafLevel + 1][];
+			float[][] d = new float[leafLevel + 1][];
+			float[][] l = new float[leafLevel + 1][];
+			int[][] c = new int[leafLevel + 1][];
+			System.arraycopy(monopoles, 0, m, 0, monopoles.length);
+			System.arraycopy(dipoles, 0, d, 0, dipoles.length);
+			System.arraycopy(locals, 0, l, 0, locals.length);
+			System.arraycopy(counts, 0, c, 0, counts.length);
+			for (int level = monopoles.length; level <= leafLevel; level++){
+				int nCells = cellsAt(level);
+				m[level] = new float[nCells * 3];
+				d[level] = new float[nCells * 9];
+				l[level] = new float[nCells * 12];
+				c[level] = new int[nCells];
+			}
+			monopoles = m;
+			dipoles = d;
+			locals = l;
+			counts = c;
+		}
+
+		if (leafStart.length < cellsAt(leafLevel) + 1){
+			leafStart = new int[cellsAt(leafLevel) + 1];
+		}
+		if (leafItems.length < nVortons){
+			leafItems = new int[nVortons];
+		}
+	}
+
+	/**
+	 * Which cell along one axis does the coordinate fall in?
+	 * */
+	protected int cellCoord(float coord, float min, int dim){
+		int c = (int) ((coord - min) * dim / rootWidth);
+		if (c < 0){
+			return 0;
+		}
+		if (c >= dim){
+			return dim - 1;
+		}
+		return c;
+	}
+
+	protected int leafOf(int vorton){
+		int dim = 1 << leafLevel;
+		int o = vorton * 3;
+		int x = cellCoord(positions[o], rootMin.x, dim);
+		int y = cellCoord(positions[o + 1], rootMin.y, dim);
+		int z = cellCoord(positions[o + 2], rootMin.z, dim);
+		return x + dim * (y + dim * z);
+	}
+
+	/**
+	 * Counting sort of the vortons into leaves.
+	 * */
+	protected void binVortons(){
+		int nLeaves = cellsAt(leafLevel);
+		int[] leafCounts = counts[leafLevel];
+		for (int c = 0; c < nLeaves; c++){
+			leafCounts[c] = 0;
+		}
+		for (int i = 0; i < nVortons; i++){
+			leafCounts[leafOf(i)]++;
+		}
+
+		int sum = 0;
+		for (int c = 0; c < nLeaves; c++){
+			leafStart[c] = sum;
+			sum += leafCounts[c];
+		}
+		leafStart[nLeaves] = sum;
+
+		for (int i = 0; i < nVortons; i++){
+			int leaf = leafOf(i);
+			leafItems[leafStart[leaf]++] = i;
+		}
+		for (int c = nLeaves; c > 0; c--){ //the scatter advanced every start to the next leaf's start
+			leafStart[c] = leafStart[c - 1];
+		}
+		leafStart[0] = 0;
+	}
+
+	protected void computeLeafMultipoles(){
+		int dim = 1 << leafLevel;
+		float cellWidth = rootWidth / dim;
+		float[] mono = monopoles[leafLevel];
+		float[] dip = dipoles[leafLevel];
+
+		for (int z = 0, c = 0; z < dim; z++){
+			float cz = rootMin.z + (z + 0.5f) * cellWidth;
+			for (int y = 0; y < dim; y++){
+				float cy = rootMin.y + (y + 0.5f) * cellWidth;
+				for (int x = 0; x < dim; x++, c++){
+					float cx = rootMin.x + (x + 0.5f) * cellWidth;
+					float mx = 0f, my = 0f, mz = 0f;
+					float d0 = 0f, d1 = 0f, d2 = 0f, d3 = 0f, d4 = 0f, d5 = 0f, d6 = 0f, d7 = 0f, d8 = 0f;
+					for (int k = leafStart[c]; k < leafStart[c + 1]; k++){
+						int o = leafItems[k] * 3;
+						float wx = vorticities[o], wy = vorticities[o + 1], wz = vorticities[o + 2];
+						float dx = positions[o] - cx, dy = positions[o + 1] - cy, dz = positions[o + 2] - cz;
+						mx += wx; my += wy; mz += wz;
+						d0 += wx * dx; d1 += wx * dy; d2 += wx * dz;
+						d3 += wy * dx; d4 += wy * dy; d5 += wy * dz;
+						d6 += wz * dx; d7 += wz * dy; d8 += wz * dz;
+					}
+					int m = c * 3, d = c * 9;
+					mono[m] = mx; mono[m + 1] = my; mono[m + 2] = mz;
+					dip[d] = d0; dip[d + 1] = d1; dip[d + 2] = d2;
+					dip[d + 3] = d3; dip[d + 4] = d4; dip[d + 5] = d5;
+					dip[d + 6] = d6; dip[d + 7] = d7; dip[d + 8] = d8;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sum the multipoles of the children of every cell in the level, moved to the cell's center.
+	 * */
+	protected void aggregate(int level){
+		int dim = 1 << level;
+		int childDim = dim << 1;
+		float quarter = rootWidth / childDim * 0.5f;
+		float[] mono = monopoles[level], dip = dipoles[level];
+		float[] cMono = monopoles[level + 1], cDip = dipoles[level + 1];
+		int[] count = counts[level], cCount = counts[level + 1];
+
+		for (int z = 0, c = 0; z < dim; z++){
+			for (int y = 0; y < dim; y++){
+				for (int x = 0; x < dim; x++, c++){
+					int m = c * 3, d = c * 9;
+					for (int i = 0; i < 3; i++){
+						mono[m + i] = 0f;
+					}
+					for (int i = 0; i < 9; i++){
+						dip[d + i] = 0f;
+					}
+					count[c] = 0;
+
+					for (int child = 0; child < 8; child++){
+						int ox = child & 1, oy = (child >> 1) & 1, oz = (child >> 2) & 1;
+						int cc = (2 * x + ox) + childDim * ((2 * y + oy) + childDim * (2 * z + oz));
+						if (cCount[cc] == 0){
+							continue;
+						}
+						count[c] += cCount[cc];
+
+						float gx = ox == 0 ? -quarter : quarter;
+						float gy = oy == 0 ? -quarter : quarter;
+						float gz = oz == 0 ? -quarter : quarter;
+						int cm = cc * 3, cd = cc * 9;
+						for (int l = 0; l < 3; l++){
+							float w = cMono[cm + l];
+							mono[m + l] += w;
+							dip[d + l * 3] += cDip[cd + l * 3] + w * gx;
+							dip[d + l * 3 + 1] += cDip[cd + l * 3 + 1] + w * gy;
+							dip[d + l * 3 + 2] += cDip[cd + l * 3 + 2] + w * gz;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the local expansions of cells first..last of the current translate level.
+	 * */
+	protected void translate(int first, int last){
+		int level = translateLevel;
+		int dim = 1 << level;
+		float cellWidth = rootWidth / dim;
+		float[] local = locals[level];
+		float[] mono = monopoles[level], dip = dipoles[level];
+		int[] count = counts[level];
+
+		for (int c = first; c <= last; c++){
+			int x = c % dim, y = (c / dim) % dim, z = c / (dim * dim);
+			int o = c * 12;
+
+			if (level <= 2){ //nothing at level 0 or 1 is well separated, so there's nothing to inherit.
+				for (int i = 0; i < 12; i++){
+					local[o + i] = 0f;
+				}
+			}
+			else { //move the parent's expansion to our center.
+				float[] pLocal = locals[level - 1];
+				int pDim = dim >> 1;
+				int po = ((x >> 1) + pDim * ((y >> 1) + pDim * (z >> 1))) * 12;
+				float quarter = cellWidth * 0.5f;
+				float hx = (x & 1) == 0 ? -quarter : quarter;
+				float hy = (y & 1) == 0 ? -quarter : quarter;
+				float hz = (z & 1) == 0 ? -quarter : quarter;
+				for (int k = 0; k < 3; k++){
+					int j = po + 3 + k * 3;
+					local[o + k] = pLocal[po + k] + pLocal[j] * hx + pLocal[j + 1] * hy + pLocal[j + 2] * hz;
+				}
+				for (int i = 3; i < 12; i++){
+					local[o + i] = pLocal[po + i];
+				}
+			}
+
+			if (level < 2){
+				continue;
+			}
+
+			//interaction list: children of the parent's neighbours that aren't our neighbours.
+			int px = x >> 1, py = y >> 1, pz = z >> 1;
+			int x0 = Math.max(0, 2 * px - 2), x1 = Math.min(dim - 1, 2 * px + 3);
+			int y0 = Math.max(0, 2 * py - 2), y1 = Math.min(dim - 1, 2 * py + 3);
+			int z0 = Math.max(0, 2 * pz - 2), z1 = Math.min(dim - 1, 2 * pz + 3);
+			for (int sz = z0; sz <= z1; sz++){
+				for (int sy = y0; sy <= y1; sy++){
+					for (int sx = x0; sx <= x1; sx++){
+						if (Math.abs(sx - x) <= 1 && Math.abs(sy - y) <= 1 && Math.abs(sz - z) <= 1){
+							continue;
+						}
+						int s = sx + dim * (sy + dim * sz);
+						if (count[s] == 0){
+							continue;
+						}
+						addFarField(mono, dip, s, (x - sx) * cellWidth, (y - sy) * cellWidth, (z - sz) * cellWidth, local, o);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the velocity and velocity Jacobian due to multipole s at offset (rx, ry, rz)
+	 * from its center to out[o..o + 12).
+	 * */
+	protected static void addFarField(float[] mono, float[] dip, int s, float rx, float ry, float rz, float[] out, int o){
+		int m = s * 3;
+		TracerMath.addMultipoleVelocityAndGradient(mono[m], mono[m + 1], mono[m + 2], dip, s * 9, rx, ry, rz, out, o);
+	}
+
+	/**
+	 * Compute the field velocity at the given position.
+	 *
+	 * This is safe to call from many threads at once, between builds.
+	 * */
+	public void computeVelocity(Vector3f pos, Vector3f store){
+		computeVelocity(pos, null, store);
+	}
+
+	/**
+	 * Compute the field velocity at the given position, using the given
+	 * 12 floats of scratch for points outside of the root (a velocity and
+	 * gradient buffer will do). If scratch is null, it is allocated as needed.
+	 * */
+	public void computeVelocity(Vector3f pos, float[] scratch, Vector3f store){
+		store.zero();
+		float lx = pos.x - rootMin.x, ly = pos.y - rootMin.y, lz = pos.z - rootMin.z;
+		if (lx < 0 || ly < 0 || lz < 0 || lx > rootWidth || ly > rootWidth || lz > rootWidth){
+			if (scratch == null){
+				scratch = new float[12];
+			}
+			else {
+				Arrays.fill(scratch, 0, 12, 0f);
+			}
+			addOutsideField(pos, 0, 0, 0, 0, scratch, store);
+			store.addLocal(scratch[0], scratch[1], scratch[2]);
+			store.multLocal(VortonSpace.ONE_OVER_4_PI);
+			return;
+		}
+
+		int dim = 1 << leafLevel;
+		float cellWidth = rootWidth / dim;
+		int x = cellCoord(pos.x, rootMin.x, dim);
+		int y = cellCoord(pos.y, rootMin.y, dim);
+		int z = cellCoord(pos.z, rootMin.z, dim);
+
+		for (int nz = Math.max(0, z - 1); nz <= Math.min(dim - 1, z + 1); nz++){
+			for (int ny = Math.max(0, y - 1); ny <= Math.min(dim - 1, y + 1); ny++){
+				for (int nx = Math.max(0, x - 1); nx <= Math.min(dim - 1, x + 1); nx++){
+					addLeafVortons(nx + dim * (ny + dim * nz), pos, store);
+				}
+			}
+		}
+
+		float[] local = locals[leafLevel];
+		int o = (x + dim * (y + dim * z)) * 12;
+		float hx = pos.x - (rootMin.x + (x + 0.5f) * cellWidth);
+		float hy = pos.y - (rootMin.y + (y + 0.5f) * cellWidth);
+		float hz = pos.z - (rootMin.z + (z + 0.5f) * cellWidth);
+		store.x += local[o] + local[o + 3] * hx + local[o + 4] * hy + local[o + 5] * hz;
+		store.y += local[o + 1] + local[o + 6] * hx + local[o + 7] * hy + local[o + 8] * hz;
+		store.z += local[o + 2] + local[o + 9] * hx + local[o + 10] * hy + local[o + 11] * hz;
+		store.multLocal(VortonSpace.ONE_OVER_4_PI);
+	}
+
+	protected void addLeafVortons(int leaf, Vector3f pos, Vector3f store){
+		for (int k = leafStart[leaf]; k < leafStart[leaf + 1]; k++){
+			TracerMath.computeVelocityContribution(pos, positions, vorticities, leafItems[k] * 3, store);
+		}
+	}
+
+	/**
+	 * For positions outside of the root, there are no local expansions, so walk
+	 * the levels Barnes-Hut style: use a cell's multipole when the position is at
+	 * least two cell widths away from it, and open it otherwise.
+	 *
+	 * Multipole velocities go in scratch[0..3), direct ones in store.
+	 * */
+	protected void addOutsideField(Vector3f pos, int level, int x, int y, int z, float[] scratch, Vector3f store){
+		int dim = 1 << level;
+		int c = x + dim * (y + dim * z);
+		if (counts[level][c] == 0){
+			return;
+		}
+
+		float cellWidth = rootWidth / dim;
+		float minX = rootMin.x + x * cellWidth, minY = rootMin.y + y * cellWidth, minZ = rootMin.z + z * cellWidth;
+		float dx = Math.max(0f, Math.max(minX - pos.x, pos.x - (minX + cellWidth)));
+		float dy = Math.max(0f, Math.max(minY - pos.y, pos.y - (minY + cellWidth)));
+		float dz = Math.max(0f, Math.max(minZ - pos.z, pos.z - (minZ + cellWidth)));
+		if (dx * dx + dy * dy + dz * dz >= 4f * cellWidth * cellWidth){
+			float half = cellWidth * 0.5f;
+			addFarField(monopoles[level], dipoles[level], c, pos.x - (minX + half), pos.y - (minY + half), pos.z - (minZ + half), scratch, 0);
+			return;
+		}
+
+		if (level == leafLevel){
+			addLeafVortons(c, pos, store);
+			return;
+		}
+
+		for (int child = 0; child < 8; child++){
+			addOutsideField(pos, level + 1, 2 * x + (child & 1), 2 * y + ((child >> 1) & 1), 2 * z + ((child >> 2) & 1), scratch, store);
+		}
+	}
+
+	/**
+	 * Compute a range of local expansions in the level being translated, on a shared worker.
+	 * */
+	public void processRange(WorkRange range){
+		translate(range.first, range.last);
+	}
+}
@@ -0,0 +1,466 @@
+package com.htssoft.sploosh.space.vic;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.htssoft.sploosh.MultipoleVorton;
+import com.htssoft.sploosh.TracerMath;
+import com.htssoft.sploosh.VortonSpace;
+import com.htssoft.sploosh.space.UniformGrid;
+import com.htssoft.sploosh.threading.RangeTask;
+import com.htssoft.sploosh.threading.SharedWorkers;
+import com.htssoft.sploosh.threading.WorkRange;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+/**
+ * A vortex-in-cell velocity engine for vortons.
+ *
+ * Each build splats the vortons' vorticity (times their volume) onto an
+ * N^3 lattice with cloud-in-cell weights. It then solves the vector Poisson
+ * equation laplacian(psi) = -omega for the vector potential, and takes
+ * u = curl(psi) with central differences at the lattice nodes. Velocities
+ * anywhere inside the lattice are then a trilinear interpolation, so the
+ * cost per step is O(N^3 log N) no matter how many vortons there are.
+ *
+ * The Poisson equation is solved in free space (no periodic images) by
+ * convolving with the Green's function 1 / (4 pi r) on a lattice doubled in
+ * every direction (Hockney's method), using FFTs. The Green's function is
+ * softened by the vorton radius, standing in for the mollified core of the
+ * direct sum. Since it is real and even, psi_x and psi_y share one complex
+ * transform (as real and imaginary parts), and psi_z gets the other.
+ *
+ * Points outside of the lattice get the far field of all vortons, as one
+ * dipole expansion.
+ * */
+public class VortonVIC implements RangeTask {
+	/**
+	 * FFT line scratch, per thread working on a solve.
+	 * */
+	protected static final ThreadLocal<float[][]> lineScratch = new ThreadLocal<float[][]>(){
+		protected float[][] initialValue(){
+			return new float[2][0];
+		}
+	};
+
+	protected static final float VOLUME = VortonSpace.FOUR_THIRDS_PI * VortonSpace.VORTON_RADIUS_CUBE;
+
+	/**
+	 * Memory grows as the cube of this (five float arrays of (2N)^3).
+	 * */
+	public static final int MAX_GRID_SIZE = 64;
+
+	protected static final int PHASE_GREEN = 0;
+	protected static final int PHASE_FFT = 1;
+	protected static final int PHASE_MULTIPLY = 2;
+	protected static final int PHASE_CURL = 3;
+
+	/**
+	 * Lattice nodes per axis, and the FFT size (twice that).
+	 * */
+	protected int gridSize = 32;
+	protected int fftSize;
+
+	protected final Vector3f origin = new Vector3f();
+	protected float spacing;
+	protected float greenSpacing;
+
+	/**
+	 * The doubled lattice, x fastest: vorticity in, potential out.
+	 * a holds x + iy, b holds z.
+	 * */
+	protected float[] aRe = new float[0], aIm = new float[0];
+	protected float[] bRe = new float[0], bIm = new float[0];
+	/**
+	 * The transformed Green's function (which is real), scaled for the inverse transform.
+	 * */
+	protected float[] green = new float[0];
+
+	protected float[] cosTable = new float[0], sinTable = new float[0];
+	protected int[] bitReverse = new int[0];
+
+	protected final UniformGrid velocities = new UniformGrid();
+	protected final MultipoleVorton farField = new MultipoleVorton(1);
+	protected final Vector3f scratchPos = new Vector3f();
+	protected final Vector3f scratchVort = new Vector3f();
+
+	/**
+	 * What the worker threads are doing.
+	 * */
+	protected int phase;
+	protected float[] passRe, passIm;
+	protected int passAxis;
+	protected boolean passInverse;
+	protected boolean passPrune;
+
+	public VortonVIC(){
+
+	}
+
+	/**
+	 * Set the number of lattice nodes per axis. It is rounded up to a power of two,
+	 * and clamped to {@link #MAX_GRID_SIZE}.
+	 * */
+	public void setGridSize(int gridSize){
+		int n = 8;
+		while (n < gridSize && n < MAX_GRID_SIZE){
+			n <<= 1;
+		}
+		this.gridSize = n;
+	}
+
+	public int getGridSize(){
+		return gridSize;
+	}
+
+	/**
+	 * The distance between lattice nodes in the last build.
+	 * */
+	public float getSpacing(){
+		return spacing;
+	}
+
+	/**
+	 * Build the velocity lattice for the given vortons.
+	 *
+	 * @param positions flat xyz vorton positions.
+	 * @param vorticities flat xyz vorton vorticities.
+	 * @param n how many vortons there are.
+	 * @param min the lower bound of all vorton positions.
+	 * @param max the upper bound of all vorton positions.
+	 * */
+	public void build(float[] positions, float[] vorticities, int n, Vector3f min, Vector3f max){
+		ensureCapacity();
+		layout(min, max);
+
+		if (spacing != greenSpacing){
+			runPhase(PHASE_GREEN, fftSize);
+			transform(aRe, aIm, false, false);
+			float scale = 1f / ((float) fftSize * fftSize * fftSize);
+			for (int i = 0; i < green.length; i++){
+				green[i] = aRe[i] * scale;
+			}
+			greenSpacing = spacing;
+		}
+
+		splat(positions, vorticities, n, min, max);
+		transform(aRe, aIm, false, true);
+		transform(bRe, bIm, false, true);
+		runPhase(PHASE_MULTIPLY, fftSize);
+		transform(aRe, aIm, true, true);
+		transform(bRe, bIm, true, true);
+		runPhase(PHASE_CURL, gridSize);
+	}
+
+	protected void ensureCapacity(){
+		int m = gridSize * 2;
+		if (fftSize == m){
+			return;
+		}
+
+		fftSize = m;
+		int n = m * m * m;
+		aRe = new float[n];
+		aIm = new float[n];
+		bRe = new float[n];
+		bIm = new float[n];
+		green = new float[n];
+		greenSpacing = 0f;
+
+		cosTable = new float[m / 2];
+		sinTable = new float[m / 2];
+		for (int k = 0; k < m / 2; k++){
+			cosTable[k] = (float) StrictMath.cos(2.0 * Math.PI * k / m);
+			sinTable[k] = (float) StrictMath.sin(2.0 * Math.PI * k / m);
+		}
+		int bits = Integer.numberOfTrailingZeros(m);
+		bitReverse = new int[m];
+		for (int i = 0; i < m; i++){
+			bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * Pick the spacing and origin. The spacing is kept from the last build if
+	 * the vortons still fit and aren't much smaller, so the Green's function
+	 * doesn't have to be transformed again.
+	 * */
+	protected void layout(Vector3f min, Vector3f max){
+		float width = Math.max(Math.max(max.x - min.x, max.y - min.y), max.z - min.z);
+		float needed = Math.max(width, VortonSpace.VORTON_RADIUS) / (gridSize - 3); //a cell of margin on each side, and one for the splat
+		if (needed > spacing || needed < spacing * 0.5f){
+			spacing = needed * 1.25f;
+		}
+
+		float half = (gridSize - 1) * spacing * 0.5f;
+		origin.set(min.x + max.x, min.y + max.y, min.z + max.z).multLocal(0.5f).subtractLocal(half, half, half);
+		velocities.reset(origin, spacing, gridSize, gridSize, gridSize);
+	}
+
+	/**
+	 * Cloud-in-cell splat of vorticity times volume onto the lattice, and
+	 * the far field expansion.
+	 * */
+	protected void splat(float[] positions, float[] vorticities, int n, Vector3f min, Vector3f max){
+		Arrays.fill(aRe, 0f);
+		Arrays.fill(aIm, 0f);
+		Arrays.fill(bRe, 0f);
+		Arrays.fill(bIm, 0f);
+
+		Vector3f center = farField.getPosition();
+		center.set(min).addLocal(max).multLocal(0.5f);
+		farField.getVort().zero();
+		farField.clearMoments();
+
+		int m = fftSize;
+		float inv = 1f / spacing;
+		for (int i = 0; i < n; i++){
+			int o = i * 3;
+			float wx = vorticities[o], wy = vorticities[o + 1], wz = vorticities[o + 2];
+			scratchPos.set(positions[o], positions[o + 1], positions[o + 2]);
+			scratchVort.set(wx, wy, wz);
+			farField.getVort().addLocal(scratchVort);
+			farField.accumulate(scratchPos, scratchVort, center);
+
+			float fx = (positions[o] - origin.x) * inv;
+			float fy = (positions[o + 1] - origin.y) * inv;
+			float fz = (positions[o + 2] - origin.z) * inv;
+			int x = (int) fx, y = (int) fy, z = (int) fz;
+			float tx = fx - x, ty = fy - y, tz = fz - z;
+			wx *= VOLUME;
+			wy *= VOLUME;
+			wz *= VOLUME;
+			for (int c = 0; c < 8; c++){
+				int cx = c & 1, cy = (c >> 1) & 1, cz = (c >> 2) & 1;
+				float weight = (cx == 0 ? 1f - tx : tx) * (cy == 0 ? 1f - ty : ty) * (cz == 0 ? 1f - tz : tz);
+				int node = ((z + cz) * m + (y + cy)) * m + (x + cx);
+				aRe[node] += wx * weight;
+				aIm[node] += wy * weight;
+				bRe[node] += wz * weight;
+			}
+		}
+	}
+
+	/**
+	 * 3D FFT of the doubled lattice, one axis at a time.
+	 *
+	 * When pruning, the forward transform skips lines that are still all zero
+	 * (vorticity only covers an eighth of the doubled lattice), and the inverse
+	 * runs the axes in reverse order so it can skip lines that the curl never reads.
+	 * */
+	protected void transform(float[] re, float[] im, boolean inverse, boolean prune){
+		passRe = re;
+		passIm = im;
+		passInverse = inverse;
+		passPrune = prune;
+		for (int i = 0; i < 3; i++){
+			passAxis = inverse ? 2 - i : i;
+			runPhase(PHASE_FFT, fftSize * fftSize);
+		}
+	}
+
+	/**
+	 * Whether a line at lattice coordinate c, on an axis not yet transformed
+	 * (forward) or already transformed back (inverse), needs to be done.
+	 * */
+	protected boolean isLineNeeded(int c){
+		if (!passPrune){
+			return true;
+		}
+		if (passInverse){
+			return c <= gridSize || c == fftSize - 1;
+		}
+		return c < gridSize;
+	}
+
+	protected void runPhase(int phase, int nItems){
+		this.phase = phase;
+		if (SharedWorkers.nThreads() > 1){
+			List<WorkRange> ranges = WorkRange.divideWork(nItems, null, this, SharedWorkers.nThreads());
+			SharedWorkers.run(ranges);
+		}
+		else {
+			processLines(0, nItems - 1);
+		}
+	}
+
+	/**
+	 * Run a range of lines or slices in the current phase of the solve, on a shared worker.
+	 * */
+	public void processRange(WorkRange range){
+		processLines(range.first, range.last);
+	}
+
+	protected void processLines(int first, int last){
+		float[][] lines = lineScratch.get();
+		if (lines[0].length < fftSize){
+			lines[0] = new float[fftSize];
+			lines[1] = new float[fftSize];
+		}
+		process(first, last, lines[0], lines[1]);
+	}
+
+	protected void process(int first, int last, float[] re, float[] im){
+		switch (phase){
+		case PHASE_GREEN:
+			fillGreen(first, last);
+			break;
+		case PHASE_FFT:
+			transformLines(first, last, re, im);
+			break;
+		case PHASE_MULTIPLY:
+			multiply(first, last);
+			break;
+		case PHASE_CURL:
+			curl(first, last);
+			break;
+		}
+	}
+
+	/**
+	 * Sample the softened Green's function into slices first..last of a,
+	 * with distances wrapping around the doubled lattice.
+	 * */
+	protected void fillGreen(int first, int last){
+		int m = fftSize;
+		float soft = VortonSpace.VORTON_RADIUS_SQ;
+		for (int z = first; z <= last; z++){
+			float dz = (z <= gridSize ? z : z - m) * spacing;
+			for (int y = 0; y < m; y++){
+				float dy = (y <= gridSize ? y : y - m) * spacing;
+				int row = (z * m + y) * m;
+				for (int x = 0; x < m; x++){
+					float dx = (x <= gridSize ? x : x - m) * spacing;
+					aRe[row + x] = VortonSpace.ONE_OVER_4_PI / FastMath.sqrt(dx * dx + dy * dy + dz * dz + soft);
+					aIm[row + x] = 0f;
+				}
+			}
+		}
+	}
+
+	/**
+	 * FFT lines first..last along the current axis.
+	 * */
+	protected void transformLines(int first, int last, float[] lineRe, float[] lineIm){
+		int m = fftSize;
+		int stride = passAxis == 0 ? 1 : (passAxis == 1 ? m : m * m);
+		for (int line = first; line <= last; line++){
+			int base;
+			int slow = line / m, fast = line % m;
+			if (passAxis == 0){ //lines along x, at y = fast, z = slow
+				if (!isLineNeeded(slow) || !isLineNeeded(fast)){
+					continue;
+				}
+				base = line * m;
+			}
+			else if (passAxis == 1){ //lines along y, at x = fast, z = slow
+				if (!isLineNeeded(slow)){
+					continue;
+				}
+				base = slow * m * m + fast;
+			}
+			else { //lines along z, at x = fast, y = slow
+				base = line;
+			}
+
+			for (int i = 0, o = base; i < m; i++, o += stride){
+				lineRe[i] = passRe[o];
+				lineIm[i] = passIm[o];
+			}
+			fft(lineRe, lineIm, passInverse);
+			for (int i = 0, o = base; i < m; i++, o += stride){
+				passRe[o] = lineRe[i];
+				passIm[o] = lineIm[i];
+			}
+		}
+	}
+
+	/**
+	 * In-place radix-2 FFT of the first fftSize entries. The inverse is not scaled.
+	 * */
+	protected void fft(float[] re, float[] im, boolean inverse){
+		int n = fftSize;
+		for (int i = 0; i < n; i++){
+			int j = bitReverse[i];
+			if (j > i){
+				float t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+
+		for (int len = 2; len <= n; len <<= 1){
+			int half = len >> 1;
+			int step = n / len;
+			for (int i = 0; i < n; i += len){
+				for (int k = 0; k < half; k++){
+					float c = cosTable[k * step];
+					float s = inverse ? sinTable[k * step] : -sinTable[k * step];
+					int a = i + k, b = a + half;
+					float tr = re[b] * c - im[b] * s;
+					float ti = re[b] * s + im[b] * c;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Multiply slices first..last of the transformed vorticity by the transformed Green's function.
+	 * */
+	protected void multiply(int first, int last){
+		int slice = fftSize * fftSize;
+		for (int i = first * slice; i < (last + 1) * slice; i++){
+			float g = green[i];
+			aRe[i] *= g;
+			aIm[i] *= g;
+			bRe[i] *= g;
+			bIm[i] *= g;
+		}
+	}
+
+	/**
+	 * Velocity at the lattice nodes in slices first..last, as the central difference curl
+	 * of the potential. Nodes just outside of the lattice hold valid potential too, so
+	 * the edges need no special treatment.
+	 * */
+	protected void curl(int first, int last){
+		int m = fftSize;
+		int n = gridSize;
+		float inv2h = 0.5f / spacing;
+		for (int z = first; z <= last; z++){
+			int zm = ((z + m - 1) % m) * m * m, zp = (z + 1) * m * m, zc = z * m * m;
+			for (int y = 0; y < n; y++){
+				int ym = ((y + m - 1) % m) * m, yp = (y + 1) * m, yc = y * m;
+				for (int x = 0; x < n; x++){
+					int xm = (x + m - 1) % m, xp = x + 1;
+					//d/dx, d/dy, d/dz of psi_x (aRe), psi_y (aIm), psi_z (bRe)
+					float dyPz = (bRe[zc + yp + x] - bRe[zc + ym + x]) * inv2h;
+					float dzPy = (aIm[zp + yc + x] - aIm[zm + yc + x]) * inv2h;
+					float dzPx = (aRe[zp + yc + x] - aRe[zm + yc + x]) * inv2h;
+					float dxPz = (bRe[zc + yc + xp] - bRe[zc + yc + xm]) * inv2h;
+					float dxPy = (aIm[zc + yc + xp] - aIm[zc + yc + xm]) * inv2h;
+					float dyPx = (aRe[zc + yp + x] - aRe[zc + ym + x]) * inv2h;
+					velocities.setVelocity((z * n + y) * n + x, dyPz - dzPy, dzPx - dxPz, dxPy - dyPx);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the field velocity at the given position.
+	 *
+	 * This is safe to call from many threads at once, between builds.
+	 * */
+	public void computeVelocity(Vector3f pos, Vector3f store){
+		if (velocities.sample(pos, store)){
+			return;
+		}
+
+		store.zero();
+		TracerMath.computeMultipoleContribution(pos, farField, store);
+		store.multLocal(VortonSpace.ONE_OVER_4_PI);
+	}
+}
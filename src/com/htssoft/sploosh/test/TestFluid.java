@@ -7,6 +7,7 @@ import com.htssoft.sploosh.affectors.BurstAffector;
 import com.htssoft.sploosh.presentation.FluidView;
 import com.htssoft.sploosh.presentation.FluidVortonView;
 import com.htssoft.sploosh.space.OTree;
+import com.htssoft.sploosh.space.VortonTree;
 import com.jme3.app.SimpleApplication;
 import com.jme3.asset.plugins.FileLocator;
 import com.jme3.input.KeyInput;
@@ -92,8 +93,13 @@ public class TestFluid extends SimpleApplication {
 	}
 	
 	protected void dumpTree(){
+		VortonTree tree = fluid.getLastTreeForDebug();
+		if (!(tree instanceof OTree)){
+			System.out.println("Only OTrees can be dumped.");
+			return;
+		}
 		System.out.println("Dumping tree.");
-		OTree copy = fluid.getLastTreeForDebug().deepCopy();
+		OTree copy = ((OTree) tree).deepCopy();
 		OTreeStorage.dump(copy, "./dump.otree");
 	}
 
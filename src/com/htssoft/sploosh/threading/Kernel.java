@@ -13,7 +13,9 @@ public abstract class Kernel<WORK_T> implements Runnable {
 	public abstract void process(WORK_T work);
 	
 	/**
-	 * Loops, taking work and passing it to processing.
+	 * Loops, taking work and passing it to processing. Every item is reported
+	 * finished, even if processing it throws; the group hands the failure
+	 * to the submitter.
 	 * */
 	public void run(){
 		mainloop:
@@ -24,8 +26,13 @@ public abstract class Kernel<WORK_T> implements Runnable {
 				} catch (InterruptedException ex) {
 					break mainloop;
 				}
-				process(workItem);
-				group.reportFinished();
+				try {
+					process(workItem);
+				} catch (Throwable t) {
+					group.reportFailure(t);
+				} finally {
+					group.reportFinished();
+				}
 			}
 	}
 }
@@ -0,0 +1,15 @@
+package com.htssoft.sploosh.threading;
+
+/**
+ * Work that processes ranges of itself on the {@link SharedWorkers}.
+ * 
+ * Tasks that run in several phases keep the current phase in a field and
+ * switch on it here; the field is set before each submission.
+ * */
+public interface RangeTask {
+	/**
+	 * Process items range.first through range.last (inclusive). The range's
+	 * parent is this task.
+	 * */
+	public void processRange(WorkRange range);
+}
@@ -0,0 +1,35 @@
+package com.htssoft.sploosh.threading;
+
+import java.util.List;
+
+/**
+ * One thread group shared by the spatial structures' parallel builds (the
+ * linear octree, FMM and vortex-in-cell), so each of them doesn't spawn a
+ * thread per core of its own.
+ * 
+ * Submissions from different threads take turns. Never submit from a task
+ * running on these workers: it would wait on itself.
+ * */
+public class SharedWorkers {
+	protected static final StaticThreadGroup<WorkRange> workers = 
+		new StaticThreadGroup<WorkRange>("SharedWorkers", RangeKernel.class);
+	
+	public static int nThreads(){
+		return workers.nThreads();
+	}
+	
+	/**
+	 * Run the given ranges, each on its parent {@link RangeTask}, and wait for them to finish.
+	 * */
+	public static void run(List<WorkRange> ranges){
+		workers.submitWork(ranges, null);
+	}
+	
+	protected static class RangeKernel extends Kernel<WorkRange> {
+		public RangeKernel(){}
+		
+		public void process(WorkRange range){
+			((RangeTask) range.parent).processRange(range);
+		}
+	}
+}
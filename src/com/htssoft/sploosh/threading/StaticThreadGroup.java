@@ -5,11 +5,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class StaticThreadGroup<WORK_T> {
 	protected Thread[] threads;
 	protected LinkedBlockingQueue<WORK_T> waitingWork = new LinkedBlockingQueue<WORK_T>();
 	protected CountDownLatch waitLatch;
+	protected final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 	protected String groupName;
 	protected Class<? extends Kernel<WORK_T>> kernelClass;
 	
@@ -24,9 +26,14 @@ public class StaticThreadGroup<WORK_T> {
 	}
 	
 	/**
-	 * Submit work to be done.
+	 * Submit work to be done, and wait for it to finish.
+	 * 
+	 * Submissions from different threads take turns, since the group
+	 * only tracks one batch at a time. If processing an item throws, the
+	 * rest of the batch still runs, and then the first failure is rethrown
+	 * here (wrapped in a RuntimeException if it was checked).
 	 * */
-	public void submitWork(Collection<WORK_T> workItems, Object submitter){
+	public synchronized void submitWork(Collection<WORK_T> workItems, Object submitter){
 		if (workItems.isEmpty()){
 			return;
 		}
@@ -37,12 +44,30 @@ public class StaticThreadGroup<WORK_T> {
 		} catch (InterruptedException ex) {
 			ex.printStackTrace();
 		}
+		
+		Throwable t = failure.getAndSet(null);
+		if (t instanceof RuntimeException){
+			throw (RuntimeException) t;
+		}
+		else if (t instanceof Error){
+			throw (Error) t;
+		}
+		else if (t != null){
+			throw new RuntimeException(t);
+		}
 	}
 	
 	public LinkedBlockingQueue<WORK_T> getQueue(){
 		return waitingWork;
 	}
 	
+	/**
+	 * Note that processing an item threw. Only the first failure of a batch is kept.
+	 * */
+	public void reportFailure(Throwable t){
+		failure.compareAndSet(null, t);
+	}
+	
 	public void reportFinished(){
 		if (waitLatch != null){
 			waitLatch.countDown();
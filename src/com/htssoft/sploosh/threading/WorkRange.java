@@ -9,7 +9,7 @@ public class WorkRange {
 	public final Object workingSet;
 	public final Object parent;
 
-	WorkRange(int first, int last, Object workingSet, Object parent){
+	protected WorkRange(int first, int last, Object workingSet, Object parent){
 		this.first = first;
 		this.last = last;
 		this.workingSet = workingSet;
@@ -17,13 +17,20 @@ public class WorkRange {
 	}
 	
 	public static List<WorkRange> divideWork(int nItems, Object workingSet, Object parent, int nThreads){
+		return divideWork(0, nItems, workingSet, parent, nThreads);
+	}
+	
+	/**
+	 * Divide items first through first + nItems - 1.
+	 * */
+	public static List<WorkRange> divideWork(int first, int nItems, Object workingSet, Object parent, int nThreads){
 		List<WorkRange> ranges = new ArrayList<WorkRange>();
 		
 		int blockSize = Math.max(1, nItems / nThreads);
-		int maxIndex = nItems - 1;
+		int maxIndex = first + nItems - 1;
 		
 		int remainingCounter = nItems;
-		int start = 0;
+		int start = first;
 		boolean remainderFlag = false;
 		//I'm kinda tired, so yes, I'm sure there's something way more elegant.
 		while (remainingCounter > 0){ 